@@ -29,6 +29,26 @@ public class ModConfig {
     public static int hotkeyRefresh = Input.Keys.F8;
     public static int hotkeyToggleOverlay = Input.Keys.F9;
     public static String language = "zh";
+    public static boolean streamResponses = true;
+    public static boolean responseCacheEnabled = true;
+    public static boolean prefetchEnabled = true;
+    public static String endpointPolicy = "failover";
+    public static boolean structuredOutput = false;
+    public static boolean adaptiveMaxTokens = true;
+    public static String tokenEstimator = "auto";
+    public static int snapshotTokenBudget = 2400;
+    public static String localKeepAlive = "10m";
+    public static int localKeepWarmSec = 240;
+    public static int localContextTokens = 4096;
+    public static int localSnapshotTokenBudget = 1200;
+    public static String fallbackEndpoints = "";
+    public static String modelRoutes = "";
+    public static boolean modelCalibration = false;
+    public static String calibrationCandidates = "";
+    public static int requestsPerMinute = 20;
+    public static int runTokenBudget = 0;
+    public static int retryMaxAttempts = 3;
+    public static String snapshotEncoding = "json";
 
     public static float panelX = -1f;
     public static float panelY = -1f;
@@ -60,6 +80,26 @@ public class ModConfig {
             defaults.setProperty("hotkeyRefresh", Integer.toString(hotkeyRefresh));
             defaults.setProperty("hotkeyToggleOverlay", Integer.toString(hotkeyToggleOverlay));
             defaults.setProperty("language", language);
+            defaults.setProperty("streamResponses", Boolean.toString(streamResponses));
+            defaults.setProperty("responseCacheEnabled", Boolean.toString(responseCacheEnabled));
+            defaults.setProperty("prefetchEnabled", Boolean.toString(prefetchEnabled));
+            defaults.setProperty("endpointPolicy", endpointPolicy);
+            defaults.setProperty("structuredOutput", Boolean.toString(structuredOutput));
+            defaults.setProperty("adaptiveMaxTokens", Boolean.toString(adaptiveMaxTokens));
+            defaults.setProperty("tokenEstimator", tokenEstimator);
+            defaults.setProperty("snapshotTokenBudget", Integer.toString(snapshotTokenBudget));
+            defaults.setProperty("localKeepAlive", localKeepAlive);
+            defaults.setProperty("localKeepWarmSec", Integer.toString(localKeepWarmSec));
+            defaults.setProperty("localContextTokens", Integer.toString(localContextTokens));
+            defaults.setProperty("localSnapshotTokenBudget", Integer.toString(localSnapshotTokenBudget));
+            defaults.setProperty("fallbackEndpoints", fallbackEndpoints);
+            defaults.setProperty("modelRoutes", modelRoutes);
+            defaults.setProperty("modelCalibration", Boolean.toString(modelCalibration));
+            defaults.setProperty("calibrationCandidates", calibrationCandidates);
+            defaults.setProperty("requestsPerMinute", Integer.toString(requestsPerMinute));
+            defaults.setProperty("runTokenBudget", Integer.toString(runTokenBudget));
+            defaults.setProperty("retryMaxAttempts", Integer.toString(retryMaxAttempts));
+            defaults.setProperty("snapshotEncoding", snapshotEncoding);
             defaults.setProperty("panelX", Float.toString(panelX));
             defaults.setProperty("panelY", Float.toString(panelY));
             defaults.setProperty("panelW", Float.toString(panelW));
@@ -88,6 +128,26 @@ public class ModConfig {
             hotkeyRefresh = config.getInt("hotkeyRefresh");
             hotkeyToggleOverlay = config.getInt("hotkeyToggleOverlay");
             language = config.getString("language");
+            streamResponses = config.getBool("streamResponses");
+            responseCacheEnabled = config.getBool("responseCacheEnabled");
+            prefetchEnabled = config.getBool("prefetchEnabled");
+            endpointPolicy = config.getString("endpointPolicy");
+            structuredOutput = config.getBool("structuredOutput");
+            adaptiveMaxTokens = config.getBool("adaptiveMaxTokens");
+            tokenEstimator = config.getString("tokenEstimator");
+            snapshotTokenBudget = config.getInt("snapshotTokenBudget");
+            localKeepAlive = config.getString("localKeepAlive");
+            localKeepWarmSec = config.getInt("localKeepWarmSec");
+            localContextTokens = config.getInt("localContextTokens");
+            localSnapshotTokenBudget = config.getInt("localSnapshotTokenBudget");
+            fallbackEndpoints = config.getString("fallbackEndpoints");
+            modelRoutes = config.getString("modelRoutes");
+            modelCalibration = config.getBool("modelCalibration");
+            calibrationCandidates = config.getString("calibrationCandidates");
+            requestsPerMinute = config.getInt("requestsPerMinute");
+            runTokenBudget = config.getInt("runTokenBudget");
+            retryMaxAttempts = config.getInt("retryMaxAttempts");
+            snapshotEncoding = config.getString("snapshotEncoding");
             panelX = config.getFloat("panelX");
             panelY = config.getFloat("panelY");
             panelW = config.getFloat("panelW");
@@ -128,6 +188,26 @@ public class ModConfig {
             config.setInt("hotkeyRefresh", hotkeyRefresh);
             config.setInt("hotkeyToggleOverlay", hotkeyToggleOverlay);
             config.setString("language", safe(language));
+            config.setBool("streamResponses", streamResponses);
+            config.setBool("responseCacheEnabled", responseCacheEnabled);
+            config.setBool("prefetchEnabled", prefetchEnabled);
+            config.setString("endpointPolicy", safe(endpointPolicy));
+            config.setBool("structuredOutput", structuredOutput);
+            config.setBool("adaptiveMaxTokens", adaptiveMaxTokens);
+            config.setString("tokenEstimator", safe(tokenEstimator));
+            config.setInt("snapshotTokenBudget", snapshotTokenBudget);
+            config.setString("localKeepAlive", safe(localKeepAlive));
+            config.setInt("localKeepWarmSec", localKeepWarmSec);
+            config.setInt("localContextTokens", localContextTokens);
+            config.setInt("localSnapshotTokenBudget", localSnapshotTokenBudget);
+            config.setString("fallbackEndpoints", safe(fallbackEndpoints));
+            config.setString("modelRoutes", safe(modelRoutes));
+            config.setBool("modelCalibration", modelCalibration);
+            config.setString("calibrationCandidates", safe(calibrationCandidates));
+            config.setInt("requestsPerMinute", requestsPerMinute);
+            config.setInt("runTokenBudget", runTokenBudget);
+            config.setInt("retryMaxAttempts", retryMaxAttempts);
+            config.setString("snapshotEncoding", safe(snapshotEncoding));
             config.setFloat("panelX", panelX);
             config.setFloat("panelY", panelY);
             config.setFloat("panelW", panelW);
@@ -0,0 +1,509 @@
+package whispers.thespire.llm;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import whispers.thespire.config.ModConfig;
+import whispers.thespire.llm.model.LLMPartial;
+import whispers.thespire.llm.model.LLMRecommendation;
+import whispers.thespire.llm.model.LLMResult;
+import whispers.thespire.util.JsonUtil;
+import whispers.thespire.util.TokenEstimator;
+
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Incremental parser for the model's answer. Text is fed in chunks as it arrives and scanned once;
+// every top-level field and every recommendation object is read with a JsonReader as soon as it
+// closes, so the first recommendation can be shown while the rest is still being generated. Text
+// before the first '{' (code fences, chatter) is skipped the same way extractFirstJsonObject did.
+// An answer cut off mid-way (max_tokens) is salvaged: the open containers are closed, the unfinished
+// recommendation is dropped and the result is marked partial.
+public class AdviceParser {
+    private static final AtomicLong SALVAGED = new AtomicLong();
+
+    private final StringBuilder text = new StringBuilder();
+    // Open containers, innermost last; its length is the nesting depth.
+    private final StringBuilder open = new StringBuilder();
+    private int scanned = 0;
+    private int depth = 0;
+    private boolean inString = false;
+    private boolean escape = false;
+    // Where the string being scanned starts (its opening quote).
+    private int stringStart = -1;
+    private boolean closed = false;
+
+    private boolean expectingKey = false;
+    private int keyStart = -1;
+    private String currentKey;
+    private int valueStart = -1;
+    private int recStart = -1;
+
+    private String contextType;
+    private String summary;
+    private boolean hasRecommendations = false;
+    private final List<LLMRecommendation> recommendations = new ArrayList<>();
+    private Integer nextPickIndex;
+    private List<String> routePlan;
+    private Exception error;
+    private boolean changed = false;
+
+    public void feed(CharSequence chunk) {
+        if (chunk == null || chunk.length() == 0) {
+            return;
+        }
+        text.append(chunk);
+        int len = text.length();
+        for (int i = scanned; i < len && !closed; i++) {
+            scan(text.charAt(i), i);
+        }
+        scanned = len;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    // Publishes what is known so far, including a summary or recommendation still being written.
+    public void publishTo(LLMPartial partial) {
+        if (partial == null) {
+            return;
+        }
+        boolean inSummary = inString && depth == 1 && !expectingKey && "summary".equals(currentKey) && valueStart >= 0;
+        if (!changed && !inSummary && recStart < 0) {
+            return;
+        }
+        changed = false;
+        String shownSummary = summary;
+        if (inSummary) {
+            int quote = text.indexOf("\"", valueStart);
+            shownSummary = quote < 0 ? null : decodePartial(text, quote + 1);
+        }
+        List<LLMRecommendation> recs = null;
+        if (hasRecommendations || !recommendations.isEmpty() || recStart >= 0) {
+            recs = new ArrayList<>(recommendations);
+            if (recStart >= 0) {
+                addPartialRecommendation(recs, text.substring(recStart));
+            }
+        }
+        partial.publish(shownSummary, recs);
+    }
+
+    public static long salvagedCount() {
+        return SALVAGED.get();
+    }
+
+    public LLMResult result(String finishReason) {
+        LLMResult result = closed ? build() : salvage();
+        result.finishReason = finishReason;
+        result.completionTokens = TokenEstimator.approximate(text);
+        return result;
+    }
+
+    private LLMResult salvage() {
+        if (depth == 0) {
+            return LLMResult.failure("parse_failed:no_json", JsonUtil.truncate(text.toString(), 4000));
+        }
+        Exception before = error;
+        recStart = -1;
+        dropCutString();
+        StringBuilder closers = new StringBuilder();
+        if (inString) {
+            closers.append('"');
+        }
+        for (int i = open.length() - 1; i >= 0; i--) {
+            closers.append(open.charAt(i) == '{' ? '}' : ']');
+        }
+        feed(closers);
+        // A value cut right after its key cannot be read; that is expected here, not a parse error.
+        error = before;
+        if (!closed || error != null) {
+            return LLMResult.failure("parse_failed:" + (error == null ? "no_json" : error.getClass().getSimpleName()),
+                    JsonUtil.truncate(text.toString(), 4000));
+        }
+        if (recommendations.isEmpty() && (summary == null || summary.isEmpty())) {
+            return LLMResult.failure("parse_failed:truncated", JsonUtil.truncate(text.toString(), 4000));
+        }
+        hasRecommendations = true;
+        LLMResult result = build();
+        result.partial = true;
+        result.salvaged = result.recommendations.size();
+        SALVAGED.incrementAndGet();
+        return result;
+    }
+
+    // Before closing a cut-off answer: a string cut inside an array (e.g. a route_plan step) is dropped
+    // with the comma before it; any other cut string keeps its text, minus an escape sequence left
+    // unfinished, so it does not end in a stray backslash.
+    private void dropCutString() {
+        if (!inString) {
+            return;
+        }
+        if (open.length() > 0 && open.charAt(open.length() - 1) == '[' && stringStart >= 0) {
+            int end = stringStart;
+            while (end > 0 && Character.isWhitespace(text.charAt(end - 1))) {
+                end--;
+            }
+            if (end > 0 && text.charAt(end - 1) == ',') {
+                end--;
+            }
+            text.setLength(end);
+            inString = false;
+        } else if (escape) {
+            text.setLength(text.length() - 1);
+        } else {
+            int cut = unfinishedUnicodeEscape();
+            if (cut >= 0) {
+                text.setLength(cut);
+            }
+        }
+        escape = false;
+        scanned = text.length();
+    }
+
+    // Start of a trailing backslash-u escape with fewer than four hex digits, or -1.
+    private int unfinishedUnicodeEscape() {
+        int len = text.length();
+        for (int k = len - 2; k >= Math.max(0, len - 5); k--) {
+            if (text.charAt(k) != '\\' || text.charAt(k + 1) != 'u') {
+                continue;
+            }
+            int slashes = 0;
+            for (int j = k; j >= 0 && text.charAt(j) == '\\'; j--) {
+                slashes++;
+            }
+            if (slashes % 2 == 0) {
+                return -1;
+            }
+            for (int j = k + 2; j < len; j++) {
+                if (Character.digit(text.charAt(j), 16) < 0) {
+                    return -1;
+                }
+            }
+            return k;
+        }
+        return -1;
+    }
+
+    private LLMResult build() {
+        if (error != null) {
+            return LLMResult.failure("parse_failed:" + error.getClass().getSimpleName(), JsonUtil.truncate(text.toString(), 4000));
+        }
+        if (!hasRecommendations) {
+            return LLMResult.failure("parse_failed:missing_fields", JsonUtil.truncate(text.toString(), 4000));
+        }
+        List<LLMRecommendation> recs = new ArrayList<>();
+        boolean combat = "COMBAT".equalsIgnoreCase(contextType);
+        boolean shop = "SHOP".equalsIgnoreCase(contextType);
+        int limit;
+        if (shop) {
+            limit = 3;
+        } else if (combat) {
+            limit = ModConfig.multiRecommendations ? 2 : 1;
+        } else {
+            limit = ModConfig.multiRecommendations ? 3 : 1;
+        }
+        for (LLMRecommendation rec : recommendations) {
+            if (combat) {
+                rec.action_type = "combat_line";
+            } else if (rec.action_type == null) {
+                rec.action_type = "general";
+            }
+            if (rec.title == null) rec.title = "";
+            if (rec.action == null) rec.action = "";
+            if (rec.reason == null) rec.reason = "";
+            if (rec.confidence == null) rec.confidence = 0.5f;
+            recs.add(rec);
+            if (recs.size() >= limit) {
+                break;
+            }
+        }
+        LLMResult result = LLMResult.success(contextType, summary == null ? "" : summary, recs);
+        if (nextPickIndex != null) {
+            result.nextPickIndex = nextPickIndex;
+        }
+        if (routePlan != null && !routePlan.isEmpty()) {
+            result.routePlan = routePlan;
+        }
+        return result;
+    }
+
+    private void scan(char c, int i) {
+        if (escape) {
+            escape = false;
+            return;
+        }
+        if (inString) {
+            if (c == '\\') {
+                escape = true;
+            } else if (c == '"') {
+                inString = false;
+                if (depth == 1 && expectingKey && keyStart >= 0) {
+                    currentKey = readKey(text.substring(keyStart, i + 1));
+                    keyStart = -1;
+                }
+            }
+            return;
+        }
+        if (c == '"') {
+            inString = true;
+            stringStart = i;
+            if (depth == 1 && expectingKey) {
+                keyStart = i;
+            }
+            return;
+        }
+        if (c == '{' || c == '[') {
+            if (depth == 0) {
+                if (c == '{') {
+                    depth = 1;
+                    open.append(c);
+                    expectingKey = true;
+                }
+                return;
+            }
+            depth++;
+            open.append(c);
+            if (depth == 3 && c == '{' && "recommendations".equals(currentKey)) {
+                recStart = i;
+            }
+            return;
+        }
+        if (c == '}' || c == ']') {
+            if (depth == 0) {
+                return;
+            }
+            if (depth == 3 && c == '}' && recStart >= 0) {
+                readRecommendation(text.substring(recStart, i + 1));
+                recStart = -1;
+            }
+            depth--;
+            open.setLength(depth);
+            if (depth == 0) {
+                finishValue(i);
+                closed = true;
+            }
+            return;
+        }
+        if (depth != 1) {
+            return;
+        }
+        if (c == ':' && expectingKey) {
+            expectingKey = false;
+            valueStart = i + 1;
+        } else if (c == ',') {
+            finishValue(i);
+            expectingKey = true;
+        }
+    }
+
+    private void finishValue(int end) {
+        if (valueStart < 0 || currentKey == null) {
+            valueStart = -1;
+            currentKey = null;
+            return;
+        }
+        String key = currentKey;
+        int start = valueStart;
+        valueStart = -1;
+        currentKey = null;
+        if ("recommendations".equals(key)) {
+            // Its objects were read one by one as they closed.
+            String value = text.substring(start, end).trim();
+            hasRecommendations = value.startsWith("[");
+            return;
+        }
+        try {
+            JsonReader reader = reader(text.substring(start, end));
+            switch (key) {
+                case "context_type":
+                    contextType = readString(reader);
+                    break;
+                case "summary":
+                    summary = readString(reader);
+                    changed = true;
+                    break;
+                case "next_pick_index":
+                    if (reader.peek() == JsonToken.NULL) {
+                        reader.nextNull();
+                        nextPickIndex = null;
+                    } else {
+                        nextPickIndex = reader.nextInt();
+                    }
+                    break;
+                case "route_plan":
+                    routePlan = readRoutePlan(reader);
+                    break;
+                default:
+                    break;
+            }
+        } catch (Exception e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+    }
+
+    private void readRecommendation(String json) {
+        try {
+            JsonReader reader = reader(json);
+            LLMRecommendation rec = new LLMRecommendation();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String name = reader.nextName();
+                switch (name) {
+                    case "action_type":
+                        rec.action_type = readString(reader);
+                        break;
+                    case "title":
+                        rec.title = readString(reader);
+                        break;
+                    case "action":
+                        rec.action = readString(reader);
+                        break;
+                    case "reason":
+                        rec.reason = readString(reader);
+                        break;
+                    case "confidence":
+                        if (reader.peek() == JsonToken.NULL) {
+                            reader.nextNull();
+                        } else {
+                            rec.confidence = (float) reader.nextDouble();
+                        }
+                        break;
+                    default:
+                        reader.skipValue();
+                        break;
+                }
+            }
+            reader.endObject();
+            recommendations.add(rec);
+            changed = true;
+        } catch (Exception e) {
+            if (error == null) {
+                error = e;
+            }
+        }
+    }
+
+    private static List<String> readRoutePlan(JsonReader reader) throws Exception {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        List<String> list = new ArrayList<>();
+        if (token == JsonToken.BEGIN_ARRAY) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String step = readString(reader);
+                if (step != null) {
+                    list.add(step);
+                }
+            }
+            reader.endArray();
+            return list;
+        }
+        // Some models answer with a single string instead of a list.
+        String route = readString(reader);
+        if (route != null && !route.isEmpty()) {
+            list.add(route);
+        }
+        return list;
+    }
+
+    private static String readString(JsonReader reader) throws Exception {
+        JsonToken token = reader.peek();
+        if (token == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        if (token == JsonToken.BOOLEAN) {
+            return Boolean.toString(reader.nextBoolean());
+        }
+        return reader.nextString();
+    }
+
+    private static String readKey(String quoted) {
+        try {
+            return reader(quoted).nextString();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private static JsonReader reader(String json) {
+        JsonReader reader = new JsonReader(new StringReader(json));
+        reader.setLenient(true);
+        return reader;
+    }
+
+    private static void addPartialRecommendation(List<LLMRecommendation> recs, String segment) {
+        String title = readPartialString(segment, "title");
+        String action = readPartialString(segment, "action");
+        if (title == null && action == null) {
+            return;
+        }
+        LLMRecommendation rec = new LLMRecommendation();
+        rec.title = title == null ? "" : title;
+        rec.action = action == null ? "" : action;
+        rec.reason = readPartialString(segment, "reason");
+        if (rec.reason == null) rec.reason = "";
+        recs.add(rec);
+    }
+
+    private static String readPartialString(String text, String key) {
+        int idx = text.indexOf("\"" + key + "\"");
+        if (idx < 0) {
+            return null;
+        }
+        int i = idx + key.length() + 2;
+        while (i < text.length() && Character.isWhitespace(text.charAt(i))) i++;
+        if (i >= text.length() || text.charAt(i) != ':') {
+            return null;
+        }
+        i++;
+        while (i < text.length() && Character.isWhitespace(text.charAt(i))) i++;
+        if (i >= text.length() || text.charAt(i) != '"') {
+            return null;
+        }
+        return decodePartial(text, i + 1);
+    }
+
+    // Decodes a JSON string body starting at 'from' up to its closing quote or the end of the text.
+    private static String decodePartial(CharSequence text, int from) {
+        StringBuilder sb = new StringBuilder();
+        int i = from;
+        while (i < text.length()) {
+            char c = text.charAt(i);
+            if (c == '"') {
+                break;
+            }
+            if (c == '\\') {
+                if (i + 1 >= text.length()) {
+                    break;
+                }
+                char next = text.charAt(i + 1);
+                if (next == 'u') {
+                    if (i + 6 > text.length()) {
+                        break;
+                    }
+                    try {
+                        sb.append((char) Integer.parseInt(text.subSequence(i + 2, i + 6).toString(), 16));
+                    } catch (NumberFormatException ignored) {
+                        // skip malformed escape
+                    }
+                    i += 6;
+                    continue;
+                }
+                sb.append(next == 'n' ? '\n' : next == 't' ? '\t' : next == 'r' ? '\r' : next);
+                i += 2;
+                continue;
+            }
+            sb.append(c);
+            i++;
+        }
+        return sb.toString();
+    }
+}
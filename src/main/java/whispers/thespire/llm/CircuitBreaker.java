@@ -0,0 +1,79 @@
+package whispers.thespire.llm;
+
+// Per-endpoint breaker: after FAILURE_THRESHOLD consecutive transport failures the endpoint is
+// skipped (open) for a cool-down, then a single probe is let through (half-open). A successful probe
+// closes it again; a failed one reopens it with a longer cool-down.
+public class CircuitBreaker {
+    private static final int FAILURE_THRESHOLD = 3;
+    private static final long BASE_OPEN_MS = 30000L;
+    private static final long MAX_OPEN_MS = 5L * 60L * 1000L;
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures = 0;
+    private long openUntilMs = 0L;
+    private long openDurationMs = BASE_OPEN_MS;
+    private boolean probeInFlight = false;
+
+    // True when a request may be sent now; in half-open state only one probe is allowed at a time.
+    public synchronized boolean allowRequest() {
+        if (state == State.OPEN) {
+            if (System.currentTimeMillis() < openUntilMs) {
+                return false;
+            }
+            state = State.HALF_OPEN;
+            probeInFlight = false;
+        }
+        if (state == State.HALF_OPEN) {
+            if (probeInFlight) {
+                return false;
+            }
+            probeInFlight = true;
+        }
+        return true;
+    }
+
+    public synchronized void recordSuccess() {
+        state = State.CLOSED;
+        consecutiveFailures = 0;
+        openDurationMs = BASE_OPEN_MS;
+        probeInFlight = false;
+    }
+
+    public synchronized void recordFailure() {
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN) {
+            openDurationMs = Math.min(MAX_OPEN_MS, openDurationMs * 2);
+            open();
+        } else if (consecutiveFailures >= FAILURE_THRESHOLD) {
+            open();
+        }
+    }
+
+    // A cancelled probe says nothing about the endpoint; let the next request probe instead.
+    public synchronized void recordAbandoned() {
+        probeInFlight = false;
+    }
+
+    public synchronized State state() {
+        if (state == State.OPEN && System.currentTimeMillis() >= openUntilMs) {
+            return State.HALF_OPEN;
+        }
+        return state;
+    }
+
+    public synchronized long remainingOpenMs() {
+        return state == State.OPEN ? Math.max(0L, openUntilMs - System.currentTimeMillis()) : 0L;
+    }
+
+    private void open() {
+        state = State.OPEN;
+        openUntilMs = System.currentTimeMillis() + openDurationMs;
+        probeInFlight = false;
+    }
+}
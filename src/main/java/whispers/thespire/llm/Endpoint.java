@@ -0,0 +1,112 @@
+package whispers.thespire.llm;
+
+import whispers.thespire.config.ModConfig;
+import whispers.thespire.llm.model.LLMRequest;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// One provider/baseUrl/model/apiKey combination. The primary comes from the request (i.e. the
+// normal settings); extra ones come from ModConfig.fallbackEndpoints, written as
+// "provider|baseUrl|model|apiKey" entries separated by ';'. An empty apiKey reuses the primary key.
+public class Endpoint {
+    public final String provider;
+    public final String baseUrl;
+    public final String model;
+    public final String apiKey;
+
+    public Endpoint(String provider, String baseUrl, String model, String apiKey) {
+        this.provider = normalizeProvider(provider);
+        this.baseUrl = baseUrl == null ? "" : baseUrl.trim();
+        this.model = model == null ? "" : model.trim();
+        this.apiKey = apiKey == null ? "" : apiKey.trim();
+    }
+
+    public static List<Endpoint> chain(LLMRequest request) {
+        List<Endpoint> chain = new ArrayList<>();
+        Endpoint primary = new Endpoint(
+                request.provider == null ? ModConfig.provider : request.provider,
+                request.baseUrl, request.model, request.apiKey);
+        chain.add(primary);
+        for (Endpoint extra : parse(ModConfig.fallbackEndpoints, primary.apiKey)) {
+            if (!extra.key().equals(primary.key())) {
+                chain.add(extra);
+            }
+        }
+        return chain;
+    }
+
+    // Endpoints a calibration run measures: ModConfig.calibrationCandidates, best first, or else the
+    // primary settings followed by fallbackEndpoints. Keys always come from the current config.
+    static List<Endpoint> calibrationCandidates() {
+        String spec = ModConfig.calibrationCandidates == null ? "" : ModConfig.calibrationCandidates.trim();
+        if (!spec.isEmpty()) {
+            return parse(spec, ModConfig.apiKey == null ? "" : ModConfig.apiKey.trim());
+        }
+        LLMRequest primary = new LLMRequest();
+        primary.provider = ModConfig.provider;
+        primary.baseUrl = ModConfig.baseUrl;
+        primary.model = ModConfig.model;
+        primary.apiKey = ModConfig.apiKey;
+        List<Endpoint> chain = chain(primary);
+        return chain.get(0).model.isEmpty() ? chain.subList(1, chain.size()) : chain;
+    }
+
+    static List<Endpoint> parse(String spec, String defaultKey) {
+        List<Endpoint> list = new ArrayList<>();
+        if (spec == null || spec.trim().isEmpty()) {
+            return list;
+        }
+        for (String entry : spec.split(";")) {
+            if (entry == null || entry.trim().isEmpty()) {
+                continue;
+            }
+            String[] parts = entry.split("\\|", -1);
+            String provider = parts.length > 0 ? parts[0] : "";
+            String baseUrl = parts.length > 1 ? parts[1] : "";
+            String model = parts.length > 2 ? parts[2] : "";
+            String apiKey = parts.length > 3 ? parts[3] : "";
+            if (model.trim().isEmpty()) {
+                continue;
+            }
+            list.add(new Endpoint(provider, baseUrl, model, apiKey.trim().isEmpty() ? defaultKey : apiKey));
+        }
+        return list;
+    }
+
+    public LLMRequest apply(LLMRequest request) {
+        LLMRequest copy = request.copy();
+        copy.provider = provider;
+        copy.baseUrl = baseUrl;
+        copy.model = model;
+        copy.apiKey = apiKey;
+        return copy;
+    }
+
+    public boolean isGemini() {
+        return "gemini".equals(provider);
+    }
+
+    public boolean isOllama() {
+        return isLocal(provider);
+    }
+
+    // Local servers run without an API key and with a small context window.
+    public static boolean isLocal(String provider) {
+        return provider != null && "ollama".equals(provider.trim().toLowerCase());
+    }
+
+    // Identifies the endpoint in stats without exposing the key.
+    public String key() {
+        return provider + "|" + baseUrl + "|" + model;
+    }
+
+    public String label() {
+        return model.isEmpty() ? provider : model;
+    }
+
+    private static String normalizeProvider(String provider) {
+        String value = provider == null ? "" : provider.trim().toLowerCase();
+        return value.isEmpty() ? "openai_compat" : value;
+    }
+}
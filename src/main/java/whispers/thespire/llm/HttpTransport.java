@@ -0,0 +1,417 @@
+package whispers.thespire.llm;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.net.ConnectException;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyStore;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.LinkedHashSet;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.HandshakeCompletedEvent;
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+// Shared HTTP layer for the LLM clients. HttpsURLConnection only reuses a pooled keep-alive
+// connection when the same SSLSocketFactory instance is passed again, so the factories (and their
+// SSLContexts, which hold the TLS session cache used for resumption) are built once. Bodies are
+// drained and closed instead of calling disconnect(), which hands the socket back to the pool.
+public class HttpTransport {
+    private static final String[] TLS_PROTOCOLS = new String[] {"TLSv1.2", "TLSv1.1", "TLSv1"};
+    private static final int SESSION_CACHE_SIZE = 64;
+    private static final int SESSION_TIMEOUT_SEC = 60 * 60;
+    private static final int MAX_TRACKED_SESSIONS = 64;
+
+    private static final Object LOCK = new Object();
+    private static boolean sslPropsApplied = false;
+    private static boolean trustFactoryResolved = false;
+    private static SSLSocketFactory trustFactory;
+    private static SSLSocketFactory insecureFactory;
+    private static final Set<String> seenSessions = new LinkedHashSet<>();
+    // Per request on the calling thread: whether a new socket was opened (always true where sockets
+    // cannot be seen, i.e. plain HTTP), and whether a response status was read.
+    private static final ThreadLocal<Boolean> openedSocket = new ThreadLocal<>();
+    private static final ThreadLocal<Boolean> responded = new ThreadLocal<>();
+
+    private static final AtomicLong requests = new AtomicLong();
+    private static final AtomicLong newConnections = new AtomicLong();
+    private static final AtomicLong handshakes = new AtomicLong();
+    private static final AtomicLong resumedSessions = new AtomicLong();
+
+    private HttpTransport() {}
+
+    public static HttpURLConnection openPost(String url, int connectTimeoutMs, int readTimeoutMs, boolean insecure) throws Exception {
+        ensureSslProperties();
+        openedSocket.set(Boolean.FALSE);
+        responded.set(Boolean.FALSE);
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setRequestMethod("POST");
+        conn.setConnectTimeout(connectTimeoutMs);
+        conn.setReadTimeout(readTimeoutMs);
+        conn.setDoOutput(true);
+        conn.setUseCaches(false);
+        conn.setRequestProperty("Connection", "keep-alive");
+        applySslSettings(conn, insecure);
+        return conn;
+    }
+
+    // getResponseCode(), noting that the server answered: from here on nothing is sent again.
+    public static int responseCode(HttpURLConnection conn) throws IOException {
+        int code = conn.getResponseCode();
+        responded.set(Boolean.TRUE);
+        return code;
+    }
+
+    public static String readBody(InputStream stream) throws Exception {
+        if (stream == null) {
+            return "";
+        }
+        try (BufferedInputStream in = new BufferedInputStream(stream);
+             ByteArrayOutputStream out = new ByteArrayOutputStream()) {
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    // How long the server asked us to wait (Retry-After in seconds or as an HTTP date, or OpenAI's
+    // retry-after-ms); 0 when it did not say.
+    public static long retryAfterMs(HttpURLConnection conn) {
+        try {
+            String millis = conn.getHeaderField("retry-after-ms");
+            if (millis != null && !millis.trim().isEmpty()) {
+                return Math.max(0L, (long) Double.parseDouble(millis.trim()));
+            }
+            String value = conn.getHeaderField("Retry-After");
+            if (value == null || value.trim().isEmpty()) {
+                return 0L;
+            }
+            value = value.trim();
+            if (value.matches("\\d+(\\.\\d+)?")) {
+                return (long) (Double.parseDouble(value) * 1000.0);
+            }
+            long date = conn.getHeaderFieldDate("Retry-After", 0L);
+            return date > 0L ? Math.max(0L, date - System.currentTimeMillis()) : 0L;
+        } catch (Exception e) {
+            return 0L;
+        }
+    }
+
+    // Drops the connection from the pool; only used when a request failed midway.
+    public static void discard(HttpURLConnection conn) {
+        if (conn != null) {
+            conn.disconnect();
+        }
+    }
+
+    // Aborts a request from another thread. disconnect() closes the response stream, which waits for
+    // the lock held by a reader blocked on the socket, so the JDK's HttpClient is asked to close its
+    // socket directly first; that unblocks the reader at once. disconnect() then runs off-thread.
+    public static void abort(HttpURLConnection conn) {
+        if (conn == null) {
+            return;
+        }
+        Object client = findHttpClient(conn);
+        if (client != null) {
+            try {
+                client.getClass().getMethod("closeServer").invoke(client);
+            } catch (Exception ignored) {
+                // fall back to disconnect below
+            }
+        }
+        Thread t = new Thread(conn::disconnect, "WhispersTheSpire-Abort");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    // A pooled HTTPS socket the server already closed fails on first use, before any response; only
+    // that is worth sending again. Failures after a response started (the call may be billed and
+    // partly streamed), on new sockets, on plain HTTP, and connect/timeout/TLS errors are not.
+    public static boolean failedOnStaleSocket(IOException e) {
+        return !Boolean.TRUE.equals(openedSocket.get()) && !Boolean.TRUE.equals(responded.get())
+                && !(e instanceof SocketTimeoutException) && !(e instanceof ConnectException)
+                && !(e instanceof javax.net.ssl.SSLException);
+    }
+
+    public static String statsLine() {
+        long total = requests.get();
+        long opened = newConnections.get();
+        long reused = Math.max(0L, total - opened);
+        return "https req=" + total + " new=" + opened + " reused=" + reused
+                + " tls=" + handshakes.get() + " resumed=" + resumedSessions.get();
+    }
+
+    private static Object findHttpClient(HttpURLConnection conn) {
+        try {
+            Object target = conn;
+            // HttpsURLConnectionImpl wraps the real connection in a "delegate" field.
+            Field delegate = findField(target.getClass(), "delegate");
+            if (delegate != null) {
+                delegate.setAccessible(true);
+                target = delegate.get(target);
+            }
+            Field http = target == null ? null : findField(target.getClass(), "http");
+            if (http == null) {
+                return null;
+            }
+            http.setAccessible(true);
+            return http.get(target);
+        } catch (Exception ignored) {
+            // newer JDKs may refuse reflective access; disconnect() is the fallback
+            return null;
+        }
+    }
+
+    private static Field findField(Class<?> type, String name) {
+        Class<?> current = type;
+        while (current != null && current != Object.class) {
+            try {
+                return current.getDeclaredField(name);
+            } catch (NoSuchFieldException ignored) {
+                current = current.getSuperclass();
+            }
+        }
+        return null;
+    }
+
+    private static void applySslSettings(HttpURLConnection conn, boolean insecure) {
+        if (!(conn instanceof HttpsURLConnection)) {
+            // Plain HTTP never goes through our socket factory, so it is left out of the reuse counters.
+            openedSocket.set(Boolean.TRUE);
+            return;
+        }
+        requests.incrementAndGet();
+        HttpsURLConnection https = (HttpsURLConnection) conn;
+        SSLSocketFactory factory = insecure ? getInsecureFactory() : getTrustFactory();
+        if (factory != null) {
+            https.setSSLSocketFactory(factory);
+        } else {
+            // The JVM's own factory does not report new sockets, so reuse cannot be told.
+            openedSocket.set(Boolean.TRUE);
+        }
+        if (insecure) {
+            https.setHostnameVerifier(buildInsecureVerifier());
+        }
+        // Protocol properties are applied globally in ensureSslProperties().
+    }
+
+    private static SSLSocketFactory getTrustFactory() {
+        synchronized (LOCK) {
+            if (!trustFactoryResolved) {
+                trustFactory = buildWindowsTrustFactory();
+                trustFactoryResolved = true;
+            }
+            return trustFactory;
+        }
+    }
+
+    private static SSLSocketFactory getInsecureFactory() {
+        synchronized (LOCK) {
+            if (insecureFactory == null) {
+                insecureFactory = buildInsecureFactory();
+            }
+            return insecureFactory;
+        }
+    }
+
+    private static SSLSocketFactory buildWindowsTrustFactory() {
+        try {
+            KeyStore ks = KeyStore.getInstance("Windows-ROOT");
+            ks.load(null, null);
+            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            tmf.init(ks);
+            SSLContext ctx = SSLContext.getInstance("TLSv1.2");
+            ctx.init(null, tmf.getTrustManagers(), new SecureRandom());
+            configureSessionCache(ctx);
+            return new TlsSocketFactory(ctx.getSocketFactory(), TLS_PROTOCOLS);
+        } catch (Exception ignored) {
+            // Not on Windows (or no access to the store): fall back to the JVM default trust store,
+            // still wrapped so the pooled factory and counters stay the same.
+            try {
+                SSLContext ctx = SSLContext.getInstance("TLSv1.2");
+                ctx.init(null, null, new SecureRandom());
+                configureSessionCache(ctx);
+                return new TlsSocketFactory(ctx.getSocketFactory(), TLS_PROTOCOLS);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+    }
+
+    private static SSLSocketFactory buildInsecureFactory() {
+        try {
+            TrustManager[] trustAll = new TrustManager[] {
+                    new X509TrustManager() {
+                        @Override
+                        public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+
+                        @Override
+                        public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+
+                        @Override
+                        public X509Certificate[] getAcceptedIssuers() {
+                            return new X509Certificate[0];
+                        }
+                    }
+            };
+            SSLContext ctx = SSLContext.getInstance("TLSv1.2");
+            ctx.init(null, trustAll, new SecureRandom());
+            configureSessionCache(ctx);
+            return new TlsSocketFactory(ctx.getSocketFactory(), TLS_PROTOCOLS);
+        } catch (Exception ignored) {
+            return null;
+        }
+    }
+
+    private static void configureSessionCache(SSLContext ctx) {
+        if (ctx.getClientSessionContext() == null) {
+            return;
+        }
+        ctx.getClientSessionContext().setSessionCacheSize(SESSION_CACHE_SIZE);
+        ctx.getClientSessionContext().setSessionTimeout(SESSION_TIMEOUT_SEC);
+    }
+
+    private static HostnameVerifier buildInsecureVerifier() {
+        return (hostname, session) -> true;
+    }
+
+    private static void ensureSslProperties() {
+        if (sslPropsApplied) {
+            return;
+        }
+        // Force TLSv1.2 for Java 8 and allow server-initiated renegotiation (some gateways require it).
+        System.setProperty("https.protocols", "TLSv1.2");
+        System.setProperty("jdk.tls.client.protocols", "TLSv1.2");
+        System.setProperty("sun.security.ssl.allowUnsafeRenegotiation", "true");
+        System.setProperty("jdk.tls.allowUnsafeServerCertChange", "true");
+        System.setProperty("jsse.enableSNIExtension", "true");
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", "8");
+        sslPropsApplied = true;
+    }
+
+    private static void onSocketCreated(java.net.Socket socket) {
+        openedSocket.set(Boolean.TRUE);
+        newConnections.incrementAndGet();
+        if (socket instanceof javax.net.ssl.SSLSocket) {
+            ((javax.net.ssl.SSLSocket) socket).addHandshakeCompletedListener(HttpTransport::onHandshake);
+        }
+    }
+
+    private static void onHandshake(HandshakeCompletedEvent event) {
+        handshakes.incrementAndGet();
+        SSLSession session = event.getSession();
+        if (session == null || session.getId() == null || session.getId().length == 0) {
+            return;
+        }
+        String id = toHex(session.getId());
+        synchronized (seenSessions) {
+            if (seenSessions.contains(id)) {
+                resumedSessions.incrementAndGet();
+                return;
+            }
+            seenSessions.add(id);
+            if (seenSessions.size() > MAX_TRACKED_SESSIONS) {
+                Iterator<String> it = seenSessions.iterator();
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] digits = "0123456789abcdef".toCharArray();
+        char[] out = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            out[i * 2] = digits[(bytes[i] >> 4) & 0xF];
+            out[i * 2 + 1] = digits[bytes[i] & 0xF];
+        }
+        return new String(out);
+    }
+
+    private static class TlsSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory delegate;
+        private final String[] protocols;
+
+        private TlsSocketFactory(SSLSocketFactory delegate, String[] protocols) {
+            this.delegate = delegate;
+            this.protocols = protocols;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return delegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public java.net.Socket createSocket(java.net.Socket s, String host, int port, boolean autoClose) throws java.io.IOException {
+            java.net.Socket socket = delegate.createSocket(s, host, port, autoClose);
+            enableProtocols(socket);
+            return socket;
+        }
+
+        @Override
+        public java.net.Socket createSocket(String host, int port) throws java.io.IOException {
+            java.net.Socket socket = delegate.createSocket(host, port);
+            enableProtocols(socket);
+            return socket;
+        }
+
+        @Override
+        public java.net.Socket createSocket(String host, int port, java.net.InetAddress localHost, int localPort) throws java.io.IOException {
+            java.net.Socket socket = delegate.createSocket(host, port, localHost, localPort);
+            enableProtocols(socket);
+            return socket;
+        }
+
+        @Override
+        public java.net.Socket createSocket(java.net.InetAddress host, int port) throws java.io.IOException {
+            java.net.Socket socket = delegate.createSocket(host, port);
+            enableProtocols(socket);
+            return socket;
+        }
+
+        @Override
+        public java.net.Socket createSocket(java.net.InetAddress address, int port, java.net.InetAddress localAddress, int localPort) throws java.io.IOException {
+            java.net.Socket socket = delegate.createSocket(address, port, localAddress, localPort);
+            enableProtocols(socket);
+            return socket;
+        }
+
+        private void enableProtocols(java.net.Socket socket) {
+            onSocketCreated(socket);
+            if (protocols == null || protocols.length == 0) {
+                return;
+            }
+            if (socket instanceof javax.net.ssl.SSLSocket) {
+                javax.net.ssl.SSLSocket ssl = (javax.net.ssl.SSLSocket) socket;
+                ssl.setEnabledProtocols(protocols);
+                // Enable all supported cipher suites to avoid handshake failures with strict servers.
+                ssl.setEnabledCipherSuites(ssl.getSupportedCipherSuites());
+            }
+        }
+    }
+}
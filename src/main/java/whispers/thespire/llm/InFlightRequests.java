@@ -0,0 +1,135 @@
+package whispers.thespire.llm;
+
+import whispers.thespire.llm.model.LLMPartial;
+import whispers.thespire.llm.model.LLMRequest;
+import whispers.thespire.llm.model.LLMResult;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+// Requests currently running, keyed by fingerprint. A duplicate submission gets its own handle on
+// the running call instead of issuing a second HTTP request; the call itself is only cancelled once
+// every handle on it has been cancelled.
+public class InFlightRequests {
+    private final Map<String, Shared> running = new HashMap<>();
+    private final AtomicLong started = new AtomicLong();
+    private final AtomicLong saved = new AtomicLong();
+
+    // starter receives a callback the job must run when it finishes and returns the job's future.
+    public synchronized Future<LLMResult> submit(String fingerprint, LLMRequest request,
+                                                 Function<Runnable, Future<LLMResult>> starter) {
+        Shared shared = fingerprint == null ? null : running.get(fingerprint);
+        if (shared != null && !shared.job.isDone()) {
+            saved.incrementAndGet();
+            shared.handles++;
+            // Attach to the original's stream so the overlay still sees partial text.
+            if (shared.partial != null) {
+                request.partial = shared.partial;
+            }
+            return new Handle(this, fingerprint, shared);
+        }
+        Shared fresh = new Shared();
+        fresh.partial = request.partial;
+        fresh.handles = 1;
+        fresh.job = starter.apply(() -> finished(fingerprint, fresh));
+        started.incrementAndGet();
+        if (fingerprint != null) {
+            running.put(fingerprint, fresh);
+        }
+        return new Handle(this, fingerprint, fresh);
+    }
+
+    // The scheduler only knows the underlying job, not the handles given out for it.
+    public static Future<LLMResult> unwrap(Future<LLMResult> future) {
+        return future instanceof Handle ? ((Handle) future).shared.job : future;
+    }
+
+    public String statsLine() {
+        int active;
+        synchronized (this) {
+            active = running.size();
+        }
+        return "inflight=" + active + " calls=" + started.get() + " coalesced=" + saved.get();
+    }
+
+    private synchronized void finished(String fingerprint, Shared shared) {
+        if (fingerprint != null && running.get(fingerprint) == shared) {
+            running.remove(fingerprint);
+        }
+    }
+
+    private synchronized boolean release(String fingerprint, Shared shared) {
+        shared.handles--;
+        if (shared.handles > 0) {
+            return false;
+        }
+        finished(fingerprint, shared);
+        return true;
+    }
+
+    private static class Shared {
+        Future<LLMResult> job;
+        LLMPartial partial;
+        int handles;
+    }
+
+    private static class Handle implements Future<LLMResult> {
+        private final InFlightRequests owner;
+        private final String fingerprint;
+        private final Shared shared;
+        private volatile boolean cancelled = false;
+
+        private Handle(InFlightRequests owner, String fingerprint, Shared shared) {
+            this.owner = owner;
+            this.fingerprint = fingerprint;
+            this.shared = shared;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            synchronized (this) {
+                if (cancelled || shared.job.isDone()) {
+                    return false;
+                }
+                cancelled = true;
+            }
+            if (owner.release(fingerprint, shared)) {
+                shared.job.cancel(mayInterruptIfRunning);
+            }
+            return true;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return cancelled || shared.job.isCancelled();
+        }
+
+        @Override
+        public boolean isDone() {
+            return cancelled || shared.job.isDone();
+        }
+
+        @Override
+        public LLMResult get() throws InterruptedException, ExecutionException {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            return shared.job.get();
+        }
+
+        @Override
+        public LLMResult get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+            if (cancelled) {
+                throw new CancellationException();
+            }
+            return shared.job.get(timeout, unit);
+        }
+    }
+}
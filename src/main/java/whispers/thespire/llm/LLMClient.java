@@ -1,35 +1,549 @@
 package whispers.thespire.llm;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import whispers.thespire.config.ModConfig;
 import whispers.thespire.llm.model.LLMRequest;
 import whispers.thespire.llm.model.LLMResult;
+import whispers.thespire.util.CancelToken;
 
 public class LLMClient {
-    private final ExecutorService executor;
+    private static final long HEDGE_MIN_DELAY_MS = 1500L;
+    private static final long HEDGE_DEFAULT_DELAY_MS = 4000L;
+    private static final double HEDGE_DELAY_FACTOR = 1.5;
+    // Read timeouts follow the endpoint's own p99 once it has answered often enough to trust it.
+    private static final int ADAPTIVE_MIN_SAMPLES = 20;
+    private static final double ADAPTIVE_TIMEOUT_FACTOR = 1.5;
+    private static final int ADAPTIVE_MIN_TIMEOUT_MS = 4000;
+    private static final int MAX_CONNECT_TIMEOUT_MS = 5000;
+    // Calibration: two short streamed probes per candidate; answers of unknown size count as this long.
+    private static final int CALIBRATION_PROBES = 2;
+    private static final int CALIBRATION_MAX_TOKENS = 128;
+    private static final int CALIBRATION_DEFAULT_ANSWER_TOKENS = 200;
+
+    private final RequestScheduler scheduler;
+    private final InFlightRequests inFlight = new InFlightRequests();
+    private final ExecutorService io;
+    private final ExecutorService attempts;
     private final OpenAICompatClient openaiClient;
     private final GeminiClient geminiClient;
+    private final OllamaClient ollamaClient = new OllamaClient();
+    private final LocalModelWarmer warmer = new LocalModelWarmer();
+    private final RateLimiter limiter = new RateLimiter();
+    private final LatencyTracker latency = new LatencyTracker();
+    private final Map<String, CircuitBreaker> breakers = new HashMap<>();
+    private final AtomicLong hedgesFired = new AtomicLong();
+    private final AtomicLong hedgesWon = new AtomicLong();
+    private final AtomicLong failovers = new AtomicLong();
+    private final AtomicLong fastFails = new AtomicLong();
+    private final AtomicLong retries = new AtomicLong();
+    private final AtomicLong retriesWon = new AtomicLong();
+    private final AtomicBoolean calibrating = new AtomicBoolean();
+    private volatile String primaryKey = "";
+    private volatile String primaryLabel = "";
 
     public LLMClient(OpenAICompatClient openaiClient, GeminiClient geminiClient) {
         this.openaiClient = openaiClient;
         this.geminiClient = geminiClient;
-        this.executor = Executors.newSingleThreadExecutor(r -> {
-            Thread t = new Thread(r, "WhispersTheSpire-LLM");
+        this.scheduler = new RequestScheduler("WhispersTheSpire-LLM");
+        this.io = Executors.newSingleThreadExecutor(r -> {
+            Thread t = new Thread(r, "WhispersTheSpire-IO");
             t.setDaemon(true);
             return t;
         });
+        // Hedged attempts run side by side, so they need their own threads.
+        AtomicInteger attemptIds = new AtomicInteger();
+        this.attempts = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "WhispersTheSpire-Hedge-" + attemptIds.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        io.submit(ResponseCache::preload);
     }
 
     public Future<LLMResult> submit(LLMRequest request) {
-        return executor.submit(() -> {
-            String provider = ModConfig.provider == null ? "" : ModConfig.provider.trim().toLowerCase();
-            if ("gemini".equals(provider)) {
-                return geminiClient.complete(request);
+        return submit(request, RequestPriority.SCREEN);
+    }
+
+    // The returned future's cancel() also fires the request's CancelToken, aborting its I/O. A request
+    // identical to one already running shares that call; request.partial is then replaced by the
+    // running call's partial view.
+    public Future<LLMResult> submit(LLMRequest request, RequestPriority priority) {
+        maybeCalibrate();
+        // Routed first so the cache and coalescing key on the model that will actually answer.
+        ModelRouter.apply(request);
+        LLMResult cached = ResponseCache.get(request);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+        Future<LLMResult> future = inFlight.submit(ResponseCache.fingerprint(request), request, onFinish -> {
+            // Only calls that actually go out count against the limits; cache hits and joins are free.
+            String shed = limiter.tryAcquire(request, primaryKeyOf(request), priority);
+            if (shed != null) {
+                onFinish.run();
+                return CompletableFuture.completedFuture(LLMResult.failure("rate_limited:" + shed, null));
+            }
+            CancelToken token = new CancelToken();
+            request.cancelToken = token;
+            return scheduler.submit(() -> {
+                try {
+                    request.maxTokens = OutputBudget.maxTokensFor(request.contextType, request.maxTokens);
+                    long start = System.currentTimeMillis();
+                    // The user's timeout bounds the whole call, retries included.
+                    request.deadlineMs = request.timeoutMs > 0 ? start + request.timeoutMs : 0L;
+                    LLMResult result = route(request);
+                    OutputBudget.record(request.contextType, result, request.maxTokens);
+                    // Tokens are charged per call, so a cut-off answer that gets escalated still counts.
+                    limiter.recordUsage(request, result);
+                    if (isCutOff(result) && OutputBudget.canEscalate(request.maxTokens) && !token.isCancelled()) {
+                        result = escalate(request, result, priority);
+                    }
+                    if (token.isCancelled()) {
+                        return LLMResult.failure("canceled", null);
+                    }
+                    ModelRouter.recordOutcome(request, result, System.currentTimeMillis() - start);
+                    ResponseCache.put(request, result);
+                    return result;
+                } finally {
+                    onFinish.run();
+                }
+            }, priority, token);
+        });
+        // A duplicate may be more urgent than the call it joined.
+        promote(future, priority);
+        return future;
+    }
+
+    // Why a request at this priority would be shed right now, or null; nothing is used up.
+    public String shedReason(LLMRequest request, RequestPriority priority) {
+        ModelRouter.apply(request);
+        return limiter.peek(request, primaryKeyOf(request), priority);
+    }
+
+    // Remaining requests per minute and run tokens for the overlay status; empty when unlimited.
+    public String budgetLine() {
+        return limiter.budgetLine(primaryKey);
+    }
+
+    public void promote(Future<LLMResult> future, RequestPriority priority) {
+        scheduler.promote(InFlightRequests.unwrap(future), priority);
+    }
+
+    public void flush() {
+        io.submit(ResponseCache::flush);
+        io.submit(OutputBudget::flush);
+    }
+
+    public String statsLine() {
+        return HttpTransport.statsLine() + " | " + scheduler.statsLine() + " " + inFlight.statsLine()
+                + " | " + ResponseCache.statsLine() + " | " + ResponseSchema.statsLine()
+                + " salvaged=" + AdviceParser.salvagedCount() + " | " + OutputBudget.statsLine()
+                + " | " + limiter.statsLine() + " | " + ModelRouter.statsLine() + " | " + PromptCacheStats.statsLine() + (warmer.statsLine().isEmpty() ? "" : " " + warmer.statsLine())
+                + " | hedge=" + hedgesFired.get() + "/" + hedgesWon.get() + " failover=" + failovers.get()
+                + " retry=" + retries.get() + "/" + retriesWon.get()
+                + " | " + primaryLabel + " p50=" + latency.percentile(primaryKey, 0.5)
+                + " p99=" + latency.percentile(primaryKey, 0.99) + " n=" + latency.count(primaryKey)
+                + " circuit=" + breaker(primaryKey).state().name().toLowerCase() + " fastfail=" + fastFails.get();
+    }
+
+    // Short status for the overlay; empty while the primary endpoint is healthy.
+    public String healthLine() {
+        CircuitBreaker breaker = breaker(primaryKey);
+        switch (breaker.state()) {
+            case OPEN:
+                return "circuit open " + ((breaker.remainingOpenMs() + 999L) / 1000L) + "s";
+            case HALF_OPEN:
+                return "circuit half-open";
+            default:
+                return "";
+        }
+    }
+
+    private LLMResult route(LLMRequest request) throws InterruptedException {
+        List<Endpoint> chain = Endpoint.chain(request);
+        primaryKey = chain.get(0).key();
+        primaryLabel = chain.get(0).label();
+        if (chain.size() == 1) {
+            return attempt(request, chain.get(0), true);
+        }
+        String policy = ModConfig.endpointPolicy == null ? "" : ModConfig.endpointPolicy.trim().toLowerCase();
+        if ("hedge".equals(policy)) {
+            return hedge(request, chain);
+        }
+        return failover(request, chain);
+    }
+
+    // One retry with a larger budget after the answer was cut off by max_tokens; keeps the salvaged
+    // answer if the retry does no better.
+    // The retry is a second full call, so it takes its own limiter slot; when shed, the cut-off answer stands.
+    private LLMResult escalate(LLMRequest request, LLMResult cutOff, RequestPriority priority)
+            throws InterruptedException {
+        if (limiter.tryAcquire(request, primaryKeyOf(request), priority) != null) {
+            return cutOff;
+        }
+        request.maxTokens = OutputBudget.escalate(request.maxTokens);
+        if (request.partial != null) {
+            request.partial.reset();
+        }
+        LLMResult retry = route(request);
+        OutputBudget.record(request.contextType, retry, request.maxTokens);
+        limiter.recordUsage(request, retry);
+        return retry != null && retry.ok ? retry : cutOff;
+    }
+
+    private static boolean isCutOff(LLMResult result) {
+        return result != null && ResponseParser.isTruncation(result.finishReason)
+                && (!result.ok || result.partial);
+    }
+
+    // Tries the endpoints one after another until one succeeds.
+    private LLMResult failover(LLMRequest request, List<Endpoint> chain) throws InterruptedException {
+        LLMResult first = null;
+        for (int i = 0; i < chain.size(); i++) {
+            if (CancelToken.isCancelled(request.cancelToken)) {
+                return LLMResult.failure("canceled", null);
+            }
+            if (i > 0) {
+                failovers.incrementAndGet();
+                if (request.partial != null) {
+                    request.partial.reset();
+                }
+            }
+            LLMResult result = attempt(request, chain.get(i), true);
+            if (result != null && result.ok) {
+                return result;
+            }
+            if (first == null) {
+                first = result;
+            }
+        }
+        return first;
+    }
+
+    // Starts the primary; if it has not answered after a delay derived from its median latency (or it
+    // failed), the next endpoint is started as well. The first success wins and the rest are cancelled.
+    private LLMResult hedge(LLMRequest request, List<Endpoint> chain) throws InterruptedException {
+        CompletionService<LLMResult> done = new ExecutorCompletionService<>(attempts);
+        List<Future<LLMResult>> running = new ArrayList<>();
+        List<Future<LLMResult>> hedged = new ArrayList<>();
+        List<CancelToken> tokens = new ArrayList<>();
+        long delayMs = hedgeDelayMs(chain.get(0));
+        LLMResult first = null;
+        int next = 0;
+        int outstanding = 0;
+        try {
+            running.add(done.submit(attemptTask(request, chain.get(next++), true, tokens)));
+            outstanding++;
+            while (outstanding > 0) {
+                Future<LLMResult> finished;
+                if (next < chain.size()) {
+                    finished = done.poll(delayMs, TimeUnit.MILLISECONDS);
+                    if (finished == null) {
+                        hedgesFired.incrementAndGet();
+                        Future<LLMResult> hedge = done.submit(attemptTask(request, chain.get(next++), false, tokens));
+                        running.add(hedge);
+                        hedged.add(hedge);
+                        outstanding++;
+                        continue;
+                    }
+                } else {
+                    finished = done.take();
+                }
+                outstanding--;
+                LLMResult result = resultOf(finished);
+                if (result != null && result.ok) {
+                    if (hedged.contains(finished)) {
+                        hedgesWon.incrementAndGet();
+                    }
+                    return result;
+                }
+                if (first == null || finished == running.get(0)) {
+                    first = result;
+                }
+                if (next < chain.size()) {
+                    failovers.incrementAndGet();
+                    running.add(done.submit(attemptTask(request, chain.get(next++), false, tokens)));
+                    outstanding++;
+                }
+            }
+            return first;
+        } finally {
+            // Losers are cut off at the socket, not just interrupted.
+            for (CancelToken token : tokens) {
+                token.cancel();
+            }
+            for (Future<LLMResult> future : running) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private long hedgeDelayMs(Endpoint primary) {
+        long p50 = latency.percentile(primary.key(), 0.5);
+        if (p50 < 0) {
+            return HEDGE_DEFAULT_DELAY_MS;
+        }
+        return Math.max(HEDGE_MIN_DELAY_MS, (long) (p50 * HEDGE_DELAY_FACTOR));
+    }
+
+    private Callable<LLMResult> attemptTask(LLMRequest request, Endpoint endpoint, boolean primary, List<CancelToken> tokens) {
+        CancelToken token = request.cancelToken == null ? new CancelToken() : request.cancelToken.child();
+        tokens.add(token);
+        return () -> attempt(request, endpoint, primary, token);
+    }
+
+    private LLMResult attempt(LLMRequest request, Endpoint endpoint, boolean streamToOverlay) {
+        return attempt(request, endpoint, streamToOverlay, request.cancelToken);
+    }
+
+    private LLMResult attempt(LLMRequest request, Endpoint endpoint, boolean streamToOverlay, CancelToken token) {
+        CircuitBreaker breaker = breaker(endpoint.key());
+        if (!breaker.allowRequest()) {
+            // Failing fast lets failover/hedge move straight on to the next endpoint.
+            fastFails.incrementAndGet();
+            LLMResult open = LLMResult.failure("circuit_open:" + endpoint.label(), null);
+            open.endpoint = endpoint.label();
+            return open;
+        }
+        long blockedMs = limiter.blockedMs(endpoint.key());
+        if (blockedMs > 0) {
+            // Still inside the provider's Retry-After window; sending now would only earn another 429.
+            LLMResult limited = LLMResult.failure("rate_limited:retry_after " + ((blockedMs + 999L) / 1000L) + "s", null);
+            limited.endpoint = endpoint.label();
+            return limited;
+        }
+        LLMRequest routed = endpoint.apply(request);
+        routed.cancelToken = token;
+        routed.timeoutMs = adaptiveTimeoutMs(endpoint, request.timeoutMs);
+        routed.connectTimeoutMs = Math.min(request.timeoutMs, MAX_CONNECT_TIMEOUT_MS);
+        if (!streamToOverlay) {
+            // Only one attempt may write into the overlay's partial view; hedges stream privately.
+            routed.partial = null;
+        }
+        long start = System.currentTimeMillis();
+        LLMResult result = null;
+        long delayMs = 0L;
+        // The breaker sees one outcome per attempt, the one left after retries: transient errors the
+        // retries got past must not open the circuit for every other request.
+        try {
+            for (int tries = 1; ; tries++) {
+                start = System.currentTimeMillis();
+                // Cleared first so that a throwing dispatch is recorded as a failure.
+                result = null;
+                result = dispatch(endpoint, routed);
+                if (result != null && "http_error:429".equals(result.errorMessage)) {
+                    limiter.backOff(endpoint.key(), result.retryAfterMs);
+                }
+                if (tries >= RetryPolicy.maxAttempts() || !RetryPolicy.isRetryable(result) || CancelToken.isCancelled(token)) {
+                    break;
+                }
+                // After a 429 the endpoint stays blocked (10s without Retry-After); retrying sooner only
+                // earns another 429, and if the block outlasts the deadline failover moves on instead.
+                delayMs = RetryPolicy.nextDelayMs(delayMs, result, limiter.blockedMs(endpoint.key()), request.deadlineMs);
+                if (delayMs < 0 || !RetryPolicy.await(token, delayMs)) {
+                    break;
+                }
+                retries.incrementAndGet();
+                if (routed.partial != null) {
+                    routed.partial.reset();
+                }
+                if (request.deadlineMs > 0) {
+                    long remaining = request.deadlineMs - System.currentTimeMillis();
+                    routed.timeoutMs = (int) Math.max(1L, Math.min(routed.timeoutMs, remaining));
+                }
+            }
+        } finally {
+            recordOutcome(breaker, result, token);
+        }
+        if (result != null && result.ok) {
+            latency.record(endpoint.key(), System.currentTimeMillis() - start);
+            limiter.recordSuccess(endpoint.key());
+            if (delayMs > 0) {
+                retriesWon.incrementAndGet();
+            }
+        }
+        PromptCacheStats.record(result);
+        if (result != null) {
+            result.endpoint = endpoint.label();
+        }
+        return result;
+    }
+
+    private LLMResult dispatch(Endpoint endpoint, LLMRequest routed) {
+        if (endpoint.isOllama()) {
+            warmer.touch(endpoint);
+            return ollamaClient.complete(routed);
+        }
+        return endpoint.isGemini() ? geminiClient.complete(routed) : openaiClient.complete(routed);
+    }
+
+    // Starts a background calibration run when ModelRouter asks for one (enabled and missing, stale
+    // or made for other candidates). Candidates come from calibrationCandidates, best first, or else
+    // the primary settings followed by fallbackEndpoints.
+    private void maybeCalibrate() {
+        if (!ModConfig.modelCalibration || calibrating.get()) {
+            return;
+        }
+        List<Endpoint> candidates = Endpoint.calibrationCandidates();
+        StringBuilder key = new StringBuilder();
+        for (Endpoint candidate : candidates) {
+            key.append(candidate.key()).append(';');
+        }
+        String candidatesKey = key.toString();
+        if (candidates.isEmpty() || !ModelRouter.calibrationDue(candidatesKey) || !calibrating.compareAndSet(false, true)) {
+            return;
+        }
+        attempts.submit(() -> {
+            try {
+                calibrate(candidatesKey, candidates);
+            } finally {
+                calibrating.set(false);
             }
-            return openaiClient.complete(request);
         });
     }
+
+    // Measures time to first token and decode speed per candidate, then estimates each context's
+    // latency as ttft + typical answer size / speed. Probes bypass the breakers and latency stats.
+    private void calibrate(String candidatesKey, List<Endpoint> candidates) {
+        Map<String, long[]> estimates = new HashMap<>();
+        for (String context : ModelRouter.CONTEXTS) {
+            estimates.put(context, new long[candidates.size()]);
+        }
+        for (int i = 0; i < candidates.size(); i++) {
+            Endpoint candidate = candidates.get(i);
+            long ttftSum = 0L;
+            double rateSum = 0.0;
+            int measured = 0;
+            for (int probe = 0; probe < CALIBRATION_PROBES; probe++) {
+                long start = System.currentTimeMillis();
+                LLMResult result = dispatch(candidate, candidate.apply(probeRequest()));
+                long elapsed = System.currentTimeMillis() - start;
+                if (result == null || !result.ok || result.completionTokens == null || result.completionTokens <= 0) {
+                    continue;
+                }
+                long ttft = result.firstTokenMs > 0 ? result.firstTokenMs : elapsed;
+                long decodeMs = Math.max(1L, elapsed - ttft);
+                ttftSum += ttft;
+                rateSum += result.completionTokens * 1000.0 / decodeMs;
+                measured++;
+            }
+            if (measured == 0) {
+                if (ModConfig.debugShowSnapshot) {
+                    System.err.println("WhispersTheSpire: calibration " + candidate.label() + " failed");
+                }
+                continue;
+            }
+            long ttft = ttftSum / measured;
+            double rate = Math.max(1.0, rateSum / measured);
+            if (ModConfig.debugShowSnapshot) {
+                System.err.println("WhispersTheSpire: calibration " + candidate.label() + " ttft=" + ttft + "ms rate="
+                        + Math.round(rate) + "tok/s");
+            }
+            for (String context : ModelRouter.CONTEXTS) {
+                int tokens = OutputBudget.typicalTokens(screenContextOf(context), CALIBRATION_DEFAULT_ANSWER_TOKENS);
+                estimates.get(context)[i] = ttft + (long) (tokens * 1000.0 / rate);
+            }
+        }
+        ModelRouter.storeCalibration(candidatesKey, candidates, estimates);
+    }
+
+    private static LLMRequest probeRequest() {
+        LLMRequest probe = new LLMRequest();
+        probe.temperature = ModConfig.temperature;
+        probe.maxTokens = CALIBRATION_MAX_TOKENS;
+        probe.timeoutMs = ModConfig.timeoutMs;
+        probe.connectTimeoutMs = Math.min(ModConfig.timeoutMs, MAX_CONNECT_TIMEOUT_MS);
+        probe.structuredOutput = ModConfig.structuredOutput;
+        probe.stream = true;
+        probe.contextType = "NONE";
+        probe.snapshotJson = "{}";
+        probe.snapshotHash = "calibration";
+        return probe;
+    }
+
+    // OutputBudget keys its samples by screen context.
+    private static String screenContextOf(String routeContext) {
+        if ("COMBAT_TURN".equals(routeContext)) {
+            return "COMBAT";
+        }
+        return "MAP_PATH".equals(routeContext) ? "MAP" : routeContext;
+    }
+
+    private static String primaryKeyOf(LLMRequest request) {
+        return new Endpoint(request.provider == null ? ModConfig.provider : request.provider,
+                request.baseUrl, request.model, request.apiKey).key();
+    }
+
+    private int adaptiveTimeoutMs(Endpoint endpoint, int configuredMs) {
+        if (configuredMs <= 0 || latency.count(endpoint.key()) < ADAPTIVE_MIN_SAMPLES) {
+            return configuredMs;
+        }
+        long p99 = latency.percentile(endpoint.key(), 0.99);
+        if (p99 < 0) {
+            return configuredMs;
+        }
+        // Never looser than the user's setting, never so tight that a normal slow answer is cut off.
+        long adaptive = Math.max(ADAPTIVE_MIN_TIMEOUT_MS, (long) (p99 * ADAPTIVE_TIMEOUT_FACTOR));
+        return (int) Math.min(configuredMs, adaptive);
+    }
+
+    private static void recordOutcome(CircuitBreaker breaker, LLMResult result, CancelToken token) {
+        if (CancelToken.isCancelled(token) || (result != null && "canceled".equals(result.errorMessage))) {
+            breaker.recordAbandoned();
+        } else if (result == null || (!result.ok && isTransportFailure(result.errorMessage))) {
+            breaker.recordFailure();
+        } else {
+            // A parse failure still proves the endpoint is up.
+            breaker.recordSuccess();
+        }
+    }
+
+    private static boolean isTransportFailure(String error) {
+        if (error == null) {
+            return true;
+        }
+        if (error.startsWith("http_error:")) {
+            String code = error.substring("http_error:".length());
+            // A 429 means the endpoint is up but out of quota; RateLimiter.backOff handles it.
+            return code.startsWith("5");
+        }
+        return error.startsWith("request_failed") || error.startsWith("curl_error") || error.startsWith("stream_error");
+    }
+
+    private CircuitBreaker breaker(String key) {
+        synchronized (breakers) {
+            CircuitBreaker breaker = breakers.get(key);
+            if (breaker == null) {
+                breaker = new CircuitBreaker();
+                breakers.put(key, breaker);
+            }
+            return breaker;
+        }
+    }
+
+    private static LLMResult resultOf(Future<LLMResult> future) {
+        try {
+            return future.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause() == null ? e : e.getCause();
+            return LLMResult.failure("request_failed:" + cause.getClass().getSimpleName(), null);
+        } catch (Exception e) {
+            return LLMResult.failure("request_failed:" + e.getClass().getSimpleName(), null);
+        }
+    }
 }
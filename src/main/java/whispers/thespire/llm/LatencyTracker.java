@@ -0,0 +1,34 @@
+package whispers.thespire.llm;
+
+import whispers.thespire.util.LatencyHistogram;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Successful round-trip times per endpoint (provider + baseUrl + model). Feeds the hedge delay and
+// the adaptive read timeout.
+public class LatencyTracker {
+    private final Map<String, LatencyHistogram> histograms = new HashMap<>();
+
+    public void record(String key, long elapsedMs) {
+        histogram(key).record(elapsedMs);
+    }
+
+    public long count(String key) {
+        return histogram(key).count();
+    }
+
+    // Returns -1 until the endpoint has answered at least once.
+    public long percentile(String key, double p) {
+        return histogram(key).percentile(p);
+    }
+
+    private synchronized LatencyHistogram histogram(String key) {
+        LatencyHistogram histogram = histograms.get(key);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            histograms.put(key, histogram);
+        }
+        return histogram;
+    }
+}
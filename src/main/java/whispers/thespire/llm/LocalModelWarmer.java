@@ -0,0 +1,75 @@
+package whispers.thespire.llm;
+
+import whispers.thespire.config.ModConfig;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Keeps local Ollama models loaded: pings each one shortly after start-up (so the first real request
+// does not pay the load time) and again whenever nothing has used it for localKeepWarmSec. Covers the
+// main settings, fallbackEndpoints and models ModelRouter routes a context to; idles when none of
+// them is local.
+public class LocalModelWarmer {
+    private static final long TICK_SEC = 15L;
+    private static final long FIRST_TICK_SEC = 5L;
+    private static final int PING_TIMEOUT_MS = 60000;
+
+    private final ScheduledExecutorService timer;
+    private final AtomicLong pings = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    // Last request or ping per baseUrl|model.
+    private final Map<String, Long> lastUseMs = new ConcurrentHashMap<>();
+
+    public LocalModelWarmer() {
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "WhispersTheSpire-Warmer");
+            t.setDaemon(true);
+            return t;
+        });
+        timer.scheduleWithFixedDelay(this::tick, FIRST_TICK_SEC, TICK_SEC, TimeUnit.SECONDS);
+    }
+
+    // A real request keeps the model loaded just as well as a ping.
+    public void touch(Endpoint endpoint) {
+        lastUseMs.put(modelKey(endpoint), System.currentTimeMillis());
+    }
+
+    public String statsLine() {
+        long total = pings.get();
+        return total == 0 ? "" : "warm pings=" + total + " failed=" + failed.get();
+    }
+
+    private void tick() {
+        if (ModConfig.localKeepWarmSec <= 0) {
+            return;
+        }
+        for (Endpoint endpoint : ModelRouter.localEndpoints()) {
+            warm(endpoint);
+        }
+    }
+
+    private void warm(Endpoint endpoint) {
+        // A model that was never used (a new one, or another server) has to be loaded, so ping it right away.
+        String key = modelKey(endpoint);
+        Long last = lastUseMs.get(key);
+        if (last != null && System.currentTimeMillis() - last < ModConfig.localKeepWarmSec * 1000L) {
+            return;
+        }
+        pings.incrementAndGet();
+        if (OllamaClient.ping(endpoint.baseUrl, endpoint.model, PING_TIMEOUT_MS)) {
+            touch(endpoint);
+        } else {
+            failed.incrementAndGet();
+            // Retry on the next tick rather than hammering a server that is not up yet.
+            lastUseMs.put(key, System.currentTimeMillis() - ModConfig.localKeepWarmSec * 1000L + TICK_SEC * 1000L);
+        }
+    }
+
+    private static String modelKey(Endpoint endpoint) {
+        return endpoint.baseUrl + "|" + endpoint.model;
+    }
+}
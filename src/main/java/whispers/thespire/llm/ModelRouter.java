@@ -0,0 +1,372 @@
+package whispers.thespire.llm;
+
+import com.evacipated.cardcrawl.modthespire.lib.ConfigUtils;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import whispers.thespire.config.ModConfig;
+import whispers.thespire.llm.model.LLMRequest;
+import whispers.thespire.llm.model.LLMResult;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Picks the model for each decision type and tracks a latency SLO for it. Routes come from
+// ModConfig.modelRoutes ("CONTEXT=provider|baseUrl|model|apiKey|sloMs" entries separated by ';',
+// empty fields inherit the main settings) and, for contexts without an explicit route, from the
+// last calibration run (model_routes.json, which holds no API keys: a calibrated route takes the key
+// of the matching candidate in the current config). Every answered request is counted as meeting
+// or missing its context's SLO (statsLine()).
+public class ModelRouter {
+    public static final String[] CONTEXTS = {
+            "COMBAT_TURN", "CARD_REWARD", "MAP_PATH", "SHOP", "BOSS_RELIC", "REST", "EVENT", "NEOW", "POTION_OVERFLOW"
+    };
+    private static final long[] DEFAULT_SLO_MS = {1000L, 3000L, 6000L, 3000L, 6000L, 3000L, 3000L, 6000L, 1000L};
+    // Calibration results are reused until the candidates change or they get this old.
+    private static final long CALIBRATION_TTL_MS = 24L * 60L * 60L * 1000L;
+
+    private static final Object LOCK = new Object();
+    private static final Gson GSON = new GsonBuilder().create();
+
+    private static boolean loaded = false;
+    private static String parsedSpec = null;
+    private static Map<String, Route> configured = new LinkedHashMap<>();
+    private static RouteStore calibrated = new RouteStore();
+    private static final Map<String, long[]> outcomes = new LinkedHashMap<>();
+
+    private ModelRouter() {}
+
+    // Maps a trigger (COMBAT_TURN, MAP_PATH, ...) or, failing that, a screen context to a route key.
+    public static String routeKey(String routeContext, String contextType) {
+        if (indexOf(routeContext) >= 0) {
+            return routeContext;
+        }
+        String screen = contextType == null ? "" : contextType.trim().toUpperCase();
+        if ("COMBAT".equals(screen)) {
+            return "COMBAT_TURN";
+        }
+        if ("MAP".equals(screen)) {
+            return "MAP_PATH";
+        }
+        return indexOf(screen) >= 0 ? screen : null;
+    }
+
+    // Rewrites the request's endpoint for its route and sets its SLO.
+    public static void apply(LLMRequest request) {
+        String key = routeKey(request.routeContext, request.contextType);
+        request.routeContext = key;
+        if (key == null) {
+            request.sloMs = 0L;
+            return;
+        }
+        Route route = routeFor(key);
+        request.sloMs = route != null && route.sloMs > 0 ? route.sloMs : defaultSlo(key);
+        if (route == null) {
+            return;
+        }
+        if (!isBlank(route.provider)) {
+            request.provider = route.provider.trim();
+        }
+        if (!isBlank(route.baseUrl)) {
+            request.baseUrl = route.baseUrl.trim();
+        }
+        if (!isBlank(route.model)) {
+            request.model = route.model.trim();
+        }
+        if (!isBlank(route.apiKey)) {
+            request.apiKey = route.apiKey.trim();
+        }
+    }
+
+    // Provider that answers requests for a screen (or trigger) once routed; the main one otherwise.
+    public static String providerFor(String routeContext, String contextType) {
+        String key = routeKey(routeContext, contextType);
+        Route route = key == null ? null : routeFor(key);
+        return route != null && !isBlank(route.provider) ? route.provider.trim() : ModConfig.provider;
+    }
+
+    // Every local endpoint a request may go to: the main settings, fallbackEndpoints and the route of
+    // each context, with empty route fields taken from the main settings.
+    public static List<Endpoint> localEndpoints() {
+        Map<String, Endpoint> found = new LinkedHashMap<>();
+        LLMRequest main = new LLMRequest();
+        main.provider = ModConfig.provider;
+        main.baseUrl = ModConfig.baseUrl;
+        main.model = ModConfig.model;
+        for (Endpoint endpoint : Endpoint.chain(main)) {
+            addLocal(found, endpoint);
+        }
+        for (String context : CONTEXTS) {
+            Route route = routeFor(context);
+            if (route == null) {
+                continue;
+            }
+            addLocal(found, new Endpoint(
+                    isBlank(route.provider) ? ModConfig.provider : route.provider,
+                    isBlank(route.baseUrl) ? ModConfig.baseUrl : route.baseUrl,
+                    isBlank(route.model) ? ModConfig.model : route.model, ""));
+        }
+        return new ArrayList<>(found.values());
+    }
+
+    private static void addLocal(Map<String, Endpoint> found, Endpoint endpoint) {
+        if (endpoint.isOllama() && !endpoint.model.isEmpty()) {
+            found.put(endpoint.key(), endpoint);
+        }
+    }
+
+    public static void recordOutcome(LLMRequest request, LLMResult result, long elapsedMs) {
+        if (request.routeContext == null || request.sloMs <= 0 || result == null || !result.ok || result.fromCache) {
+            return;
+        }
+        boolean met = elapsedMs <= request.sloMs;
+        synchronized (LOCK) {
+            long[] counts = outcomes.get(request.routeContext);
+            if (counts == null) {
+                counts = new long[2];
+                outcomes.put(request.routeContext, counts);
+            }
+            counts[met ? 0 : 1]++;
+        }
+    }
+
+    public static String statsLine() {
+        synchronized (LOCK) {
+            if (outcomes.isEmpty()) {
+                return "slo n/a";
+            }
+            StringBuilder sb = new StringBuilder("slo");
+            for (Map.Entry<String, long[]> entry : outcomes.entrySet()) {
+                long[] counts = entry.getValue();
+                sb.append(' ').append(entry.getKey()).append('=').append(counts[0]).append('/').append(counts[0] + counts[1]);
+            }
+            return sb.toString();
+        }
+    }
+
+    public static long defaultSlo(String key) {
+        int index = indexOf(key);
+        return index < 0 ? 0L : DEFAULT_SLO_MS[index];
+    }
+
+    public static long sloFor(String key) {
+        Route route = routeFor(key);
+        return route != null && route.sloMs > 0 ? route.sloMs : defaultSlo(key);
+    }
+
+    // Calibration is due when it is enabled and the stored result is missing, stale or was made for
+    // a different candidate list.
+    public static boolean calibrationDue(String candidatesKey) {
+        if (!ModConfig.modelCalibration) {
+            return false;
+        }
+        ensureLoaded();
+        synchronized (LOCK) {
+            return calibrated.candidates == null || !calibrated.candidates.equals(candidatesKey)
+                    || System.currentTimeMillis() - calibrated.calibratedAt > CALIBRATION_TTL_MS;
+        }
+    }
+
+    // Candidates are listed best first; each context gets the first one whose estimated latency meets
+    // its SLO, or the fastest one when none does.
+    public static void storeCalibration(String candidatesKey, List<Endpoint> candidates, Map<String, long[]> estimates) {
+        RouteStore store = new RouteStore();
+        store.candidates = candidatesKey;
+        store.calibratedAt = System.currentTimeMillis();
+        for (String context : CONTEXTS) {
+            long[] perCandidate = estimates.get(context);
+            if (perCandidate == null) {
+                continue;
+            }
+            long slo = sloFor(context);
+            int chosen = -1;
+            int fastest = -1;
+            for (int i = 0; i < candidates.size(); i++) {
+                if (perCandidate[i] <= 0) {
+                    continue;
+                }
+                if (fastest < 0 || perCandidate[i] < perCandidate[fastest]) {
+                    fastest = i;
+                }
+                if (chosen < 0 && perCandidate[i] <= slo) {
+                    chosen = i;
+                }
+            }
+            int pick = chosen >= 0 ? chosen : fastest;
+            if (pick < 0) {
+                continue;
+            }
+            Endpoint endpoint = candidates.get(pick);
+            Route route = new Route();
+            route.provider = endpoint.provider;
+            route.baseUrl = endpoint.baseUrl;
+            route.model = endpoint.model;
+            store.routes.put(context, route);
+            if (ModConfig.debugShowSnapshot) {
+                System.err.println("WhispersTheSpire: calibration " + context + " -> " + endpoint.label() + " est="
+                        + perCandidate[pick] + "ms slo=" + slo + "ms" + (chosen >= 0 ? "" : " (none meets slo, fastest)"));
+            }
+        }
+        synchronized (LOCK) {
+            calibrated = store;
+            save(store);
+        }
+    }
+
+    private static Route routeFor(String key) {
+        ensureLoaded();
+        synchronized (LOCK) {
+            String spec = ModConfig.modelRoutes == null ? "" : ModConfig.modelRoutes;
+            if (!spec.equals(parsedSpec)) {
+                configured = parse(spec);
+                parsedSpec = spec;
+            }
+            Route route = configured.get(key);
+            Route fromCalibration = ModConfig.modelCalibration ? withCurrentKey(calibrated.routes.get(key)) : null;
+            if (route == null) {
+                return fromCalibration;
+            }
+            if (fromCalibration != null && isBlank(route.model)) {
+                // An SLO-only entry still takes the calibrated model.
+                Route merged = new Route();
+                merged.provider = fromCalibration.provider;
+                merged.baseUrl = fromCalibration.baseUrl;
+                merged.model = fromCalibration.model;
+                merged.apiKey = fromCalibration.apiKey;
+                merged.sloMs = route.sloMs;
+                return merged;
+            }
+            return route;
+        }
+    }
+
+    // A copy of a calibrated route with the API key its endpoint has in the current config, so a
+    // rotated key takes effect at once; null when that endpoint is no longer configured, rather than
+    // sending some other endpoint's key to its host.
+    private static Route withCurrentKey(Route route) {
+        if (route == null) {
+            return null;
+        }
+        String key = route.provider + "|" + route.baseUrl + "|" + route.model;
+        for (Endpoint endpoint : Endpoint.calibrationCandidates()) {
+            if (endpoint.key().equals(key)) {
+                Route resolved = new Route();
+                resolved.provider = route.provider;
+                resolved.baseUrl = route.baseUrl;
+                resolved.model = route.model;
+                resolved.apiKey = endpoint.apiKey;
+                resolved.sloMs = route.sloMs;
+                return resolved;
+            }
+        }
+        return null;
+    }
+
+    static Map<String, Route> parse(String spec) {
+        Map<String, Route> routes = new LinkedHashMap<>();
+        for (String entry : spec.split(";")) {
+            int eq = entry.indexOf('=');
+            if (eq <= 0) {
+                continue;
+            }
+            String context = entry.substring(0, eq).trim().toUpperCase();
+            if (indexOf(context) < 0) {
+                continue;
+            }
+            String[] parts = entry.substring(eq + 1).split("\\|", -1);
+            Route route = new Route();
+            route.provider = parts.length > 0 ? parts[0].trim() : "";
+            route.baseUrl = parts.length > 1 ? parts[1].trim() : "";
+            route.model = parts.length > 2 ? parts[2].trim() : "";
+            route.apiKey = parts.length > 3 ? parts[3].trim() : "";
+            try {
+                route.sloMs = parts.length > 4 && !parts[4].trim().isEmpty() ? Long.parseLong(parts[4].trim()) : 0L;
+            } catch (NumberFormatException e) {
+                route.sloMs = 0L;
+            }
+            routes.put(context, route);
+        }
+        return routes;
+    }
+
+    private static int indexOf(String context) {
+        if (context == null) {
+            return -1;
+        }
+        for (int i = 0; i < CONTEXTS.length; i++) {
+            if (CONTEXTS[i].equals(context)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isBlank(String value) {
+        return value == null || value.trim().isEmpty();
+    }
+
+    private static void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (LOCK) {
+            if (loaded) {
+                return;
+            }
+            loaded = true;
+            File file = getFile();
+            if (!file.exists()) {
+                return;
+            }
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                RouteStore store = GSON.fromJson(reader, RouteStore.class);
+                if (store != null && store.routes != null) {
+                    calibrated = store;
+                }
+            } catch (Exception ignored) {
+                calibrated = new RouteStore();
+            }
+        }
+    }
+
+    private static void save(RouteStore store) {
+        try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(getFile()), StandardCharsets.UTF_8))) {
+            writer.write(GSON.toJson(store));
+        } catch (Exception ignored) {
+            // ignore save errors
+        }
+    }
+
+    private static File getFile() {
+        String base = ConfigUtils.CONFIG_DIR;
+        File dir = new File(base, "WhispersTheSpire");
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        return new File(dir, "model_routes.json");
+    }
+
+    static class Route {
+        String provider;
+        String baseUrl;
+        String model;
+        // Only set for modelRoutes entries and resolved calibrated routes; never written to disk.
+        transient String apiKey;
+        long sloMs;
+    }
+
+    private static class RouteStore {
+        String candidates;
+        long calibratedAt;
+        Map<String, Route> routes = new LinkedHashMap<>();
+    }
+}
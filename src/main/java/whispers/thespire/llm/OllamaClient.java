@@ -0,0 +1,227 @@
+package whispers.thespire.llm;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import whispers.thespire.config.ModConfig;
+import whispers.thespire.llm.model.LLMPartial;
+import whispers.thespire.llm.model.LLMRequest;
+import whispers.thespire.llm.model.LLMResult;
+import whispers.thespire.util.CancelToken;
+import whispers.thespire.util.JsonBytes;
+import whispers.thespire.util.JsonUtil;
+
+import java.io.BufferedReader;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
+
+// Local models served by Ollama's native API (POST /api/generate, newline-delimited JSON stream).
+// keep_alive asks the server to keep the model in memory between requests; LocalModelWarmer pings
+// it while the game is idle. llama.cpp's server speaks the OpenAI protocol and goes through
+// OpenAICompatClient instead.
+public class OllamaClient {
+    public static final String DEFAULT_BASE_URL = "http://localhost:11434";
+
+    private static final ThreadLocal<JsonBytes> BODY = ThreadLocal.withInitial(JsonBytes::new);
+
+    public LLMResult complete(LLMRequest request) {
+        if (request == null) {
+            return LLMResult.failure("request_null", null);
+        }
+        if (request.model == null || request.model.trim().isEmpty()) {
+            return LLMResult.failure("model missing", null);
+        }
+        String url = normalizeBaseUrl(request.baseUrl) + "/api/generate";
+        try {
+            return executeOnce(request, url);
+        } catch (Exception e) {
+            if (CancelToken.isCancelled(request.cancelToken)) {
+                return LLMResult.failure("canceled", null);
+            }
+            return LLMResult.failure("request_failed:" + e.getClass().getSimpleName(), null);
+        }
+    }
+
+    // Loads the model (or extends its keep_alive) without generating anything.
+    public static boolean ping(String baseUrl, String model, int timeoutMs) {
+        HttpURLConnection conn = null;
+        try {
+            conn = HttpTransport.openPost(normalizeBaseUrl(baseUrl) + "/api/generate", Math.min(timeoutMs, 2000), timeoutMs, false);
+            conn.setRequestProperty("Content-Type", "application/json");
+            JsonBytes body = new JsonBytes(256);
+            body.ascii("{\"model\":").string(model.trim()).ascii(",\"keep_alive\":");
+            writeKeepAlive(body);
+            body.ascii("}");
+            conn.setFixedLengthStreamingMode(body.size());
+            try (OutputStream out = conn.getOutputStream()) {
+                body.writeTo(out);
+            }
+            int code = conn.getResponseCode();
+            InputStream stream = code >= 200 && code < 300 ? conn.getInputStream() : conn.getErrorStream();
+            HttpTransport.readBody(stream);
+            return code >= 200 && code < 300;
+        } catch (Exception e) {
+            HttpTransport.discard(conn);
+            return false;
+        }
+    }
+
+    private static LLMResult executeOnce(LLMRequest request, String url) throws Exception {
+        if (CancelToken.isCancelled(request.cancelToken)) {
+            throw new InterruptedIOException("canceled");
+        }
+        HttpURLConnection conn = null;
+        Runnable abort = null;
+        boolean completed = false;
+        try {
+            conn = HttpTransport.openPost(url,
+                    request.connectTimeoutMs > 0 ? request.connectTimeoutMs : request.timeoutMs, request.timeoutMs, false);
+            if (request.cancelToken != null) {
+                final HttpURLConnection open = conn;
+                abort = request.cancelToken.onCancel(() -> HttpTransport.abort(open));
+            }
+            conn.setRequestProperty("Content-Type", "application/json");
+            if (request.apiKey != null && !request.apiKey.trim().isEmpty()) {
+                // Only needed when the server sits behind an authenticating proxy.
+                conn.setRequestProperty("Authorization", "Bearer " + request.apiKey.trim());
+            }
+
+            JsonBytes body = BODY.get().reset();
+            writeRequestBody(request, body);
+            conn.setFixedLengthStreamingMode(body.size());
+            long sentMs = System.currentTimeMillis();
+            try (OutputStream out = conn.getOutputStream()) {
+                body.writeTo(out);
+            }
+
+            int code = conn.getResponseCode();
+            if (code < 200 || code >= 300) {
+                String response = HttpTransport.readBody(conn.getErrorStream());
+                completed = true;
+                LLMResult failure = LLMResult.failure("http_error:" + code, JsonUtil.truncate(response, 4000));
+                failure.retryAfterMs = HttpTransport.retryAfterMs(conn);
+                return failure;
+            }
+            LLMResult result = readStream(conn.getInputStream(), request.partial, sentMs);
+            completed = true;
+            return result;
+        } finally {
+            if (abort != null) {
+                request.cancelToken.remove(abort);
+            }
+            if (!completed) {
+                HttpTransport.discard(conn);
+            }
+        }
+    }
+
+    private static void writeRequestBody(LLMRequest request, JsonBytes out) {
+        out.ascii("{\"model\":").string(request.model.trim()).ascii(",");
+        PromptBuilder.writeSystemAndPrompt(request, out);
+        out.ascii(",\"stream\":").ascii(request.stream ? "true" : "false");
+        if (request.structuredOutput) {
+            out.ascii(",\"format\":\"json\"");
+        }
+        out.ascii(",\"keep_alive\":");
+        writeKeepAlive(out);
+        out.ascii(",\"options\":{\"temperature\":").ascii(Float.toString(request.temperature))
+                .ascii(",\"num_predict\":").ascii(Integer.toString(request.maxTokens));
+        if (ModConfig.localContextTokens > 0) {
+            out.ascii(",\"num_ctx\":").ascii(Integer.toString(ModConfig.localContextTokens));
+        }
+        out.ascii("}}");
+    }
+
+    // Ollama takes a duration string ("10m") or a number of seconds (-1 keeps the model loaded).
+    private static void writeKeepAlive(JsonBytes out) {
+        String value = ModConfig.localKeepAlive == null ? "" : ModConfig.localKeepAlive.trim();
+        if (value.isEmpty()) {
+            value = "10m";
+        }
+        if (value.matches("-?\\d+")) {
+            out.ascii(value);
+        } else {
+            out.string(value);
+        }
+    }
+
+    // Both the streamed and the single-object answer are read here: each line is one JSON object
+    // carrying the next piece of "response"; the last one has done=true plus usage counters.
+    private static LLMResult readStream(InputStream stream, LLMPartial partial, long sentMs) throws Exception {
+        AdviceParser parser = new AdviceParser();
+        long firstTokenMs = 0L;
+        String finishReason = null;
+        Integer promptTokens = null;
+        Integer completionTokens = null;
+        boolean received = false;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                JsonObject chunk = ResponseParser.parseChunk(line);
+                if (chunk == null) {
+                    continue;
+                }
+                if (chunk.has("error")) {
+                    return LLMResult.failure("stream_error", JsonUtil.truncate(line, 4000));
+                }
+                String delta = string(chunk, "response");
+                if (delta != null && !delta.isEmpty()) {
+                    if (firstTokenMs == 0L) {
+                        firstTokenMs = Math.max(1L, System.currentTimeMillis() - sentMs);
+                    }
+                    received = true;
+                    parser.feed(delta);
+                    parser.publishTo(partial);
+                }
+                if (chunk.has("done") && chunk.get("done").getAsBoolean()) {
+                    finishReason = string(chunk, "done_reason");
+                    promptTokens = integer(chunk, "prompt_eval_count");
+                    completionTokens = integer(chunk, "eval_count");
+                    break;
+                }
+            }
+        }
+        if (!received) {
+            return LLMResult.failure("missing_content_text", null);
+        }
+        LLMResult result = parser.result(finishReason);
+        if (promptTokens != null) {
+            result.promptTokens = promptTokens;
+        }
+        if (completionTokens != null) {
+            result.completionTokens = completionTokens;
+        }
+        result.firstTokenMs = firstTokenMs;
+        return result;
+    }
+
+    private static String string(JsonObject object, String field) {
+        JsonElement value = object.get(field);
+        return value == null || !value.isJsonPrimitive() ? null : value.getAsString();
+    }
+
+    private static Integer integer(JsonObject object, String field) {
+        JsonElement value = object.get(field);
+        return value == null || !value.isJsonPrimitive() ? null : value.getAsInt();
+    }
+
+    static String normalizeBaseUrl(String baseUrl) {
+        String value = baseUrl == null ? "" : baseUrl.trim();
+        if (value.isEmpty()) {
+            return DEFAULT_BASE_URL;
+        }
+        while (value.endsWith("/")) {
+            value = value.substring(0, value.length() - 1);
+        }
+        if (value.endsWith("/v1") || value.endsWith("/api")) {
+            value = value.substring(0, value.length() - value.substring(value.lastIndexOf('/')).length());
+        }
+        return value;
+    }
+}
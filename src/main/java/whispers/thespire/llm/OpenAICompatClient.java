@@ -1,35 +1,25 @@
 package whispers.thespire.llm;
 
-import com.google.gson.Gson;
+import com.google.gson.JsonObject;
+import whispers.thespire.llm.model.LLMPartial;
 import whispers.thespire.llm.model.LLMRequest;
 import whispers.thespire.llm.model.LLMResult;
+import whispers.thespire.util.CancelToken;
+import whispers.thespire.util.JsonBytes;
 import whispers.thespire.util.JsonUtil;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
-import java.security.KeyStore;
-import java.security.SecureRandom;
-import java.security.cert.X509Certificate;
 import java.util.ArrayList;
 import java.util.List;
-import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.SSLHandshakeException;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.TrustManagerFactory;
-import javax.net.ssl.X509TrustManager;
 
 public class OpenAICompatClient {
-    private static final Gson GSON = new Gson();
-    private static boolean sslPropsApplied = false;
+    // Request bodies are written into a per-thread buffer that is reused across requests.
+    private static final ThreadLocal<JsonBytes> BODY = ThreadLocal.withInitial(JsonBytes::new);
 
     public LLMResult complete(LLMRequest request) {
         if (request == null) {
@@ -42,7 +32,6 @@ public class OpenAICompatClient {
             return LLMResult.failure("model missing", null);
         }
 
-        ensureSslProperties();
         String baseUrl = normalizeBaseUrl(request.baseUrl);
         String url = baseUrl + "/chat/completions";
 
@@ -77,112 +66,147 @@ public class OpenAICompatClient {
                 return LLMResult.failure("request_failed:SSLException", null);
             }
         } catch (Exception e) {
+            if (CancelToken.isCancelled(request.cancelToken)) {
+                return LLMResult.failure("canceled", null);
+            }
             return LLMResult.failure("request_failed:" + e.getClass().getSimpleName(), null);
         }
     }
 
     private static LLMResult execute(LLMRequest request, String url, boolean insecure) throws Exception {
+        boolean structured = ResponseSchema.enabledFor(request);
+        LLMResult result = send(request, url, insecure, structured);
+        if (structured && ResponseSchema.isRejection(result)) {
+            LLMResult plain = send(request, url, insecure, false);
+            if (!ResponseSchema.isRejection(plain)) {
+                ResponseSchema.markUnsupported(request);
+                structured = false;
+                result = plain;
+            }
+        }
+        ResponseSchema.recordParse(structured, result);
+        return result;
+    }
+
+    private static LLMResult send(LLMRequest request, String url, boolean insecure, boolean structured) throws Exception {
+        try {
+            return executeOnce(request, url, insecure, structured);
+        } catch (IOException e) {
+            if (CancelToken.isCancelled(request.cancelToken)) {
+                throw new InterruptedIOException("canceled");
+            }
+            if (!HttpTransport.failedOnStaleSocket(e)) {
+                throw e;
+            }
+            // The pooled connection was closed by the server; retry once on a fresh socket.
+            return executeOnce(request, url, insecure, structured);
+        }
+    }
+
+    private static LLMResult executeOnce(LLMRequest request, String url, boolean insecure, boolean structured) throws Exception {
+        if (CancelToken.isCancelled(request.cancelToken)) {
+            throw new InterruptedIOException("canceled");
+        }
         HttpURLConnection conn = null;
+        Runnable abort = null;
+        boolean completed = false;
         try {
-            conn = (HttpURLConnection) new URL(url).openConnection();
-            conn.setRequestMethod("POST");
-            conn.setConnectTimeout(request.timeoutMs);
-            conn.setReadTimeout(request.timeoutMs);
-            conn.setDoOutput(true);
+            conn = HttpTransport.openPost(url,
+                    request.connectTimeoutMs > 0 ? request.connectTimeoutMs : request.timeoutMs, request.timeoutMs, insecure);
+            if (request.cancelToken != null) {
+                final HttpURLConnection open = conn;
+                abort = request.cancelToken.onCancel(() -> HttpTransport.abort(open));
+            }
             conn.setRequestProperty("Content-Type", "application/json");
             conn.setRequestProperty("Authorization", "Bearer " + request.apiKey);
-            applySslSettings(conn, insecure);
 
-            byte[] body = GSON.toJson(PromptBuilder.buildRequestBody(request)).getBytes(StandardCharsets.UTF_8);
-            conn.setFixedLengthStreamingMode(body.length);
-            try (BufferedOutputStream out = new BufferedOutputStream(conn.getOutputStream())) {
-                out.write(body);
+            if (request.stream) {
+                conn.setRequestProperty("Accept", "text/event-stream");
+            }
+            // Without stream_options the stream carries no usage, so prompt-cache hits cannot be seen.
+            JsonBytes body = BODY.get().reset();
+            PromptBuilder.writeChatBody(request, structured, request.stream, request.stream && reportsStreamUsage(url), body);
+            conn.setFixedLengthStreamingMode(body.size());
+            long sentMs = System.currentTimeMillis();
+            try (OutputStream out = conn.getOutputStream()) {
+                body.writeTo(out);
             }
 
-            int code = conn.getResponseCode();
+            int code = HttpTransport.responseCode(conn);
+            if (request.stream && code >= 200 && code < 300 && isEventStream(conn)) {
+                LLMResult result = readChatStream(conn.getInputStream(), request.partial, sentMs);
+                completed = true;
+                return result;
+            }
             InputStream stream = code >= 200 && code < 300 ? conn.getInputStream() : conn.getErrorStream();
-            String response = readAll(stream);
+            String response = HttpTransport.readBody(stream);
+            completed = true;
             if (code < 200 || code >= 300) {
                 String raw = JsonUtil.truncate(response, 4000);
-                return LLMResult.failure("http_error:" + code, raw);
+                LLMResult failure = LLMResult.failure("http_error:" + code, raw);
+                failure.retryAfterMs = HttpTransport.retryAfterMs(conn);
+                return failure;
             }
 
             return ResponseParser.parseChatCompletion(response);
         } finally {
-            if (conn != null) {
-                conn.disconnect();
+            if (abort != null) {
+                request.cancelToken.remove(abort);
+            }
+            if (!completed) {
+                HttpTransport.discard(conn);
             }
         }
     }
 
-    private static void applySslSettings(HttpURLConnection conn, boolean insecure) throws Exception {
-        if (!(conn instanceof HttpsURLConnection)) {
-            return;
-        }
-        HttpsURLConnection https = (HttpsURLConnection) conn;
-        SSLSocketFactory factory = insecure ? buildInsecureFactory() : buildWindowsTrustFactory();
-        if (factory != null) {
-            https.setSSLSocketFactory(factory);
-        }
-        if (insecure) {
-            https.setHostnameVerifier(buildInsecureVerifier());
-        }
-        // Protocol properties are applied globally in ensureSslProperties().
-    }
-
-    private static SSLSocketFactory buildWindowsTrustFactory() {
-        try {
-            KeyStore ks = KeyStore.getInstance("Windows-ROOT");
-            ks.load(null, null);
-            TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-            tmf.init(ks);
-            SSLContext ctx = SSLContext.getInstance("TLSv1.2");
-            ctx.init(null, tmf.getTrustManagers(), new SecureRandom());
-            return new TlsSocketFactory(ctx.getSocketFactory(), new String[] {"TLSv1.2", "TLSv1.1", "TLSv1"});
-        } catch (Exception ignored) {
-            return null;
+    private static LLMResult readChatStream(InputStream stream, LLMPartial partial, long sentMs) throws Exception {
+        AdviceParser parser = new AdviceParser();
+        long firstTokenMs = 0L;
+        String finishReason = null;
+        ResponseParser.Usage usage = null;
+        try (SseReader reader = new SseReader(stream)) {
+            String data;
+            while ((data = reader.nextData()) != null) {
+                if ("[DONE]".equals(data.trim())) {
+                    break;
+                }
+                JsonObject chunk = ResponseParser.parseChunk(data);
+                if (chunk != null && chunk.has("error") && !chunk.has("choices")) {
+                    return LLMResult.failure("stream_error", JsonUtil.truncate(data, 4000));
+                }
+                String reason = ResponseParser.chatFinishReason(chunk);
+                if (reason != null) {
+                    finishReason = reason;
+                }
+                ResponseParser.Usage chunkUsage = ResponseParser.chunkUsage(chunk, "usage", "prompt_tokens", "completion_tokens");
+                if (chunkUsage != null) {
+                    usage = chunkUsage;
+                }
+                String delta = ResponseParser.chatDeltaText(chunk);
+                if (delta == null || delta.isEmpty()) {
+                    continue;
+                }
+                if (firstTokenMs == 0L) {
+                    firstTokenMs = Math.max(1L, System.currentTimeMillis() - sentMs);
+                }
+                parser.feed(delta);
+                parser.publishTo(partial);
+            }
         }
+        LLMResult result = ResponseParser.withUsage(parser.result(finishReason), usage);
+        result.firstTokenMs = firstTokenMs;
+        return result;
     }
 
-    private static SSLSocketFactory buildInsecureFactory() {
-        try {
-            TrustManager[] trustAll = new TrustManager[] {
-                    new X509TrustManager() {
-                        @Override
-                        public void checkClientTrusted(X509Certificate[] chain, String authType) {}
-
-                        @Override
-                        public void checkServerTrusted(X509Certificate[] chain, String authType) {}
-
-                        @Override
-                        public X509Certificate[] getAcceptedIssuers() {
-                            return new X509Certificate[0];
-                        }
-                    }
-            };
-            SSLContext ctx = SSLContext.getInstance("TLSv1.2");
-            ctx.init(null, trustAll, new SecureRandom());
-            return new TlsSocketFactory(ctx.getSocketFactory(), new String[] {"TLSv1.2", "TLSv1.1", "TLSv1"});
-        } catch (Exception ignored) {
-            return null;
-        }
+    // Some OpenAI-compatible servers reject unknown parameters; only send stream_options where it is known to work.
+    private static boolean reportsStreamUsage(String url) {
+        String lower = url.toLowerCase();
+        return lower.contains("api.openai.com") || lower.contains("api.deepseek.com");
     }
 
-    private static HostnameVerifier buildInsecureVerifier() {
-        return (hostname, session) -> true;
-    }
-
-    private static void ensureSslProperties() {
-        if (sslPropsApplied) {
-            return;
-        }
-        // Force TLSv1.2 for Java 8 and allow server-initiated renegotiation (some gateways require it).
-        System.setProperty("https.protocols", "TLSv1.2");
-        System.setProperty("jdk.tls.client.protocols", "TLSv1.2");
-        System.setProperty("sun.security.ssl.allowUnsafeRenegotiation", "true");
-        System.setProperty("jdk.tls.allowUnsafeServerCertChange", "true");
-        System.setProperty("jsse.enableSNIExtension", "true");
-        sslPropsApplied = true;
+    private static boolean isEventStream(HttpURLConnection conn) {
+        String type = conn.getContentType();
+        return type != null && type.toLowerCase().contains("event-stream");
     }
 
     private static String normalizeBaseUrl(String baseUrl) {
@@ -199,22 +223,10 @@ public class OpenAICompatClient {
         return value;
     }
 
-    private static String readAll(InputStream stream) throws Exception {
-        if (stream == null) {
-            return "";
-        }
-        try (BufferedInputStream in = new BufferedInputStream(stream);
-             ByteArrayOutputStream out = new ByteArrayOutputStream()) {
-            byte[] buffer = new byte[4096];
-            int read;
-            while ((read = in.read(buffer)) != -1) {
-                out.write(buffer, 0, read);
-            }
-            return new String(out.toByteArray(), StandardCharsets.UTF_8);
-        }
-    }
-
     private static LLMResult tryCurlFallback(LLMRequest request, String url) {
+        if (CancelToken.isCancelled(request.cancelToken)) {
+            return LLMResult.failure("canceled", null);
+        }
         try {
             return executeWithCurl(request, url);
         } catch (Exception e) {
@@ -296,18 +308,31 @@ public class OpenAICompatClient {
         cmd.add("@-");
         cmd.add(url);
 
+        if (CancelToken.isCancelled(request.cancelToken)) {
+            throw new InterruptedIOException("canceled");
+        }
         ProcessBuilder pb = new ProcessBuilder(cmd);
         pb.redirectErrorStream(true);
         Process proc = pb.start();
+        Runnable abort = request.cancelToken == null ? null : request.cancelToken.onCancel(proc::destroyForcibly);
+        try {
+            JsonBytes body = BODY.get().reset();
+            PromptBuilder.writeChatBody(request, false, false, false, body);
+            try (OutputStream out = proc.getOutputStream()) {
+                body.writeTo(out);
+            }
 
-        byte[] body = GSON.toJson(PromptBuilder.buildRequestBody(request)).getBytes(StandardCharsets.UTF_8);
-        try (OutputStream out = proc.getOutputStream()) {
-            out.write(body);
+            String response = HttpTransport.readBody(proc.getInputStream());
+            int exit = proc.waitFor();
+            if (CancelToken.isCancelled(request.cancelToken)) {
+                throw new InterruptedIOException("canceled");
+            }
+            return new CurlOutcome(exit, response);
+        } finally {
+            if (abort != null) {
+                request.cancelToken.remove(abort);
+            }
         }
-
-        String response = readAll(proc.getInputStream());
-        int exit = proc.waitFor();
-        return new CurlOutcome(exit, response);
     }
 
     private static List<String> extraArgs(String arg) {
@@ -325,71 +350,4 @@ public class OpenAICompatClient {
             this.response = response == null ? "" : response;
         }
     }
-
-    private static class TlsSocketFactory extends SSLSocketFactory {
-        private final SSLSocketFactory delegate;
-        private final String[] protocols;
-
-        private TlsSocketFactory(SSLSocketFactory delegate, String[] protocols) {
-            this.delegate = delegate;
-            this.protocols = protocols;
-        }
-
-        @Override
-        public String[] getDefaultCipherSuites() {
-            return delegate.getDefaultCipherSuites();
-        }
-
-        @Override
-        public String[] getSupportedCipherSuites() {
-            return delegate.getSupportedCipherSuites();
-        }
-
-        @Override
-        public java.net.Socket createSocket(java.net.Socket s, String host, int port, boolean autoClose) throws java.io.IOException {
-            java.net.Socket socket = delegate.createSocket(s, host, port, autoClose);
-            enableProtocols(socket);
-            return socket;
-        }
-
-        @Override
-        public java.net.Socket createSocket(String host, int port) throws java.io.IOException {
-            java.net.Socket socket = delegate.createSocket(host, port);
-            enableProtocols(socket);
-            return socket;
-        }
-
-        @Override
-        public java.net.Socket createSocket(String host, int port, java.net.InetAddress localHost, int localPort) throws java.io.IOException {
-            java.net.Socket socket = delegate.createSocket(host, port, localHost, localPort);
-            enableProtocols(socket);
-            return socket;
-        }
-
-        @Override
-        public java.net.Socket createSocket(java.net.InetAddress host, int port) throws java.io.IOException {
-            java.net.Socket socket = delegate.createSocket(host, port);
-            enableProtocols(socket);
-            return socket;
-        }
-
-        @Override
-        public java.net.Socket createSocket(java.net.InetAddress address, int port, java.net.InetAddress localAddress, int localPort) throws java.io.IOException {
-            java.net.Socket socket = delegate.createSocket(address, port, localAddress, localPort);
-            enableProtocols(socket);
-            return socket;
-        }
-
-        private void enableProtocols(java.net.Socket socket) {
-            if (protocols == null || protocols.length == 0) {
-                return;
-            }
-            if (socket instanceof javax.net.ssl.SSLSocket) {
-                javax.net.ssl.SSLSocket ssl = (javax.net.ssl.SSLSocket) socket;
-                ssl.setEnabledProtocols(protocols);
-                // Enable all supported cipher suites to avoid handshake failures with strict servers.
-                ssl.setEnabledCipherSuites(ssl.getSupportedCipherSuites());
-            }
-        }
-    }
 }
@@ -0,0 +1,193 @@
+package whispers.thespire.llm;
+
+import com.evacipated.cardcrawl.modthespire.lib.ConfigUtils;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import whispers.thespire.config.ModConfig;
+import whispers.thespire.llm.model.LLMResult;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Learns how long answers are per context and picks max_tokens from it (p95 of recent completion
+// sizes plus headroom), so a one-line combat answer does not reserve a map plan's budget and a map
+// plan is not cut short by a global limit. Samples persist in output_budget.json.
+public class OutputBudget {
+    private static final Object LOCK = new Object();
+    private static final Gson GSON = new GsonBuilder().create();
+    private static final int WINDOW = 64;
+    private static final int MIN_SAMPLES = 8;
+    private static final double HEADROOM = 1.25;
+    private static final int EXTRA_TOKENS = 64;
+    private static final int MIN_TOKENS = 128;
+    private static final int MAX_TOKENS = 4096;
+
+    private static boolean loaded = false;
+    private static boolean dirty = false;
+    private static final Map<String, List<Integer>> samples = new LinkedHashMap<>();
+    private static long escalations = 0L;
+
+    private OutputBudget() {}
+
+    public static int maxTokensFor(String contextType, int configured) {
+        if (!ModConfig.adaptiveMaxTokens) {
+            return configured;
+        }
+        ensureLoaded();
+        synchronized (LOCK) {
+            List<Integer> list = samples.get(key(contextType));
+            if (list == null || list.size() < MIN_SAMPLES) {
+                return configured;
+            }
+            int[] sorted = new int[list.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = list.get(i);
+            }
+            Arrays.sort(sorted);
+            int p95 = sorted[Math.min(sorted.length - 1, (int) Math.ceil(sorted.length * 0.95) - 1)];
+            return clamp((int) (p95 * HEADROOM) + EXTRA_TOKENS);
+        }
+    }
+
+    // Median answer size for a context, for latency estimates; fallback until enough samples exist.
+    public static int typicalTokens(String contextType, int fallback) {
+        ensureLoaded();
+        synchronized (LOCK) {
+            List<Integer> list = samples.get(key(contextType));
+            if (list == null || list.size() < MIN_SAMPLES) {
+                return fallback;
+            }
+            int[] sorted = new int[list.size()];
+            for (int i = 0; i < sorted.length; i++) {
+                sorted[i] = list.get(i);
+            }
+            Arrays.sort(sorted);
+            return sorted[sorted.length / 2];
+        }
+    }
+
+    // Budget for the single retry after an answer was cut off.
+    public static int escalate(int current) {
+        synchronized (LOCK) {
+            escalations++;
+        }
+        return clamp(Math.max(current * 2, current + 256));
+    }
+
+    public static boolean canEscalate(int current) {
+        return ModConfig.adaptiveMaxTokens && current < MAX_TOKENS;
+    }
+
+    public static void record(String contextType, LLMResult result, int budget) {
+        if (result == null || result.fromCache || result.completionTokens == null || result.completionTokens <= 0) {
+            return;
+        }
+        int tokens = result.completionTokens;
+        if (ResponseParser.isTruncation(result.finishReason)) {
+            // The real answer was longer than this; count at least the whole budget.
+            tokens = Math.max(tokens, budget);
+        }
+        ensureLoaded();
+        synchronized (LOCK) {
+            List<Integer> list = samples.get(key(contextType));
+            if (list == null) {
+                list = new ArrayList<>();
+                samples.put(key(contextType), list);
+            }
+            list.add(tokens);
+            while (list.size() > WINDOW) {
+                list.remove(0);
+            }
+            dirty = true;
+        }
+    }
+
+    public static String statsLine() {
+        ensureLoaded();
+        synchronized (LOCK) {
+            StringBuilder sb = new StringBuilder("max_tokens");
+            for (String context : samples.keySet()) {
+                sb.append(' ').append(context).append('=').append(maxTokensFor(context, ModConfig.maxTokens))
+                        .append('/').append(samples.get(context).size());
+            }
+            sb.append(" escalated=").append(escalations);
+            return sb.toString();
+        }
+    }
+
+    public static void flush() {
+        synchronized (LOCK) {
+            if (!dirty) {
+                return;
+            }
+            BudgetStore store = new BudgetStore();
+            store.samples = new LinkedHashMap<>(samples);
+            try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(getFile()), StandardCharsets.UTF_8))) {
+                writer.write(GSON.toJson(store));
+                dirty = false;
+            } catch (Exception ignored) {
+                // ignore save errors
+            }
+        }
+    }
+
+    private static int clamp(int tokens) {
+        return Math.max(MIN_TOKENS, Math.min(MAX_TOKENS, tokens));
+    }
+
+    private static String key(String contextType) {
+        return contextType == null || contextType.isEmpty() ? "NONE" : contextType;
+    }
+
+    private static void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (LOCK) {
+            if (loaded) {
+                return;
+            }
+            loaded = true;
+            File file = getFile();
+            if (!file.exists()) {
+                return;
+            }
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+                BudgetStore store = GSON.fromJson(reader, BudgetStore.class);
+                if (store != null && store.samples != null) {
+                    for (Map.Entry<String, List<Integer>> entry : store.samples.entrySet()) {
+                        if (entry.getKey() != null && entry.getValue() != null) {
+                            samples.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+                        }
+                    }
+                }
+            } catch (Exception ignored) {
+                samples.clear();
+            }
+        }
+    }
+
+    private static File getFile() {
+        String base = ConfigUtils.CONFIG_DIR;
+        File dir = new File(base, "WhispersTheSpire");
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        return new File(dir, "output_budget.json");
+    }
+
+    private static class BudgetStore {
+        Map<String, List<Integer>> samples = new LinkedHashMap<>();
+    }
+}
@@ -3,68 +3,148 @@ package whispers.thespire.llm;
 import whispers.thespire.llm.model.LLMRequest;
 import whispers.thespire.config.ModConfig;
 import whispers.thespire.knowledge.KnowledgeBase;
+import whispers.thespire.state.SnapshotManager;
+import whispers.thespire.util.JsonBytes;
+import whispers.thespire.util.TokenEstimator;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.JsonPrimitive;
 
-import java.util.HashMap;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class PromptBuilder {
-    private static final int MAX_SNAPSHOT_CHARS = 7800;
+    // Bump whenever the prompt text or output schema changes so cached answers are not reused.
+    public static final int TEMPLATE_VERSION = 4;
+    // Token budgets per prompt section. The snapshot is normally already trimmed to
+    // SnapshotManager.tokenBudget by SnapshotManager; this is the backstop.
+    private static final int SNAPSHOT_TOKEN_SLACK = 200;
+    private static final int KNOWLEDGE_NOTES_TOKENS = 800;
+    private static final int CHARACTER_NOTES_TOKENS = 500;
+    private static final int SKILL_HINTS_TOKENS = 800;
+
+    private static final int MAX_PREFIXES = 64;
+
+    private static final Map<String, Prefix> PREFIXES = new ConcurrentHashMap<>();
+    private static final int MAX_RETAINED_TAIL = 64 * 1024;
+
+    private static final Gson GSON = new Gson();
+    private static final ThreadLocal<StringBuilder> TAIL = ThreadLocal.withInitial(() -> new StringBuilder(4096));
+    private static volatile byte[] responseFormatJson;
+    private static volatile String lastAccounting = "";
 
     private PromptBuilder() {}
 
-    public static Prompt build(LLMRequest request) {
+    // Chat-completions body written straight into out: the precompiled prefix segments, then the
+    // escaped per-request part of the user message, with the pre-escaped snapshot spliced in.
+    static void writeChatBody(LLMRequest request, boolean structured, boolean stream, boolean streamUsage, JsonBytes out) {
+        StringBuilder tail = tailBuffer();
+        int[] splice = new int[1];
+        Prefix prefix = compose(request, tail, splice);
+        out.ascii("{\"model\":").nullableString(request.model)
+                .ascii(",\"temperature\":").ascii(Float.toString(request.temperature))
+                .ascii(",\"max_tokens\":").ascii(Integer.toString(request.maxTokens))
+                .ascii(",\"messages\":[{\"role\":\"system\",\"content\":").raw(prefix.systemJson)
+                .ascii("},{\"role\":\"user\",\"content\":\"").raw(prefix.userJson);
+        writeTail(request, tail, splice[0], out);
+        out.ascii("\"}]");
+        if (stream) {
+            out.ascii(",\"stream\":true");
+            if (streamUsage) {
+                out.ascii(",\"stream_options\":{\"include_usage\":true}");
+            }
+        }
+        if (structured) {
+            out.ascii(",\"response_format\":").raw(responseFormatJson());
+        }
+        out.ascii("}");
+    }
+
+    // System and user text as one JSON string body (quotes not included), for APIs without a system role.
+    static void writeInlineText(LLMRequest request, JsonBytes out) {
+        StringBuilder tail = tailBuffer();
+        int[] splice = new int[1];
+        Prefix prefix = compose(request, tail, splice);
+        out.raw(prefix.inlineJson);
+        writeTail(request, tail, splice[0], out);
+    }
+
+    // "system" and "prompt" members of a completion-style body (e.g. Ollama /api/generate).
+    static void writeSystemAndPrompt(LLMRequest request, JsonBytes out) {
+        StringBuilder tail = tailBuffer();
+        int[] splice = new int[1];
+        Prefix prefix = compose(request, tail, splice);
+        out.ascii("\"system\":").raw(prefix.systemJson)
+                .ascii(",\"prompt\":\"").raw(prefix.userJson);
+        writeTail(request, tail, splice[0], out);
+        out.ascii("\"");
+    }
+
+    // The escaped tail; at >= 0 is where compose() left out the snapshot for its escaped bytes.
+    private static void writeTail(LLMRequest request, StringBuilder tail, int at, JsonBytes out) {
+        if (at < 0) {
+            out.escaped(tail);
+            return;
+        }
+        byte[] snapshot = request.snapshotCompact != null && SnapshotEncoding.compact(request.provider)
+                ? request.snapshotCompactEscaped : request.snapshotJsonEscaped;
+        out.escaped(tail, 0, at).raw(snapshot).escaped(tail, at, tail.length());
+    }
+
+    private static StringBuilder tailBuffer() {
+        StringBuilder tail = TAIL.get();
+        if (tail.capacity() > MAX_RETAINED_TAIL) {
+            tail = new StringBuilder(4096);
+            TAIL.set(tail);
+        }
+        tail.setLength(0);
+        return tail;
+    }
+
+    private static byte[] responseFormatJson() {
+        byte[] json = responseFormatJson;
+        if (json == null) {
+            json = GSON.toJson(ResponseSchema.openAiResponseFormat()).getBytes(StandardCharsets.UTF_8);
+            responseFormatJson = json;
+        }
+        return json;
+    }
+
+    // Appends the per-request part of the user message to tail and returns the static prefix it follows.
+    // The snapshot is left out when the request carries it pre-escaped and it goes in unchanged;
+    // splice[0] is then its position in tail, else -1.
+    private static Prefix compose(LLMRequest request, StringBuilder user, int[] splice) {
         String safeContext = request == null || request.contextType == null ? "OTHER" : request.contextType;
-        String safeJson = request == null || request.snapshotJson == null ? "{}" : request.snapshotJson;
+        // The compact encoding replaces the JSON when the provider is set to it and the request has it.
+        boolean compact = request != null && request.snapshotCompact != null && SnapshotEncoding.compact(request.provider);
+        String source = request == null ? null : compact ? request.snapshotCompact : request.snapshotJson;
+        byte[] sourceEscaped = request == null ? null : compact ? request.snapshotCompactEscaped : request.snapshotJsonEscaped;
+        int sourceTokens = request == null ? 0 : compact ? request.snapshotCompactTokens : request.snapshotTokens;
+        String safeJson = source == null ? "{}" : source;
         String snapshotHash = request == null ? null : request.snapshotHash;
+        String model = request == null ? ModConfig.model : request.model;
         boolean isCombat = "COMBAT".equalsIgnoreCase(safeContext);
-        boolean isShop = "SHOP".equalsIgnoreCase(safeContext);
         boolean handPresent = request != null
                 && request.combatHandCount != null
                 && request.combatHandCount > 0;
-        boolean showReasons = ModConfig.showReasons;
-        boolean multi = ModConfig.multiRecommendations;
-        int baseMax = multi ? (isCombat ? 2 : 3) : 1;
-        int maxRecs = isShop ? 3 : baseMax;
 
-        boolean truncated = false;
-        if (safeJson.length() > MAX_SNAPSHOT_CHARS) {
-            String suffix = "...(truncated)";
-            int limit = Math.max(0, MAX_SNAPSHOT_CHARS - suffix.length());
-            safeJson = safeJson.substring(0, limit) + suffix;
-            truncated = true;
+        List<String> omitted = new ArrayList<>(0);
+        int snapshotBudget = SnapshotManager.tokenBudget(request == null ? ModConfig.provider : request.provider)
+                + SNAPSHOT_TOKEN_SLACK;
+        if (sourceTokens <= 0 || sourceTokens > snapshotBudget) {
+            safeJson = fitSnapshot(safeJson, snapshotBudget, model, omitted);
         }
+        boolean truncated = !omitted.isEmpty();
 
-        String system = "You are an expert Slay the Spire coach (A20+ level). "
-                + "You MUST output only a single JSON object and nothing else. "
-                + "Do NOT wrap in markdown. Follow the exact schema and field limits. "
-                + "Be decisive, high-signal, and specific. Avoid generic or beginner advice. "
-                + "Use at least 2 concrete facts from snapshot_json (cards/relics/potions/hp/gold/map/hand/intents) "
-                + "to justify your recommendation. If key info is missing, say so explicitly. "
-                + "Hard rule: if you mention ascension (A#), it MUST match facts.ascension; "
-                + "if facts.ascension is missing, do NOT mention ascension.";
-        if (isCombat) {
-            system += " For COMBAT: recommendations max " + maxRecs + ", action_type must be combat_line, "
-                    + "summary<=30, action<=50, reason<=60. "
-                    + "You MUST reference current hand, energy, enemy intents (including damage/hits if present), player HP, and potions when available. "
-                    + "Hard rule: mention at least one card from the current hand list (from essential_facts or snapshot_json.combat.hand). "
-                    + "If hand_present=false, state 'hand data missing' and avoid specific play lines. "
-                    + "If hand_present=true, you MUST NOT claim hand data is missing. "
-                    + "If hand_count>=2, do NOT claim 'only one card' in hand. "
-                    + "If energy>0 and playable_cards is not empty, you MUST recommend spending energy (play at least 2 cards or all available energy), "
-                    + "and you MUST NOT recommend ending turn immediately.";
-        } else if ("EVENT".equalsIgnoreCase(safeContext)) {
-            system += " For EVENT: you MUST reference event_name and pick from event_options only. "
-                    + "Do not invent options; if event_options missing, say so.";
-        }
-        if ("zh".equalsIgnoreCase(ModConfig.language)) {
-            system += " Use Simplified Chinese for summary/title/action/reason fields.";
-        } else {
-            system += " Use English for summary/title/action/reason fields.";
-        }
-        system += " Use in-game localized names from snapshot_json/essential_facts when referring to cards/relics/potions; do not translate names.";
-
-        StringBuilder user = new StringBuilder();
-        user.append("context_type: ").append(safeContext).append("\n");
+        // Everything that only depends on the screen and the settings comes first and is reused
+        // verbatim, so providers' automatic prompt caching can match it; per-request state follows.
+        Prefix prefix = prefix(safeContext, request == null ? null : request.character, model, compact);
+        int prefixEnd = user.length();
         user.append("snapshot_hash: ").append(snapshotHash == null ? "" : snapshotHash).append("\n");
         user.append("facts: ")
                 .append("ascension=").append(value(request == null ? null : request.ascension)).append(", ")
@@ -95,7 +175,6 @@ public class PromptBuilder {
                 user.append("event_options: ").append(request.eventOptions).append("\n");
             }
         }
-        user.append("show_reasons: ").append(showReasons).append("\n");
         if (isCombat) {
             user.append("hand_present: ").append(handPresent).append("\n");
             if (request != null) {
@@ -106,27 +185,109 @@ public class PromptBuilder {
                 }
             }
         }
+        int factsEnd = user.length();
+        if (request != null && request.skillHints != null && !request.skillHints.trim().isEmpty()) {
+            user.append("skill_hints:\n").append(trimTo(request.skillHints, SKILL_HINTS_TOKENS, model)).append("\n");
+            user.append("Use skill_hints as high-quality prior strategies. If they conflict with snapshot_json, follow snapshot_json.\n");
+        }
+        int skillsEnd = user.length();
+        user.append("snapshot_json: ");
+        boolean spliced = sourceEscaped != null && safeJson == source && !ModConfig.debugShowSnapshot;
+        if (spliced) {
+            splice[0] = user.length();
+        } else {
+            splice[0] = -1;
+            user.append(safeJson);
+        }
+        user.append("\n");
+        if (truncated) {
+            user.append("snapshot_json_truncated: true\n");
+            user.append("snapshot_json_omitted: ").append(String.join(",", omitted)).append("\n");
+        }
+
+        if (ModConfig.debugShowSnapshot) {
+            lastAccounting = accounting(model, prefix, user, prefixEnd, factsEnd, skillsEnd);
+        }
+        return prefix;
+    }
+
+    // Per-section token counts of the last prompt built, for the debug status line.
+    public static String accountingLine() {
+        return lastAccounting;
+    }
+
+    // One prefix per screen and character: the knowledge notes for both are fixed, so they sit in the
+    // cacheable part ahead of everything that changes from request to request.
+    private static Prefix prefix(String context, String character, String model, boolean compact) {
+        String key = context.toUpperCase() + "|" + character + "|" + ModConfig.language + "|" + ModConfig.showReasons + "|"
+                + ModConfig.multiRecommendations + "|" + ModConfig.useKnowledgeBase + "|" + model + "|" + compact;
+        Prefix prefix = PREFIXES.get(key);
+        if (prefix == null) {
+            if (PREFIXES.size() >= MAX_PREFIXES) {
+                PREFIXES.clear();
+            }
+            prefix = buildPrefix(context, character, model, compact);
+            PREFIXES.put(key, prefix);
+        }
+        return prefix;
+    }
+
+    private static Prefix buildPrefix(String safeContext, String character, String model, boolean compact) {
+        boolean isCombat = "COMBAT".equalsIgnoreCase(safeContext);
+        boolean isShop = "SHOP".equalsIgnoreCase(safeContext);
+        boolean showReasons = ModConfig.showReasons;
+        boolean multi = ModConfig.multiRecommendations;
+        int baseMax = multi ? (isCombat ? 2 : 3) : 1;
+        int maxRecs = isShop ? 3 : baseMax;
+
+        String system = "You are an expert Slay the Spire coach (A20+ level). "
+                + "You MUST output only a single JSON object and nothing else. "
+                + "Do NOT wrap in markdown. Follow the exact schema and field limits. "
+                + "Be decisive, high-signal, and specific. Avoid generic or beginner advice. "
+                + "Use at least 2 concrete facts from snapshot_json (cards/relics/potions/hp/gold/map/hand/intents) "
+                + "to justify your recommendation. If key info is missing, say so explicitly. "
+                + "Hard rule: if you mention ascension (A#), it MUST match facts.ascension; "
+                + "if facts.ascension is missing, do NOT mention ascension.";
+        if (isCombat) {
+            system += " For COMBAT: recommendations max " + maxRecs + ", action_type must be combat_line, "
+                    + "summary<=30, action<=50, reason<=60. "
+                    + "You MUST reference current hand, energy, enemy intents (including damage/hits if present), player HP, and potions when available. "
+                    + "Hard rule: mention at least one card from the current hand list (from essential_facts or snapshot_json.combat.hand). "
+                    + "If hand_present=false, state 'hand data missing' and avoid specific play lines. "
+                    + "If hand_present=true, you MUST NOT claim hand data is missing. "
+                    + "If hand_count>=2, do NOT claim 'only one card' in hand. "
+                    + "If energy>0 and playable_cards is not empty, you MUST recommend spending energy (play at least 2 cards or all available energy), "
+                    + "and you MUST NOT recommend ending turn immediately.";
+        } else if ("EVENT".equalsIgnoreCase(safeContext)) {
+            system += " For EVENT: you MUST reference event_name and pick from event_options only. "
+                    + "Do not invent options; if event_options missing, say so.";
+        }
+        if ("zh".equalsIgnoreCase(ModConfig.language)) {
+            system += " Use Simplified Chinese for summary/title/action/reason fields.";
+        } else {
+            system += " Use English for summary/title/action/reason fields.";
+        }
+        system += " Use in-game localized names from snapshot_json/essential_facts when referring to cards/relics/potions; do not translate names.";
+        if (compact) {
+            system += " " + SnapshotEncoding.LEGEND;
+        }
+
+        StringBuilder user = new StringBuilder();
+        user.append("context_type: ").append(safeContext).append("\n");
+        user.append("show_reasons: ").append(showReasons).append("\n");
         user.append("max_recommendations: ").append(maxRecs).append("\n");
         if (ModConfig.useKnowledgeBase) {
             String notes = KnowledgeBase.getNotes(safeContext);
             if (notes != null && !notes.trim().isEmpty()) {
-                user.append("knowledge_notes:\n").append(trimTo(notes, 1200)).append("\n");
+                user.append("knowledge_notes:\n").append(trimTo(notes, KNOWLEDGE_NOTES_TOKENS, model)).append("\n");
                 user.append("Use knowledge_notes as general guidance; if it conflicts with snapshot_json, follow snapshot_json.\n");
             }
-            String charNotes = KnowledgeBase.getCharacterNotes(request == null ? null : request.character);
+            String charNotes = KnowledgeBase.getCharacterNotes(character);
             if (charNotes != null && !charNotes.trim().isEmpty()) {
-                user.append("character_notes:\n").append(trimTo(charNotes, 800)).append("\n");
+                user.append("character_notes:\n").append(trimTo(charNotes, CHARACTER_NOTES_TOKENS, model)).append("\n");
                 user.append("Use character_notes when relevant; still prioritize snapshot_json facts.\n");
             }
         }
-        if (request != null && request.skillHints != null && !request.skillHints.trim().isEmpty()) {
-            user.append("skill_hints:\n").append(trimTo(request.skillHints, 1200)).append("\n");
-            user.append("Use skill_hints as high-quality prior strategies. If they conflict with snapshot_json, follow snapshot_json.\n");
-        }
-        user.append("snapshot_json: ").append(safeJson).append("\n");
-        if (truncated) {
-            user.append("snapshot_json_truncated: true\n");
-        }
         user.append("Task guidance (be professional, not generic):\n");
         user.append(buildGuidance(safeContext));
         user.append("Output JSON schema:\n");
@@ -167,10 +328,58 @@ public class PromptBuilder {
         user.append(" For non-MAP contexts set next_pick_index=0 and route_plan=[].");
         if ("MAP".equalsIgnoreCase(safeContext) || "MAP_PATH".equalsIgnoreCase(safeContext)) {
             user.append(" For MAP: next_pick_index is required (1-based index in map_next, left-to-right). ");
-            user.append("route_plan should describe the full route plan for this act (elite count, rest/shop timing).\n");
+            user.append("route_plan should describe the full route plan for this act (elite count, rest/shop timing).");
         }
+        user.append("\nCurrent state:\n");
+        return new Prefix(system, user.toString(), model);
+    }
 
-        return new Prompt(system, user.toString());
+    // The knowledge notes are counted in the prefix.
+    private static String accounting(String model, Prefix prefix, StringBuilder user,
+                                     int prefixEnd, int factsEnd, int skillsEnd) {
+        int facts = TokenEstimator.count(user.subSequence(prefixEnd, factsEnd), model);
+        int skills = TokenEstimator.count(user.subSequence(factsEnd, skillsEnd), model);
+        int snapshot = TokenEstimator.count(user.subSequence(skillsEnd, user.length()), model);
+        int total = prefix.tokens + facts + skills + snapshot;
+        return "prompt tok=" + total + " (prefix=" + prefix.tokens + " facts=" + facts
+                + " skills=" + skills + " snap=" + snapshot + ") " + TokenEstimator.modeFor(model);
+    }
+
+    // Keeps the snapshot valid JSON when it is over budget: top-level members are kept in order while
+    // they fit and the ones that do not are listed in omitted. Non-object input is cut by tokens.
+    private static String fitSnapshot(String json, int maxTokens, String model, List<String> omitted) {
+        if (TokenEstimator.count(json, model) <= maxTokens) {
+            return json;
+        }
+        JsonObject root;
+        try {
+            JsonElement parsed = new JsonParser().parse(json);
+            if (!parsed.isJsonObject()) {
+                omitted.add("tail");
+                return TokenEstimator.truncate(json, maxTokens, model);
+            }
+            root = parsed.getAsJsonObject();
+        } catch (Exception e) {
+            omitted.add("tail");
+            return TokenEstimator.truncate(json, maxTokens, model);
+        }
+        StringBuilder out = new StringBuilder(json.length());
+        out.append('{');
+        int used = 2;
+        for (Map.Entry<String, JsonElement> entry : root.entrySet()) {
+            String member = new JsonPrimitive(entry.getKey()).toString() + ":" + entry.getValue().toString();
+            int cost = TokenEstimator.count(member, model) + 1;
+            if (used + cost > maxTokens) {
+                omitted.add(entry.getKey());
+                continue;
+            }
+            if (out.length() > 1) {
+                out.append(',');
+            }
+            out.append(member);
+            used += cost;
+        }
+        return out.append('}').toString();
     }
 
     private static String buildGuidance(String context) {
@@ -211,47 +420,31 @@ public class PromptBuilder {
         return sb.toString();
     }
 
-    public static Map<String, Object> buildRequestBody(LLMRequest request) {
-        Prompt prompt = build(request);
-        Map<String, Object> body = new HashMap<>();
-        body.put("model", request.model);
-        body.put("temperature", request.temperature);
-        body.put("max_tokens", request.maxTokens);
-        body.put("messages", prompt.toMessages());
-        return body;
-    }
-
     private static String value(Object value) {
         return value == null ? "" : String.valueOf(value);
     }
 
-    private static String trimTo(String text, int maxChars) {
-        if (text == null) {
-            return "";
-        }
-        if (text.length() <= maxChars) {
-            return text;
-        }
-        return text.substring(0, Math.max(0, maxChars - 3)) + "...";
+    private static String trimTo(String text, int maxTokens, String model) {
+        return TokenEstimator.truncate(text, maxTokens, model);
     }
 
-    public static class Prompt {
-        public final String system;
-        public final String user;
+    // The static part of a prompt: system message plus the head of the user message, also kept as
+    // pre-escaped UTF-8 so request bodies can copy it instead of re-encoding it every time.
+    private static class Prefix {
+        final String system;
+        final String user;
+        final int tokens;
+        final byte[] systemJson;
+        final byte[] userJson;
+        final byte[] inlineJson;
 
-        public Prompt(String system, String user) {
+        Prefix(String system, String user, String model) {
             this.system = system;
             this.user = user;
-        }
-
-        public Object[] toMessages() {
-            Map<String, String> systemMsg = new HashMap<>();
-            systemMsg.put("role", "system");
-            systemMsg.put("content", system);
-            Map<String, String> userMsg = new HashMap<>();
-            userMsg.put("role", "user");
-            userMsg.put("content", user);
-            return new Object[]{systemMsg, userMsg};
+            this.tokens = TokenEstimator.count(system, model) + TokenEstimator.count(user, model);
+            this.systemJson = JsonBytes.encodeString(system);
+            this.userJson = JsonBytes.encodeEscaped(user);
+            this.inlineJson = JsonBytes.encodeEscaped(system + "\n\n" + user);
         }
     }
-}
+}
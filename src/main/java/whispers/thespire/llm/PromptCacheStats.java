@@ -0,0 +1,41 @@
+package whispers.thespire.llm;
+
+import whispers.thespire.llm.model.LLMResult;
+import whispers.thespire.util.LatencyHistogram;
+
+// Provider prompt-cache hits as reported in usage, with time-to-first-token split by hit and miss so
+// the effect of the stable prompt prefix can be checked.
+public class PromptCacheStats {
+    private static final LatencyHistogram ttftHit = new LatencyHistogram();
+    private static final LatencyHistogram ttftMiss = new LatencyHistogram();
+    private static long promptTokens = 0L;
+    private static long cachedTokens = 0L;
+    private static long reported = 0L;
+    private static long hits = 0L;
+
+    private PromptCacheStats() {}
+
+    public static synchronized void record(LLMResult result) {
+        if (result == null || !result.ok || result.fromCache || result.promptTokens == null) {
+            return;
+        }
+        promptTokens += result.promptTokens;
+        boolean hit = result.cachedTokens != null && result.cachedTokens > 0;
+        if (result.cachedTokens != null) {
+            reported++;
+            cachedTokens += result.cachedTokens;
+        }
+        if (hit) {
+            hits++;
+        }
+        if (result.firstTokenMs > 0) {
+            (hit ? ttftHit : ttftMiss).record(result.firstTokenMs);
+        }
+    }
+
+    public static synchronized String statsLine() {
+        int rate = promptTokens == 0 ? 0 : (int) Math.round(cachedTokens * 100.0 / promptTokens);
+        return "prompt_cache hit=" + hits + "/" + reported + " tok=" + cachedTokens + "/" + promptTokens + " (" + rate + "%)"
+                + " ttft p50 hit=" + ttftHit.percentile(0.5) + " miss=" + ttftMiss.percentile(0.5);
+    }
+}
@@ -0,0 +1,179 @@
+package whispers.thespire.llm;
+
+import whispers.thespire.config.ModConfig;
+import whispers.thespire.llm.model.LLMRequest;
+import whispers.thespire.llm.model.LLMResult;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Admission control in front of the provider: a requests-per-minute token bucket
+// (ModConfig.requestsPerMinute) and a token budget per run (ModConfig.runTokenBudget, reset when the
+// seed changes). Auto requests are shed from the least urgent up: prefetches need half the bucket,
+// screen triggers leave one request for combat, combat needs one. Manual requests are never shed but
+// still use up the bucket. A 429 blocks its endpoint for the Retry-After it sent.
+public class RateLimiter {
+    private static final long DEFAULT_BACKOFF_MS = 10000L;
+    private static final long MAX_BACKOFF_MS = 120000L;
+    // Below this share of the run budget only combat and manual requests go out.
+    private static final double LOW_BUDGET_SHARE = 0.25;
+
+    private double tokens = -1.0;
+    private long refilledAt = 0L;
+    private Long runSeed = null;
+    private long runTokensUsed = 0L;
+    private long shed = 0L;
+    private final Map<String, Long> blockedUntil = new HashMap<>();
+
+    // Null when the request may go out (and a request is taken from the bucket), else why it was shed.
+    public synchronized String tryAcquire(LLMRequest request, String endpointKey, RequestPriority priority) {
+        long now = System.currentTimeMillis();
+        refill(now);
+        startRun(request.seed);
+        String reason = check(endpointKey, priority, now, runTokensUsed);
+        if (reason != null) {
+            shed++;
+            return reason;
+        }
+        if (ModConfig.requestsPerMinute > 0) {
+            tokens = Math.max(0.0, tokens - 1.0);
+        }
+        return null;
+    }
+
+    // Same checks without taking anything or counting a shed, so the overlay can keep its current
+    // advice instead. A request from another run is checked against a fresh run budget.
+    public synchronized String peek(LLMRequest request, String endpointKey, RequestPriority priority) {
+        long now = System.currentTimeMillis();
+        refill(now);
+        boolean newRun = request.seed != null && !request.seed.equals(runSeed);
+        return check(endpointKey, priority, now, newRun ? 0L : runTokensUsed);
+    }
+
+    private String check(String endpointKey, RequestPriority priority, long now, long usedTokens) {
+        long waitMs = blockedMs(endpointKey, now);
+        if (waitMs > 0 && priority != RequestPriority.MANUAL) {
+            return "retry_after " + ((waitMs + 999L) / 1000L) + "s";
+        }
+        int capacity = ModConfig.requestsPerMinute;
+        if (capacity > 0 && priority != RequestPriority.MANUAL && tokens < needed(priority, capacity)) {
+            return "rpm " + ((long) Math.ceil((needed(priority, capacity) - tokens) * 60000.0 / capacity) + 999L) / 1000L + "s";
+        }
+        long budget = ModConfig.runTokenBudget;
+        if (budget > 0 && priority != RequestPriority.MANUAL) {
+            long left = budget - usedTokens;
+            if (left <= 0 || (left < budget * LOW_BUDGET_SHARE && priority.ordinal() > RequestPriority.COMBAT_TURN.ordinal())) {
+                return "run budget";
+            }
+        }
+        return null;
+    }
+
+    public synchronized void recordUsage(LLMRequest request, LLMResult result) {
+        if (result == null || result.fromCache) {
+            return;
+        }
+        startRun(request.seed);
+        long used = 0L;
+        if (result.promptTokens != null) {
+            used += result.promptTokens;
+        } else {
+            used += request.snapshotCompact != null && SnapshotEncoding.compact(request.provider)
+                    ? request.snapshotCompactTokens : request.snapshotTokens;
+        }
+        if (result.completionTokens != null) {
+            used += result.completionTokens;
+        }
+        runTokensUsed += used;
+    }
+
+    // Called for every 429; retryAfterMs is 0 when the provider did not say how long to wait.
+    public synchronized void backOff(String endpointKey, long retryAfterMs) {
+        long waitMs = retryAfterMs > 0 ? Math.min(MAX_BACKOFF_MS, retryAfterMs) : DEFAULT_BACKOFF_MS;
+        long until = System.currentTimeMillis() + waitMs;
+        Long current = blockedUntil.get(endpointKey);
+        if (current == null || current < until) {
+            blockedUntil.put(endpointKey, until);
+        }
+        // Only this endpoint is blocked; the shared bucket is left alone so failover and hedges can
+        // still go to the other endpoints.
+    }
+
+    // An answer proves the endpoint has quota again.
+    public synchronized void recordSuccess(String endpointKey) {
+        blockedUntil.remove(endpointKey);
+    }
+
+    public synchronized long blockedMs(String endpointKey) {
+        return blockedMs(endpointKey, System.currentTimeMillis());
+    }
+
+    // Remaining requests and run tokens for the overlay; empty when neither limit is set.
+    public synchronized String budgetLine(String endpointKey) {
+        long now = System.currentTimeMillis();
+        refill(now);
+        StringBuilder sb = new StringBuilder();
+        if (ModConfig.requestsPerMinute > 0) {
+            sb.append("rpm ").append((int) tokens).append('/').append(ModConfig.requestsPerMinute);
+        }
+        if (ModConfig.runTokenBudget > 0) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            long left = Math.max(0L, ModConfig.runTokenBudget - runTokensUsed);
+            sb.append("run ").append(kilo(left)).append('/').append(kilo(ModConfig.runTokenBudget));
+        }
+        long waitMs = blockedMs(endpointKey, now);
+        if (waitMs > 0) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append("429 wait ").append((waitMs + 999L) / 1000L).append('s');
+        }
+        return sb.toString();
+    }
+
+    public synchronized String statsLine() {
+        return "limit shed=" + shed + " run_tokens=" + runTokensUsed;
+    }
+
+    private static double needed(RequestPriority priority, int capacity) {
+        switch (priority) {
+            case PREFETCH:
+                return Math.max(1.0, capacity / 2.0);
+            case SCREEN:
+                return Math.min(2.0, capacity);
+            default:
+                return 1.0;
+        }
+    }
+
+    private void refill(long now) {
+        int capacity = ModConfig.requestsPerMinute;
+        if (capacity <= 0) {
+            return;
+        }
+        if (tokens < 0.0) {
+            tokens = capacity;
+        } else if (now > refilledAt) {
+            tokens = Math.min(capacity, tokens + (now - refilledAt) * capacity / 60000.0);
+        }
+        refilledAt = now;
+    }
+
+    private void startRun(Long seed) {
+        if (seed != null && !seed.equals(runSeed)) {
+            runSeed = seed;
+            runTokensUsed = 0L;
+        }
+    }
+
+    private long blockedMs(String endpointKey, long now) {
+        Long until = endpointKey == null ? null : blockedUntil.get(endpointKey);
+        return until == null ? 0L : Math.max(0L, until - now);
+    }
+
+    private static String kilo(long tokens) {
+        return tokens >= 10000L ? (tokens / 1000L) + "k" : Long.toString(tokens);
+    }
+}
@@ -0,0 +1,9 @@
+package whispers.thespire.llm;
+
+// Declared from most to least urgent; the scheduler orders by ordinal.
+public enum RequestPriority {
+    MANUAL,
+    COMBAT_TURN,
+    SCREEN,
+    PREFETCH
+}
@@ -0,0 +1,139 @@
+package whispers.thespire.llm;
+
+import whispers.thespire.llm.model.LLMResult;
+import whispers.thespire.util.CancelToken;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Small worker pool fed from a priority queue. When every worker is busy and more urgent work
+// arrives, the least urgent running job is cancelled through its token, which closes its socket.
+public class RequestScheduler {
+    private static final int WORKERS = 2;
+
+    private final PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<>();
+    private final List<Job> running = new ArrayList<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong preempted = new AtomicLong();
+
+    public RequestScheduler(String threadName) {
+        for (int i = 0; i < WORKERS; i++) {
+            Thread t = new Thread(this::workLoop, threadName + "-" + (i + 1));
+            t.setDaemon(true);
+            t.start();
+        }
+    }
+
+    public Future<LLMResult> submit(Callable<LLMResult> work, RequestPriority priority, CancelToken token) {
+        Job job = new Job(work, priority, sequence.incrementAndGet(), token);
+        preemptFor(priority);
+        queue.add(job);
+        return job;
+    }
+
+    // Raises the priority of a job that turned out to be wanted sooner (e.g. a claimed prefetch).
+    public void promote(Future<LLMResult> future, RequestPriority priority) {
+        if (!(future instanceof Job)) {
+            return;
+        }
+        Job job = (Job) future;
+        if (job.priority.ordinal() <= priority.ordinal()) {
+            return;
+        }
+        if (queue.remove(job)) {
+            job.priority = priority;
+            preemptFor(priority);
+            queue.add(job);
+        } else {
+            job.priority = priority;
+        }
+    }
+
+    public String statsLine() {
+        int active;
+        synchronized (running) {
+            active = running.size();
+        }
+        return "sched run=" + active + " queued=" + queue.size()
+                + " done=" + completed.get() + " preempted=" + preempted.get();
+    }
+
+    private void preemptFor(RequestPriority priority) {
+        Job victim = null;
+        synchronized (running) {
+            if (running.size() < WORKERS) {
+                return;
+            }
+            for (Job job : running) {
+                if (job.priority.ordinal() > priority.ordinal()
+                        && (victim == null || job.priority.ordinal() > victim.priority.ordinal())) {
+                    victim = job;
+                }
+            }
+        }
+        if (victim != null && victim.cancel(true)) {
+            preempted.incrementAndGet();
+        }
+    }
+
+    private void workLoop() {
+        while (true) {
+            Job job;
+            try {
+                job = queue.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            if (job.isDone()) {
+                continue;
+            }
+            synchronized (running) {
+                running.add(job);
+            }
+            try {
+                job.run();
+            } finally {
+                synchronized (running) {
+                    running.remove(job);
+                }
+                completed.incrementAndGet();
+                // Clear an interrupt left over from cancel(true) so it does not hit the next job.
+                Thread.interrupted();
+            }
+        }
+    }
+
+    private static class Job extends FutureTask<LLMResult> implements Comparable<Job> {
+        private volatile RequestPriority priority;
+        private final long sequence;
+        private final CancelToken token;
+
+        private Job(Callable<LLMResult> work, RequestPriority priority, long sequence, CancelToken token) {
+            super(work);
+            this.priority = priority;
+            this.sequence = sequence;
+            this.token = token;
+        }
+
+        @Override
+        public boolean cancel(boolean mayInterruptIfRunning) {
+            boolean cancelled = super.cancel(mayInterruptIfRunning);
+            if (token != null) {
+                token.cancel();
+            }
+            return cancelled;
+        }
+
+        @Override
+        public int compareTo(Job other) {
+            int byPriority = Integer.compare(priority.ordinal(), other.priority.ordinal());
+            return byPriority != 0 ? byPriority : Long.compare(sequence, other.sequence);
+        }
+    }
+}
@@ -0,0 +1,298 @@
+package whispers.thespire.llm;
+
+import com.evacipated.cardcrawl.modthespire.lib.ConfigUtils;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import whispers.thespire.config.ModConfig;
+import whispers.thespire.llm.model.LLMRequest;
+import whispers.thespire.llm.model.LLMResult;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Two-tier cache of successful answers: a small in-memory LRU of ready results in front of a larger
+// LRU persisted to response_cache.json, so reloading a save or revisiting a screen skips the network.
+public class ResponseCache {
+    private static final Object LOCK = new Object();
+    // Held while writing the file, never together with LOCK, so lookups do not wait for the disk.
+    private static final Object SAVE_LOCK = new Object();
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+    private static final int MEMORY_CAPACITY = 64;
+    private static final int DISK_CAPACITY = 512;
+    private static final long SAVE_COOLDOWN_MS = 1500L;
+
+    private static boolean loaded = false;
+    private static boolean dirty = false;
+    private static long lastSaveMs = 0L;
+    private static long saveSeq = 0L;
+    private static long writtenSeq = 0L;
+    private static final LinkedHashMap<String, LLMResult> memory = new LinkedHashMap<String, LLMResult>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LLMResult> eldest) {
+            return size() > MEMORY_CAPACITY;
+        }
+    };
+    private static final LinkedHashMap<String, CacheEntry> disk = new LinkedHashMap<String, CacheEntry>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+            return size() > DISK_CAPACITY;
+        }
+    };
+
+    private static long memoryHits = 0L;
+    private static long diskHits = 0L;
+    private static long misses = 0L;
+
+    private ResponseCache() {}
+
+    public static LLMResult get(LLMRequest request) {
+        String key = keyFor(request);
+        if (key == null) {
+            return null;
+        }
+        ensureLoaded();
+        synchronized (LOCK) {
+            LLMResult hit = memory.get(key);
+            if (hit != null) {
+                memoryHits++;
+                return asHit(hit);
+            }
+            CacheEntry entry = disk.get(key);
+            if (entry != null && entry.result != null) {
+                diskHits++;
+                entry.lastUsedAt = System.currentTimeMillis();
+                dirty = true;
+                memory.put(key, entry.result);
+                return asHit(entry.result);
+            }
+            misses++;
+            return null;
+        }
+    }
+
+    public static void put(LLMRequest request, LLMResult result) {
+        // A salvaged answer was cut short; asking again may well produce the whole thing.
+        if (result == null || !result.ok || result.fromCache || result.partial) {
+            return;
+        }
+        String key = keyFor(request);
+        if (key == null) {
+            return;
+        }
+        ensureLoaded();
+        synchronized (LOCK) {
+            LLMResult stored = copyOf(result);
+            stored.raw = null;
+            memory.put(key, stored);
+            CacheEntry entry = new CacheEntry();
+            entry.key = key;
+            entry.createdAt = System.currentTimeMillis();
+            entry.lastUsedAt = entry.createdAt;
+            entry.result = stored;
+            disk.put(key, entry);
+            dirty = true;
+        }
+        save(false);
+    }
+
+    // Loads the disk tier off the game thread before the first lookup needs it.
+    public static void preload() {
+        ensureLoaded();
+    }
+
+    public static void flush() {
+        save(true);
+    }
+
+    public static String statsLine() {
+        synchronized (LOCK) {
+            return "cache mem=" + memoryHits + " disk=" + diskHits + " miss=" + misses
+                    + " size=" + memory.size() + "/" + disk.size();
+        }
+    }
+
+    static String keyFor(LLMRequest request) {
+        return ModConfig.responseCacheEnabled ? fingerprint(request) : null;
+    }
+
+    // Identifies requests that must produce the same answer; also used to coalesce in-flight calls.
+    // Keyed on the snapshot text the prompt will carry (JSON or compact), not on snapshot_hash: that
+    // hash only has to notice screen changes worth a new auto request and leaves out upgrades, costs,
+    // prices, monster block/powers and the full map, all of which change the prompt.
+    static String fingerprint(LLMRequest request) {
+        if (request == null) {
+            return null;
+        }
+        String provider = request.provider == null ? ModConfig.provider : request.provider;
+        boolean compact = request.snapshotCompact != null && SnapshotEncoding.compact(provider);
+        String snapshot = compact ? request.snapshotCompact : request.snapshotJson;
+        if (snapshot == null || snapshot.isEmpty()) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        sb.append(request.contextType == null ? "" : request.contextType).append('|');
+        sb.append(provider == null ? "" : provider.trim().toLowerCase()).append('|');
+        sb.append(request.model == null ? "" : request.model.trim()).append('|');
+        sb.append(ModConfig.language == null ? "" : ModConfig.language).append('|');
+        sb.append(PromptBuilder.TEMPLATE_VERSION).append('|');
+        // Toggles that change the prompt text or the shape of the answer.
+        sb.append(ModConfig.showReasons).append('|');
+        sb.append(ModConfig.multiRecommendations).append('|');
+        sb.append(ModConfig.useKnowledgeBase).append('|');
+        sb.append(compact).append('|');
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(sb.toString().getBytes(StandardCharsets.UTF_8));
+            byte[] hash = digest.digest(snapshot.getBytes(StandardCharsets.UTF_8));
+            char[] hex = new char[hash.length * 2];
+            for (int i = 0; i < hash.length; i++) {
+                hex[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+                hex[i * 2 + 1] = HEX[hash[i] & 0xF];
+            }
+            return new String(hex);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // Callers get their own copy so nothing they do to the result leaks back into the cache.
+    private static LLMResult copyOf(LLMResult result) {
+        return GSON.fromJson(GSON.toJson(result), LLMResult.class);
+    }
+
+    private static LLMResult asHit(LLMResult result) {
+        LLMResult copy = copyOf(result);
+        copy.fromCache = true;
+        return copy;
+    }
+
+    private static void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (LOCK) {
+            if (loaded) {
+                return;
+            }
+            load();
+            loaded = true;
+        }
+    }
+
+    private static void load() {
+        File file = getFile();
+        if (!file.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            CacheStore store = GSON.fromJson(reader, CacheStore.class);
+            if (store == null || store.version != PromptBuilder.TEMPLATE_VERSION || store.entries == null) {
+                return;
+            }
+            // Entries are written oldest first, so replaying them rebuilds the access order.
+            for (CacheEntry entry : store.entries) {
+                if (entry == null || entry.key == null || entry.result == null) {
+                    continue;
+                }
+                disk.put(entry.key, entry);
+            }
+        } catch (Exception ignored) {
+            disk.clear();
+        }
+    }
+
+    // Copies the entries under LOCK and writes them without it, to a temp file that then replaces
+    // response_cache.json, so a crash mid-write leaves the previous file intact. Runs on the caller's
+    // thread (the request worker for put()).
+    private static void save(boolean force) {
+        CacheStore store;
+        long seq;
+        synchronized (LOCK) {
+            if (!dirty) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+            if (!force && now - lastSaveMs < SAVE_COOLDOWN_MS) {
+                return;
+            }
+            lastSaveMs = now;
+            store = new CacheStore();
+            store.version = PromptBuilder.TEMPLATE_VERSION;
+            store.entries = new ArrayList<>(disk.size());
+            for (CacheEntry entry : disk.values()) {
+                store.entries.add(entry.copy());
+            }
+            seq = ++saveSeq;
+            dirty = false;
+        }
+        synchronized (SAVE_LOCK) {
+            // A newer copy was already written by another thread.
+            if (seq <= writtenSeq) {
+                return;
+            }
+            File file = getFile();
+            File temp = new File(file.getPath() + ".tmp");
+            try {
+                try (BufferedWriter writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), StandardCharsets.UTF_8))) {
+                    GSON.toJson(store, writer);
+                }
+                try {
+                    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                }
+                writtenSeq = seq;
+            } catch (Exception ignored) {
+                // ignore save errors; the entries are written again with the next change
+                synchronized (LOCK) {
+                    dirty = true;
+                }
+            }
+        }
+    }
+
+    private static File getFile() {
+        String base = ConfigUtils.CONFIG_DIR;
+        File dir = new File(base, "WhispersTheSpire");
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        return new File(dir, "response_cache.json");
+    }
+
+    private static class CacheStore {
+        int version;
+        List<CacheEntry> entries = new ArrayList<>();
+    }
+
+    private static class CacheEntry {
+        String key;
+        long createdAt;
+        long lastUsedAt;
+        LLMResult result;
+
+        CacheEntry copy() {
+            CacheEntry copy = new CacheEntry();
+            copy.key = key;
+            copy.createdAt = createdAt;
+            copy.lastUsedAt = lastUsedAt;
+            copy.result = result;
+            return copy;
+        }
+    }
+}
@@ -1,36 +1,66 @@
 package whispers.thespire.llm;
 
-import com.google.gson.Gson;
 import com.google.gson.JsonArray;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
-import whispers.thespire.llm.model.LLMRecommendation;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import whispers.thespire.llm.model.LLMResult;
 import whispers.thespire.util.JsonUtil;
 
-import java.util.ArrayList;
-import java.util.List;
+import java.io.StringReader;
 
 public class ResponseParser {
-    private static final Gson GSON = new Gson();
-
     private ResponseParser() {}
 
+    // The envelope is read with a streaming JsonReader straight to the content string; no tree is built.
     public static LLMResult parseChatCompletion(String responseBody) {
         try {
-            JsonObject root = new JsonParser().parse(responseBody).getAsJsonObject();
-            JsonArray choices = root.getAsJsonArray("choices");
-            if (choices == null || choices.size() == 0) {
+            JsonReader reader = reader(responseBody);
+            boolean hasChoice = false;
+            String content = null;
+            String finishReason = null;
+            Usage usage = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String field = reader.nextName();
+                if ("usage".equals(field)) {
+                    usage = readUsage(reader, "prompt_tokens", "completion_tokens");
+                    continue;
+                }
+                if (!"choices".equals(field) || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                if (reader.hasNext() && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                    hasChoice = true;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        if ("message".equals(name)) {
+                            content = readPath(reader, "content");
+                        } else if ("finish_reason".equals(name)) {
+                            finishReason = readPath(reader);
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
+                    reader.endObject();
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            }
+            if (!hasChoice) {
                 return LLMResult.failure("missing_choices", JsonUtil.truncate(responseBody, 4000));
             }
-            JsonObject choice0 = choices.get(0).getAsJsonObject();
-            JsonObject message = choice0.getAsJsonObject("message");
-            if (message == null || !message.has("content")) {
+            if (content == null) {
                 return LLMResult.failure("missing_content", JsonUtil.truncate(responseBody, 4000));
             }
-            String content = message.get("content").getAsString();
-            return parseContent(content);
+            return withUsage(parseContent(content, finishReason), usage);
         } catch (Exception e) {
             return LLMResult.failure("parse_failed:" + e.getClass().getSimpleName(), JsonUtil.truncate(responseBody, 4000));
         }
@@ -38,107 +68,288 @@ public class ResponseParser {
 
     public static LLMResult parseGeminiGenerateContent(String responseBody) {
         try {
-            JsonObject root = new JsonParser().parse(responseBody).getAsJsonObject();
-            JsonArray candidates = root.getAsJsonArray("candidates");
-            if (candidates == null || candidates.size() == 0) {
+            JsonReader reader = reader(responseBody);
+            boolean hasCandidate = false;
+            boolean hasContent = false;
+            boolean hasParts = false;
+            String text = null;
+            String finishReason = null;
+            Usage usage = null;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String field = reader.nextName();
+                if ("usageMetadata".equals(field)) {
+                    usage = readUsage(reader, "promptTokenCount", "candidatesTokenCount");
+                    continue;
+                }
+                if (!"candidates".equals(field) || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                    reader.skipValue();
+                    continue;
+                }
+                reader.beginArray();
+                if (reader.hasNext()) {
+                    hasCandidate = true;
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        String name = reader.nextName();
+                        if ("finishReason".equals(name)) {
+                            finishReason = readPath(reader);
+                            continue;
+                        }
+                        if (!"content".equals(name) || reader.peek() != JsonToken.BEGIN_OBJECT) {
+                            reader.skipValue();
+                            continue;
+                        }
+                        hasContent = true;
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            if (!"parts".equals(reader.nextName()) || reader.peek() != JsonToken.BEGIN_ARRAY) {
+                                reader.skipValue();
+                                continue;
+                            }
+                            reader.beginArray();
+                            while (reader.hasNext()) {
+                                hasParts = true;
+                                String partText = readPath(reader, "text");
+                                if (text == null) {
+                                    text = partText;
+                                }
+                            }
+                            reader.endArray();
+                        }
+                        reader.endObject();
+                    }
+                    reader.endObject();
+                }
+                while (reader.hasNext()) {
+                    reader.skipValue();
+                }
+                reader.endArray();
+            }
+            if (!hasCandidate) {
                 return LLMResult.failure("missing_candidates", JsonUtil.truncate(responseBody, 4000));
             }
-            JsonObject candidate0 = candidates.get(0).getAsJsonObject();
-            JsonObject content = candidate0.getAsJsonObject("content");
-            if (content == null) {
+            if (!hasContent) {
                 return LLMResult.failure("missing_content", JsonUtil.truncate(responseBody, 4000));
             }
-            JsonArray parts = content.getAsJsonArray("parts");
-            if (parts == null || parts.size() == 0) {
+            if (!hasParts) {
                 return LLMResult.failure("missing_content_parts", JsonUtil.truncate(responseBody, 4000));
             }
-            String text = null;
-            for (JsonElement partEl : parts) {
-                if (partEl == null || !partEl.isJsonObject()) {
-                    continue;
-                }
-                JsonObject part = partEl.getAsJsonObject();
-                if (part.has("text")) {
-                    text = part.get("text").getAsString();
-                    break;
-                }
-            }
             if (text == null) {
                 return LLMResult.failure("missing_content_text", JsonUtil.truncate(responseBody, 4000));
             }
-            return parseContent(text);
+            return withUsage(parseContent(text, finishReason), usage);
         } catch (Exception e) {
             return LLMResult.failure("parse_failed:" + e.getClass().getSimpleName(), JsonUtil.truncate(responseBody, 4000));
         }
     }
 
-    private static LLMResult parseContent(String content) {
-        String cleaned = JsonUtil.stripCodeFences(content);
-        String jsonObject = JsonUtil.extractFirstJsonObject(cleaned);
-        if (jsonObject == null) {
-            return LLMResult.failure("parse_failed:no_json", JsonUtil.truncate(content, 4000));
+    static LLMResult parseContent(String content, String finishReason) {
+        AdviceParser parser = new AdviceParser();
+        parser.feed(content);
+        return parser.result(finishReason);
+    }
+
+    // Provider-reported token counts replace the parser's estimate.
+    static LLMResult withUsage(LLMResult result, Usage usage) {
+        if (result == null || usage == null) {
+            return result;
+        }
+        if (usage.promptTokens != null) {
+            result.promptTokens = usage.promptTokens;
+        }
+        if (usage.completionTokens != null) {
+            result.completionTokens = usage.completionTokens;
         }
+        if (usage.cachedTokens != null) {
+            result.cachedTokens = usage.cachedTokens;
+        }
+        return result;
+    }
 
-        try {
-            JsonObject root = new JsonParser().parse(jsonObject).getAsJsonObject();
-            LLMResponse parsed = GSON.fromJson(root, LLMResponse.class);
-            if (parsed == null || parsed.recommendations == null) {
-                return LLMResult.failure("parse_failed:missing_fields", JsonUtil.truncate(content, 4000));
-            }
-            List<LLMRecommendation> recs = new ArrayList<>();
-            boolean combat = "COMBAT".equalsIgnoreCase(parsed.context_type);
-            boolean shop = "SHOP".equalsIgnoreCase(parsed.context_type);
-            int limit;
-            if (shop) {
-                limit = 3;
-            } else if (combat) {
-                limit = whispers.thespire.config.ModConfig.multiRecommendations ? 2 : 1;
-            } else {
-                limit = whispers.thespire.config.ModConfig.multiRecommendations ? 3 : 1;
+    // Usage carried by a streamed chunk (usage for chat, usageMetadata for Gemini), or null.
+    static Usage chunkUsage(JsonObject chunk, String object, String promptField, String completionField) {
+        if (chunk == null || !chunk.has(object) || !chunk.get(object).isJsonObject()) {
+            return null;
+        }
+        JsonObject usage = chunk.getAsJsonObject(object);
+        Usage result = new Usage();
+        result.promptTokens = intField(usage, promptField);
+        result.completionTokens = intField(usage, completionField);
+        result.cachedTokens = cachedField(usage);
+        return result;
+    }
+
+    private static Integer intField(JsonObject object, String field) {
+        JsonElement value = object.get(field);
+        return value == null || !value.isJsonPrimitive() ? null : value.getAsInt();
+    }
+
+    // Prompt tokens served from the provider's prompt cache: prompt_tokens_details.cached_tokens
+    // (OpenAI), prompt_cache_hit_tokens (DeepSeek) or cachedContentTokenCount (Gemini).
+    private static Integer cachedField(JsonObject usage) {
+        JsonElement details = usage.get("prompt_tokens_details");
+        if (details != null && details.isJsonObject()) {
+            Integer cached = intField(details.getAsJsonObject(), "cached_tokens");
+            if (cached != null) {
+                return cached;
             }
-            for (LLMRecommendation rec : parsed.recommendations) {
-                if (rec == null) {
-                    continue;
-                }
-                if (combat) {
-                    rec.action_type = "combat_line";
-                } else if (rec.action_type == null) {
-                    rec.action_type = "general";
-                }
-                if (rec.title == null) rec.title = "";
-                if (rec.action == null) rec.action = "";
-                if (rec.reason == null) rec.reason = "";
-                if (rec.confidence == null) rec.confidence = 0.5f;
-                recs.add(rec);
-                if (recs.size() >= limit) {
-                    break;
+        }
+        Integer hit = intField(usage, "prompt_cache_hit_tokens");
+        return hit != null ? hit : intField(usage, "cachedContentTokenCount");
+    }
+
+    private static Usage readUsage(JsonReader reader, String promptField, String completionField) throws Exception {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+        Usage usage = new Usage();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            if (promptField.equals(name) && reader.peek() == JsonToken.NUMBER) {
+                usage.promptTokens = reader.nextInt();
+            } else if (completionField.equals(name) && reader.peek() == JsonToken.NUMBER) {
+                usage.completionTokens = reader.nextInt();
+            } else if (("prompt_cache_hit_tokens".equals(name) || "cachedContentTokenCount".equals(name))
+                    && reader.peek() == JsonToken.NUMBER) {
+                usage.cachedTokens = reader.nextInt();
+            } else if ("prompt_tokens_details".equals(name) && reader.peek() == JsonToken.BEGIN_OBJECT) {
+                String cached = readPath(reader, "cached_tokens");
+                if (cached != null) {
+                    usage.cachedTokens = Integer.parseInt(cached);
                 }
+            } else {
+                reader.skipValue();
             }
-            LLMResult result = LLMResult.success(parsed.context_type, parsed.summary == null ? "" : parsed.summary, recs);
-            if (parsed.next_pick_index != null) {
-                result.nextPickIndex = parsed.next_pick_index;
+        }
+        reader.endObject();
+        return usage;
+    }
+
+    // Reads the string at the given object path from the value under the reader, consuming the whole
+    // value. Returns null when the path is missing or not a string.
+    private static String readPath(JsonReader reader, String... path) throws Exception {
+        return readPath(reader, path, 0);
+    }
+
+    private static String readPath(JsonReader reader, String[] path, int index) throws Exception {
+        if (index == path.length) {
+            if (reader.peek() == JsonToken.STRING || reader.peek() == JsonToken.NUMBER) {
+                return reader.nextString();
             }
-            if (parsed.route_plan != null && !parsed.route_plan.isEmpty()) {
-                result.routePlan = parsed.route_plan;
-            } else if (root != null && root.has("route_plan") && root.get("route_plan").isJsonPrimitive()) {
-                String route = root.get("route_plan").getAsString();
-                if (route != null && !route.isEmpty()) {
-                    List<String> list = new ArrayList<>();
-                    list.add(route);
-                    result.routePlan = list;
-                }
+            reader.skipValue();
+            return null;
+        }
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            reader.skipValue();
+            return null;
+        }
+        String found = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (path[index].equals(reader.nextName()) && found == null) {
+                found = readPath(reader, path, index + 1);
+            } else {
+                reader.skipValue();
             }
-            return result;
+        }
+        reader.endObject();
+        return found;
+    }
+
+    private static JsonReader reader(String json) {
+        JsonReader reader = new JsonReader(new StringReader(json));
+        reader.setLenient(true);
+        return reader;
+    }
+
+    static JsonObject parseChunk(String data) {
+        try {
+            JsonElement element = new JsonParser().parse(data);
+            return element != null && element.isJsonObject() ? element.getAsJsonObject() : null;
         } catch (Exception e) {
-            return LLMResult.failure("parse_failed:" + e.getClass().getSimpleName(), JsonUtil.truncate(content, 4000));
+            return null;
+        }
+    }
+
+    static String chatDeltaText(JsonObject chunk) {
+        if (chunk == null) {
+            return null;
+        }
+        JsonArray choices = chunk.getAsJsonArray("choices");
+        if (choices == null || choices.size() == 0 || !choices.get(0).isJsonObject()) {
+            return null;
+        }
+        JsonObject delta = choices.get(0).getAsJsonObject().getAsJsonObject("delta");
+        if (delta == null || !delta.has("content") || delta.get("content").isJsonNull()) {
+            return null;
+        }
+        return delta.get("content").getAsString();
+    }
+
+    static String chatFinishReason(JsonObject chunk) {
+        if (chunk == null) {
+            return null;
+        }
+        JsonArray choices = chunk.getAsJsonArray("choices");
+        if (choices == null || choices.size() == 0 || !choices.get(0).isJsonObject()) {
+            return null;
+        }
+        JsonElement reason = choices.get(0).getAsJsonObject().get("finish_reason");
+        return reason == null || reason.isJsonNull() ? null : reason.getAsString();
+    }
+
+    static String geminiFinishReason(JsonObject chunk) {
+        if (chunk == null) {
+            return null;
+        }
+        JsonArray candidates = chunk.getAsJsonArray("candidates");
+        if (candidates == null || candidates.size() == 0 || !candidates.get(0).isJsonObject()) {
+            return null;
+        }
+        JsonElement reason = candidates.get(0).getAsJsonObject().get("finishReason");
+        return reason == null || reason.isJsonNull() ? null : reason.getAsString();
+    }
+
+    // True when the model stopped because it ran out of output tokens.
+    public static boolean isTruncation(String finishReason) {
+        return "length".equalsIgnoreCase(finishReason) || "MAX_TOKENS".equalsIgnoreCase(finishReason);
+    }
+
+    static String geminiDeltaText(JsonObject chunk) {
+        if (chunk == null) {
+            return null;
+        }
+        JsonArray candidates = chunk.getAsJsonArray("candidates");
+        if (candidates == null || candidates.size() == 0 || !candidates.get(0).isJsonObject()) {
+            return null;
+        }
+        JsonObject content = candidates.get(0).getAsJsonObject().getAsJsonObject("content");
+        JsonArray parts = content == null ? null : content.getAsJsonArray("parts");
+        if (parts == null) {
+            return null;
+        }
+        StringBuilder sb = new StringBuilder();
+        for (JsonElement partEl : parts) {
+            if (partEl == null || !partEl.isJsonObject()) {
+                continue;
+            }
+            JsonObject part = partEl.getAsJsonObject();
+            if (part.has("thought") && part.get("thought").getAsBoolean()) {
+                continue;
+            }
+            if (part.has("text") && !part.get("text").isJsonNull()) {
+                sb.append(part.get("text").getAsString());
+            }
         }
+        return sb.toString();
     }
 
-    private static class LLMResponse {
-        String context_type;
-        String summary;
-        List<LLMRecommendation> recommendations;
-        Integer next_pick_index;
-        List<String> route_plan;
+    static class Usage {
+        Integer promptTokens;
+        Integer completionTokens;
+        Integer cachedTokens;
     }
 }
@@ -0,0 +1,145 @@
+package whispers.thespire.llm;
+
+import whispers.thespire.llm.model.LLMRequest;
+import whispers.thespire.llm.model.LLMResult;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// JSON schema of the advice answer, sent as response_format (OpenAI-compatible) or responseSchema
+// (Gemini) when structured output is on. Endpoints that reject it are remembered and get the plain
+// prompt from then on. Parse failures are counted per mode so both can be compared.
+public class ResponseSchema {
+    private static final Set<String> unsupported = new HashSet<>();
+    private static long plainParsed = 0L;
+    private static long plainFailed = 0L;
+    private static long schemaParsed = 0L;
+    private static long schemaFailed = 0L;
+    private static long rejected = 0L;
+
+    private ResponseSchema() {}
+
+    public static boolean enabledFor(LLMRequest request) {
+        if (request == null || !request.structuredOutput) {
+            return false;
+        }
+        synchronized (unsupported) {
+            return !unsupported.contains(endpointKey(request));
+        }
+    }
+
+    // A 400/422 answer to a schema request may just mean the endpoint does not understand it.
+    public static boolean isRejection(LLMResult result) {
+        if (result == null || result.ok || result.errorMessage == null) {
+            return false;
+        }
+        return result.errorMessage.equals("http_error:400") || result.errorMessage.equals("http_error:422");
+    }
+
+    public static void markUnsupported(LLMRequest request) {
+        synchronized (unsupported) {
+            unsupported.add(endpointKey(request));
+            rejected++;
+        }
+        System.err.println("WhispersTheSpire: structured output rejected by " + request.model + ", using plain prompt");
+    }
+
+    // Only answers that reached the parser count; transport errors say nothing about the format.
+    public static void recordParse(boolean structured, LLMResult result) {
+        if (result == null) {
+            return;
+        }
+        boolean failed = !result.ok;
+        if (failed && (result.errorMessage == null
+                || !(result.errorMessage.startsWith("parse_failed") || result.errorMessage.startsWith("missing_")))) {
+            return;
+        }
+        synchronized (unsupported) {
+            if (structured) {
+                schemaParsed++;
+                if (failed) schemaFailed++;
+            } else {
+                plainParsed++;
+                if (failed) plainFailed++;
+            }
+        }
+    }
+
+    public static String statsLine() {
+        synchronized (unsupported) {
+            return "parse_fail plain=" + rate(plainFailed, plainParsed) + " schema=" + rate(schemaFailed, schemaParsed)
+                    + " rejected=" + rejected;
+        }
+    }
+
+    public static Map<String, Object> openAiResponseFormat() {
+        Map<String, Object> jsonSchema = new LinkedHashMap<>();
+        jsonSchema.put("name", "whispers_advice");
+        jsonSchema.put("strict", true);
+        jsonSchema.put("schema", schema(false));
+        Map<String, Object> format = new LinkedHashMap<>();
+        format.put("type", "json_schema");
+        format.put("json_schema", jsonSchema);
+        return format;
+    }
+
+    public static Map<String, Object> geminiResponseSchema() {
+        return schema(true);
+    }
+
+    // Gemini takes an OpenAPI subset: upper-case type names and no additionalProperties.
+    private static Map<String, Object> schema(boolean gemini) {
+        Map<String, Object> rec = new LinkedHashMap<>();
+        rec.put("action_type", type(gemini, "string"));
+        rec.put("title", type(gemini, "string"));
+        rec.put("action", type(gemini, "string"));
+        rec.put("reason", type(gemini, "string"));
+        rec.put("confidence", type(gemini, "number"));
+        Map<String, Object> recommendation = object(gemini, rec);
+
+        Map<String, Object> recommendations = type(gemini, "array");
+        recommendations.put("items", recommendation);
+        Map<String, Object> routePlan = type(gemini, "array");
+        routePlan.put("items", type(gemini, "string"));
+
+        Map<String, Object> root = new LinkedHashMap<>();
+        root.put("context_type", type(gemini, "string"));
+        root.put("summary", type(gemini, "string"));
+        root.put("recommendations", recommendations);
+        root.put("next_pick_index", type(gemini, "integer"));
+        root.put("route_plan", routePlan);
+        return object(gemini, root);
+    }
+
+    private static Map<String, Object> object(boolean gemini, Map<String, Object> properties) {
+        Map<String, Object> object = type(gemini, "object");
+        object.put("properties", properties);
+        List<String> required = new ArrayList<>(properties.keySet());
+        object.put("required", required);
+        if (gemini) {
+            object.put("propertyOrdering", new ArrayList<>(properties.keySet()));
+        } else {
+            object.put("additionalProperties", false);
+        }
+        return object;
+    }
+
+    private static Map<String, Object> type(boolean gemini, String name) {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("type", gemini ? name.toUpperCase() : name);
+        return map;
+    }
+
+    private static String rate(long failed, long total) {
+        int percent = total == 0 ? 0 : (int) Math.round(failed * 100.0 / total);
+        return failed + "/" + total + "(" + percent + "%)";
+    }
+
+    private static String endpointKey(LLMRequest request) {
+        return (request.baseUrl == null ? "" : request.baseUrl.trim()) + "|" + (request.model == null ? "" : request.model.trim());
+    }
+}
@@ -0,0 +1,73 @@
+package whispers.thespire.llm;
+
+import whispers.thespire.config.ModConfig;
+import whispers.thespire.llm.model.LLMResult;
+import whispers.thespire.util.CancelToken;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// Retries of one endpoint after a transient failure (429, 5xx gateway errors, dropped connections).
+// Delays use decorrelated jitter, sleep = min(cap, random(base, 3 * previous sleep)), so clients that
+// failed together do not retry together; a longer Retry-After from the server wins. Retries stop at
+// ModConfig.retryMaxAttempts, at the request's deadline, or as soon as the request is cancelled
+// (the overlay cancels when the screen context changes).
+public class RetryPolicy {
+    private static final long BASE_DELAY_MS = 250L;
+    private static final long MAX_DELAY_MS = 4000L;
+    // A retry needs at least this much time left to have a chance of answering.
+    private static final long MIN_ATTEMPT_MS = 1000L;
+
+    private RetryPolicy() {}
+
+    public static boolean isRetryable(LLMResult result) {
+        if (result == null || result.ok || result.errorMessage == null) {
+            return false;
+        }
+        String error = result.errorMessage;
+        if (error.startsWith("http_error:")) {
+            String code = error.substring("http_error:".length());
+            return "429".equals(code) || "500".equals(code) || "502".equals(code) || "503".equals(code) || "504".equals(code);
+        }
+        // SSL failures have their own fallbacks in the clients; a timeout already used the whole budget.
+        return error.startsWith("request_failed:") && !error.startsWith("request_failed:SSL")
+                && !error.startsWith("request_failed:SocketTimeoutException");
+    }
+
+    // Next delay after previousMs (0 for the first retry), at least minDelayMs (e.g. what is left of
+    // the endpoint's 429 block), or -1 when the deadline leaves no room.
+    public static long nextDelayMs(long previousMs, LLMResult result, long minDelayMs, long deadlineMs) {
+        long upper = Math.max(BASE_DELAY_MS + 1L, Math.min(MAX_DELAY_MS, previousMs * 3L));
+        long delay = ThreadLocalRandom.current().nextLong(BASE_DELAY_MS, upper);
+        if (result != null && result.retryAfterMs > delay) {
+            delay = result.retryAfterMs;
+        }
+        delay = Math.max(delay, minDelayMs);
+        if (deadlineMs > 0 && System.currentTimeMillis() + delay + MIN_ATTEMPT_MS > deadlineMs) {
+            return -1L;
+        }
+        return delay;
+    }
+
+    public static int maxAttempts() {
+        return Math.max(1, ModConfig.retryMaxAttempts);
+    }
+
+    // Waits delayMs unless the token is cancelled first; false when cancelled.
+    public static boolean await(CancelToken token, long delayMs) {
+        CountDownLatch woken = new CountDownLatch(1);
+        Runnable hook = token == null ? null : token.onCancel(woken::countDown);
+        try {
+            woken.await(delayMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } finally {
+            if (hook != null) {
+                token.remove(hook);
+            }
+        }
+        return !CancelToken.isCancelled(token);
+    }
+}
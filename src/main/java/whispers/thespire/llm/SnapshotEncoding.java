@@ -0,0 +1,75 @@
+package whispers.thespire.llm;
+
+import whispers.thespire.config.ModConfig;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// Which form of the snapshot goes into the prompt, per provider. ModConfig.snapshotEncoding is
+// "json" (default), "compact", or comma-separated "provider=json|compact" entries where "local"
+// matches any local provider and "*" everything else, e.g. "local=compact,*=json".
+// The compact form (state.CompactSnapshotWriter) needs LEGEND in the system prompt to be readable.
+public class SnapshotEncoding {
+    public static final String LEGEND = "snapshot_json is in compact form: ctx=screen; run{act, fl=floor, asc=ascension, "
+            + "gold, hp=[current,max], ch=character, seed}; deck; relics; potions; map{at=[x,y,type], next}; "
+            + "mapf=full map rows {y, n=nodes with to=[[x,y],...] next nodes}; reward{cards, skip}; neow{options}; "
+            + "shop{cards, relics, potions, purge, purge_cost, purge_cands}; boss{relics, skip}; "
+            + "rest{options, upg=upgradable cards}; event{id, name, options}; combat{turn, e=energy, blk=block, "
+            + "pw=[[power,amount]], hand, draw/disc/exh=pile sizes, mon=monsters{hp, max, blk, intent, dmg, "
+            + "base=base damage, hits, multi, move, pw}}; dropped=fields trimmed away. "
+            + "A table {\"k\":[columns],\"v\":[[row],...]} holds one item per row; t=type; "
+            + "a card id ending in + is upgraded; n=copies (1 when the column is missing). "
+            + "Missing keys and columns mean empty, zero or false.";
+
+    private static final Object LOCK = new Object();
+    private static String parsedSpec = null;
+    private static Map<String, Boolean> modes = new HashMap<>();
+
+    private SnapshotEncoding() {}
+
+    public static boolean compact(String provider) {
+        String key = provider == null ? ModConfig.provider : provider;
+        key = key == null ? "" : key.trim().toLowerCase();
+        synchronized (LOCK) {
+            Map<String, Boolean> parsed = parsed();
+            Boolean mode = parsed.get(key);
+            if (mode == null && Endpoint.isLocal(key)) {
+                mode = parsed.get("local");
+            }
+            if (mode == null) {
+                mode = parsed.get("*");
+            }
+            return mode != null && mode;
+        }
+    }
+
+    // True when some provider may get the compact form, i.e. it is worth building at all.
+    public static boolean anyCompact() {
+        synchronized (LOCK) {
+            return parsed().containsValue(Boolean.TRUE);
+        }
+    }
+
+    private static Map<String, Boolean> parsed() {
+        String spec = ModConfig.snapshotEncoding == null ? "" : ModConfig.snapshotEncoding;
+        if (!spec.equals(parsedSpec)) {
+            modes = parse(spec);
+            parsedSpec = spec;
+        }
+        return modes;
+    }
+
+    static Map<String, Boolean> parse(String spec) {
+        Map<String, Boolean> parsed = new HashMap<>();
+        for (String entry : spec.split(",")) {
+            int eq = entry.indexOf('=');
+            String key = eq < 0 ? "*" : entry.substring(0, eq).trim().toLowerCase();
+            String mode = (eq < 0 ? entry : entry.substring(eq + 1)).trim().toLowerCase();
+            if (key.isEmpty() || !("compact".equals(mode) || "json".equals(mode))) {
+                continue;
+            }
+            parsed.put(key, "compact".equals(mode));
+        }
+        return parsed;
+    }
+}
@@ -0,0 +1,50 @@
+package whispers.thespire.llm;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+// Minimal server-sent-events reader: returns the joined data lines of each event.
+public class SseReader implements Closeable {
+    private final BufferedReader reader;
+
+    public SseReader(InputStream stream) {
+        this.reader = new BufferedReader(new InputStreamReader(stream, StandardCharsets.UTF_8));
+    }
+
+    public String nextData() throws IOException {
+        StringBuilder data = null;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.isEmpty()) {
+                if (data != null) {
+                    return data.toString();
+                }
+                continue;
+            }
+            if (line.startsWith(":")) {
+                continue;
+            }
+            if (line.startsWith("data:")) {
+                String value = line.substring(5);
+                if (value.startsWith(" ")) {
+                    value = value.substring(1);
+                }
+                if (data == null) {
+                    data = new StringBuilder(value);
+                } else {
+                    data.append('\n').append(value);
+                }
+            }
+        }
+        return data == null ? null : data.toString();
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
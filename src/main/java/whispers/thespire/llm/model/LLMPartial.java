@@ -0,0 +1,32 @@
+package whispers.thespire.llm.model;
+
+import java.util.List;
+
+// Progress of a streaming request, written by the LLM thread and polled by the overlay.
+public class LLMPartial {
+    private volatile String summary = "";
+    private volatile List<LLMRecommendation> recommendations;
+    private volatile int version = 0;
+
+    public void reset() {
+        publish("", null);
+    }
+
+    public void publish(String summary, List<LLMRecommendation> recommendations) {
+        this.summary = summary == null ? "" : summary;
+        this.recommendations = recommendations;
+        version++;
+    }
+
+    public String getSummary() {
+        return summary;
+    }
+
+    public List<LLMRecommendation> getRecommendations() {
+        return recommendations;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+}
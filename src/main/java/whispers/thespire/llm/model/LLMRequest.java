@@ -1,15 +1,34 @@
 package whispers.thespire.llm.model;
 
+import whispers.thespire.util.CancelToken;
+
 public class LLMRequest {
+    public String provider;
     public String baseUrl;
     public String model;
     public String apiKey;
     public float temperature;
     public int maxTokens;
     public int timeoutMs;
+    public int connectTimeoutMs;
+    // Wall-clock time after which no retry is started; 0 for none.
+    public long deadlineMs;
     public String contextType;
+    // Trigger context (COMBAT_TURN, MAP_PATH, ...) ModelRouter picks the model and SLO by.
+    public String routeContext;
+    public long sloMs;
     public String snapshotJson;
+    // snapshotJson already escaped for a JSON string (SnapshotManager.Result.escapedJson()); request
+    // bodies copy it instead of escaping the snapshot again. Null when not available.
+    public byte[] snapshotJsonEscaped;
     public String snapshotHash;
+    // Token count SnapshotManager measured for snapshotJson; 0 when unknown.
+    public int snapshotTokens;
+    // The same snapshot in the compact encoding (see llm.SnapshotEncoding), with its escaped bytes and
+    // token count; null unless some provider is configured for it.
+    public String snapshotCompact;
+    public byte[] snapshotCompactEscaped;
+    public int snapshotCompactTokens;
     public Integer ascension;
     public String character;
     public Long seed;
@@ -29,4 +48,55 @@ public class LLMRequest {
     public String eventId;
     public String eventName;
     public String eventOptions;
+    public boolean stream;
+    public boolean structuredOutput;
+    public LLMPartial partial;
+    public CancelToken cancelToken;
+
+    public LLMRequest copy() {
+        LLMRequest copy = new LLMRequest();
+        copy.provider = provider;
+        copy.baseUrl = baseUrl;
+        copy.model = model;
+        copy.apiKey = apiKey;
+        copy.temperature = temperature;
+        copy.maxTokens = maxTokens;
+        copy.timeoutMs = timeoutMs;
+        copy.connectTimeoutMs = connectTimeoutMs;
+        copy.deadlineMs = deadlineMs;
+        copy.contextType = contextType;
+        copy.routeContext = routeContext;
+        copy.sloMs = sloMs;
+        copy.snapshotJson = snapshotJson;
+        copy.snapshotJsonEscaped = snapshotJsonEscaped;
+        copy.snapshotHash = snapshotHash;
+        copy.snapshotTokens = snapshotTokens;
+        copy.snapshotCompact = snapshotCompact;
+        copy.snapshotCompactEscaped = snapshotCompactEscaped;
+        copy.snapshotCompactTokens = snapshotCompactTokens;
+        copy.ascension = ascension;
+        copy.character = character;
+        copy.seed = seed;
+        copy.floor = floor;
+        copy.act = act;
+        copy.hp = hp;
+        copy.maxHp = maxHp;
+        copy.gold = gold;
+        copy.mapCurrent = mapCurrent;
+        copy.mapNext = mapNext;
+        copy.mapFullAvailable = mapFullAvailable;
+        copy.essentialFacts = essentialFacts;
+        copy.skillHints = skillHints;
+        copy.combatHandCount = combatHandCount;
+        copy.combatPlayableCards = combatPlayableCards;
+        copy.combatEnergy = combatEnergy;
+        copy.eventId = eventId;
+        copy.eventName = eventName;
+        copy.eventOptions = eventOptions;
+        copy.stream = stream;
+        copy.structuredOutput = structuredOutput;
+        copy.partial = partial;
+        copy.cancelToken = cancelToken;
+        return copy;
+    }
 }
@@ -11,6 +11,21 @@ public class LLMResult {
     public List<LLMRecommendation> recommendations;
     public Integer nextPickIndex;
     public List<String> routePlan;
+    public boolean fromCache;
+    public String endpoint;
+    // Set when the answer was cut off (e.g. finish_reason=length) and rebuilt from what arrived.
+    public boolean partial;
+    public String finishReason;
+    public int salvaged;
+    // Provider-reported usage; completionTokens is estimated from the text when it is missing.
+    public Integer promptTokens;
+    public Integer completionTokens;
+    // Prompt tokens the provider served from its prompt cache, when it reports them.
+    public Integer cachedTokens;
+    // Time from sending the request to the first streamed text; 0 when not streamed.
+    public long firstTokenMs;
+    // Wait the server asked for with a 429/503 (Retry-After); 0 when absent.
+    public long retryAfterMs;
 
     public static LLMResult success(String contextType, String summary, List<LLMRecommendation> recs) {
         LLMResult result = new LLMResult();
@@ -28,4 +43,4 @@ public class LLMResult {
         result.raw = raw;
         return result;
     }
-}
+}
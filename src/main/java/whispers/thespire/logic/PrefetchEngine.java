@@ -0,0 +1,135 @@
+package whispers.thespire.logic;
+
+import whispers.thespire.llm.model.LLMPartial;
+import whispers.thespire.llm.model.LLMResult;
+import whispers.thespire.state.GameStateSnapshot;
+import whispers.thespire.state.SnapshotManager;
+import whispers.thespire.state.StateExtractor;
+
+import java.util.concurrent.Future;
+
+// Issues the request for a screen before it opens when the current state already determines its
+// contents. The real request claims the prefetched one only if the snapshot hashes match.
+public class PrefetchEngine {
+    private static final long POLL_INTERVAL_MS = 500L;
+
+    private Pending pending;
+    private long lastPollMs = 0L;
+    private String lastIssuedHash = "";
+    private long issued = 0L;
+    private long hits = 0L;
+    private long misses = 0L;
+
+    // Returns a predicted snapshot that still needs a request, or null.
+    public SnapshotManager.Result poll(String liveContext) {
+        expireIfLeft(liveContext);
+        // Predicting serializes a whole snapshot, so it is throttled rather than run every frame.
+        long now = System.currentTimeMillis();
+        if (now - lastPollMs < POLL_INTERVAL_MS) {
+            return null;
+        }
+        lastPollMs = now;
+        GameStateSnapshot predicted = StateExtractor.predictNext();
+        if (predicted == null) {
+            return null;
+        }
+        SnapshotManager.Result result = SnapshotManager.buildDetached(predicted);
+        if (result == null || result.snapshot == null) {
+            return null;
+        }
+        String hash = result.snapshot.snapshot_hash;
+        if (hash == null || hash.isEmpty() || hash.equals(lastIssuedHash)) {
+            return null;
+        }
+        if (pending != null) {
+            // The prediction changed under us (e.g. gold picked up first); the old one can never match.
+            drop();
+        }
+        return result;
+    }
+
+    public void issued(SnapshotManager.Result predicted, String sourceContext, Future<LLMResult> future, LLMPartial partial) {
+        if (predicted == null || predicted.snapshot == null || future == null) {
+            return;
+        }
+        pending = new Pending();
+        pending.hash = predicted.snapshot.snapshot_hash;
+        pending.contextType = predicted.snapshot.screen_context;
+        pending.sourceContext = sourceContext;
+        pending.future = future;
+        pending.partial = partial;
+        lastIssuedHash = pending.hash;
+        issued++;
+    }
+
+    // Hands over the prefetched request when the real snapshot matches the prediction.
+    public Claim claim(String snapshotHash, String contextType) {
+        if (pending == null || contextType == null || !contextType.equals(pending.contextType)) {
+            return null;
+        }
+        // A prefetch preempted by more urgent work has nothing left to hand over.
+        if (snapshotHash == null || !snapshotHash.equals(pending.hash) || pending.future.isCancelled()) {
+            drop();
+            return null;
+        }
+        Claim claim = new Claim(pending.future, pending.partial);
+        pending = null;
+        hits++;
+        return claim;
+    }
+
+    public boolean hasPending() {
+        return pending != null && !pending.future.isDone();
+    }
+
+    public void reset() {
+        if (pending != null) {
+            pending.future.cancel(true);
+        }
+        pending = null;
+        lastIssuedHash = "";
+    }
+
+    public String statsLine() {
+        long resolved = hits + misses;
+        int rate = resolved == 0 ? 0 : (int) Math.round(hits * 100.0 / resolved);
+        return "prefetch issued=" + issued + " hit=" + hits + " miss=" + misses + " rate=" + rate + "%";
+    }
+
+    private void expireIfLeft(String liveContext) {
+        if (pending == null || liveContext == null) {
+            return;
+        }
+        if (liveContext.equals(pending.sourceContext) || liveContext.equals(pending.contextType)) {
+            return;
+        }
+        drop();
+    }
+
+    private void drop() {
+        if (pending == null) {
+            return;
+        }
+        pending.future.cancel(true);
+        pending = null;
+        misses++;
+    }
+
+    public static class Claim {
+        public final Future<LLMResult> future;
+        public final LLMPartial partial;
+
+        private Claim(Future<LLMResult> future, LLMPartial partial) {
+            this.future = future;
+            this.partial = partial;
+        }
+    }
+
+    private static class Pending {
+        String hash;
+        String contextType;
+        String sourceContext;
+        Future<LLMResult> future;
+        LLMPartial partial;
+    }
+}
@@ -0,0 +1,444 @@
+package whispers.thespire.state;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Compact snapshot encoding for prompts (ModConfig.snapshotEncoding). Still JSON, so the prompt's
+// over-budget backstop can cut it like the normal form, but with short keys, lists of similar
+// objects as tables ({"k":[columns],"v":[[row],...]}, columns that are empty in every row left out),
+// repeated cards folded into one row with a copy count, upgrades as a "+" after the id, and empty or
+// default values left out. The key legend the model needs is SnapshotEncoding.LEGEND, sent once in
+// the system prompt; keep both in step.
+class CompactSnapshotWriter {
+    private static final String[] CARD_COLS = {"id", "name", "cost", "type", "rarity", "n"};
+    private static final String[] NAMED_COLS = {"id", "name"};
+    private static final String[] ITEM_COLS = {"id", "name", "price"};
+    private static final String[] NODE_COLS = {"x", "y", "t"};
+    private static final String[] FULL_NODE_COLS = {"x", "t", "to"};
+    private static final String[] NEOW_COLS = {"label", "reward", "drawback"};
+    private static final String[] HAND_COLS = {"id", "name", "cost", "type"};
+    private static final String[] MONSTER_COLS = {
+            "id", "name", "hp", "max", "blk", "intent", "dmg", "base", "hits", "multi", "move", "pw"
+    };
+    private static final Integer ONE = 1;
+
+    private CompactSnapshotWriter() {}
+
+    static String toJson(GameStateSnapshot snapshot) {
+        StringBuilder sb = new StringBuilder(2048);
+        Obj root = new Obj(sb);
+        root.str("ctx", snapshot.screen_context);
+        GameStateSnapshot.Run run = snapshot.run;
+        if (run != null) {
+            Obj r = root.obj("run");
+            r.num("act", run.act);
+            r.num("fl", run.floor);
+            r.num("asc", run.ascension);
+            r.num("gold", run.gold);
+            if (run.hp != null || run.maxHp != null) {
+                r.key("hp");
+                value(sb, new Object[]{run.hp, run.maxHp});
+            }
+            r.str("ch", run.character);
+            if (run.seed != null) {
+                r.key("seed");
+                sb.append(run.seed.longValue());
+            }
+            r.end();
+        }
+        root.table("deck", CARD_COLS, cardRows(snapshot.deck_summary, true));
+        root.table("relics", NAMED_COLS, relicRows(snapshot.relics));
+        if (snapshot.potions != null) {
+            List<Object[]> rows = new ArrayList<>();
+            for (GameStateSnapshot.PotionInfo potion : snapshot.potions) {
+                if (potion != null) {
+                    rows.add(new Object[]{potion.potion_id, potion.name});
+                }
+            }
+            root.table("potions", NAMED_COLS, rows);
+        }
+        if (snapshot.map != null) {
+            Obj m = root.obj("map");
+            if (snapshot.map.curr_x != null || snapshot.map.curr_y != null || snapshot.map.curr_type != null) {
+                m.key("at");
+                value(sb, new Object[]{snapshot.map.curr_x, snapshot.map.curr_y, snapshot.map.curr_type});
+            }
+            m.table("next", NODE_COLS, nodeRows(snapshot.map.next_nodes));
+            m.end();
+        }
+        if (snapshot.map_full != null && snapshot.map_full.rows != null) {
+            root.key("mapf");
+            sb.append('[');
+            boolean firstRow = true;
+            for (GameStateSnapshot.MapRow row : snapshot.map_full.rows) {
+                if (row == null) {
+                    continue;
+                }
+                if (!firstRow) {
+                    sb.append(',');
+                }
+                firstRow = false;
+                Obj r = new Obj(sb);
+                r.num("y", row.y);
+                List<Object[]> nodes = new ArrayList<>();
+                if (row.nodes != null) {
+                    for (GameStateSnapshot.MapNode node : row.nodes) {
+                        if (node != null) {
+                            nodes.add(new Object[]{node.x, node.room_type, edges(node.next)});
+                        }
+                    }
+                }
+                r.table("n", FULL_NODE_COLS, nodes);
+                r.end();
+            }
+            sb.append(']');
+        }
+        if (snapshot.reward != null) {
+            Obj r = root.obj("reward");
+            r.table("cards", CARD_COLS, cardRows(snapshot.reward.choices, false));
+            r.flag("skip", snapshot.reward.canSkip);
+            r.end();
+        }
+        if (snapshot.neow != null) {
+            List<Object[]> rows = new ArrayList<>();
+            if (snapshot.neow.options != null) {
+                for (GameStateSnapshot.NeowOption option : snapshot.neow.options) {
+                    if (option != null) {
+                        rows.add(new Object[]{option.label, option.reward_type, option.drawback});
+                    }
+                }
+            }
+            Obj n = root.obj("neow");
+            n.table("options", NEOW_COLS, rows);
+            n.end();
+        }
+        if (snapshot.shop != null) {
+            Obj s = root.obj("shop");
+            s.table("cards", ITEM_COLS, itemRows(snapshot.shop.cards));
+            s.table("relics", ITEM_COLS, itemRows(snapshot.shop.relics));
+            s.table("potions", ITEM_COLS, itemRows(snapshot.shop.potions));
+            s.flag("purge", snapshot.shop.purge_available);
+            s.num("purge_cost", snapshot.shop.purge_cost);
+            s.table("purge_cands", CARD_COLS, cardRows(snapshot.shop.purge_candidates, true));
+            s.end();
+        }
+        if (snapshot.boss_relic != null) {
+            Obj b = root.obj("boss");
+            b.table("relics", NAMED_COLS, relicRows(snapshot.boss_relic.choices));
+            b.flag("skip", snapshot.boss_relic.canSkip);
+            b.end();
+        }
+        if (snapshot.rest != null) {
+            Obj r = root.obj("rest");
+            r.strings("options", snapshot.rest.options);
+            r.table("upg", CARD_COLS, cardRows(snapshot.rest.upgrade_options, false));
+            r.end();
+        }
+        if (snapshot.event != null) {
+            Obj e = root.obj("event");
+            e.str("id", snapshot.event.event_id);
+            e.str("name", snapshot.event.event_name);
+            e.strings("options", snapshot.event.options);
+            e.end();
+        }
+        if (snapshot.combat != null) {
+            writeCombat(root.obj("combat"), snapshot.combat);
+        }
+        if (snapshot.dropped_fields != null && !snapshot.dropped_fields.isEmpty()) {
+            root.strings("dropped", snapshot.dropped_fields);
+        }
+        root.end();
+        return sb.toString();
+    }
+
+    private static void writeCombat(Obj c, GameStateSnapshot.CombatInfo combat) {
+        c.num("turn", combat.turn);
+        c.num("e", combat.energy);
+        c.num("blk", combat.player_block);
+        Object[] powers = powers(combat.player_powers);
+        if (powers != null) {
+            c.key("pw");
+            value(c.sb, powers);
+        }
+        List<Object[]> hand = new ArrayList<>();
+        if (combat.hand != null) {
+            for (GameStateSnapshot.CombatCardInfo card : combat.hand) {
+                if (card != null) {
+                    hand.add(new Object[]{upgradedId(card.card_id, card.upgraded), card.name, card.cost, card.type});
+                }
+            }
+        }
+        c.table("hand", HAND_COLS, hand);
+        c.num("draw", combat.draw_pile_size);
+        c.num("disc", combat.discard_pile_size);
+        c.num("exh", combat.exhaust_pile_size);
+        List<Object[]> monsters = new ArrayList<>();
+        if (combat.monsters != null) {
+            for (GameStateSnapshot.MonsterInfo m : combat.monsters) {
+                if (m != null) {
+                    monsters.add(new Object[]{
+                            m.id, m.name, m.hp, m.maxHp, zeroToNull(m.block), m.intent, m.intent_dmg, m.intent_base_dmg,
+                            m.intent_hits, Boolean.TRUE.equals(m.intent_multi) ? Boolean.TRUE : null, m.move_name, powers(m.powers)
+                    });
+                }
+            }
+        }
+        c.table("mon", MONSTER_COLS, monsters);
+        c.end();
+    }
+
+    // Identical cards (same id, name, cost, type and rarity) become one row with a count when fold is set.
+    private static List<Object[]> cardRows(List<GameStateSnapshot.CardInfo> cards, boolean fold) {
+        if (cards == null) {
+            return null;
+        }
+        List<Object[]> rows = new ArrayList<>(cards.size());
+        for (GameStateSnapshot.CardInfo card : cards) {
+            if (card == null) {
+                continue;
+            }
+            Object[] row = {upgradedId(card.card_id, card.upgraded), card.name, card.cost, card.type, card.rarity, ONE};
+            Object[] same = fold ? find(rows, row) : null;
+            if (same != null) {
+                same[5] = (Integer) same[5] + 1;
+            } else {
+                rows.add(row);
+            }
+        }
+        return rows;
+    }
+
+    private static Object[] find(List<Object[]> rows, Object[] row) {
+        for (Object[] candidate : rows) {
+            boolean equal = true;
+            for (int i = 0; i < 5 && equal; i++) {
+                equal = candidate[i] == null ? row[i] == null : candidate[i].equals(row[i]);
+            }
+            if (equal) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private static List<Object[]> relicRows(List<GameStateSnapshot.RelicInfo> relics) {
+        if (relics == null) {
+            return null;
+        }
+        List<Object[]> rows = new ArrayList<>(relics.size());
+        for (GameStateSnapshot.RelicInfo relic : relics) {
+            if (relic != null) {
+                rows.add(new Object[]{relic.relic_id, relic.name});
+            }
+        }
+        return rows;
+    }
+
+    private static List<Object[]> itemRows(List<GameStateSnapshot.ShopItem> items) {
+        if (items == null) {
+            return null;
+        }
+        List<Object[]> rows = new ArrayList<>(items.size());
+        for (GameStateSnapshot.ShopItem item : items) {
+            if (item != null) {
+                rows.add(new Object[]{item.id, item.name, item.price});
+            }
+        }
+        return rows;
+    }
+
+    private static List<Object[]> nodeRows(List<GameStateSnapshot.NodeInfo> nodes) {
+        if (nodes == null) {
+            return null;
+        }
+        List<Object[]> rows = new ArrayList<>(nodes.size());
+        for (GameStateSnapshot.NodeInfo node : nodes) {
+            if (node != null) {
+                rows.add(new Object[]{node.x, node.y, node.room_type});
+            }
+        }
+        return rows;
+    }
+
+    // Edges of the full map as [x,y] pairs.
+    private static Object[] edges(List<GameStateSnapshot.NodeInfo> next) {
+        if (next == null || next.isEmpty()) {
+            return null;
+        }
+        List<Object> pairs = new ArrayList<>(next.size());
+        for (GameStateSnapshot.NodeInfo node : next) {
+            if (node != null) {
+                pairs.add(new Object[]{node.x, node.y});
+            }
+        }
+        return pairs.toArray();
+    }
+
+    // Powers as [id, amount] pairs; null when there are none.
+    private static Object[] powers(List<GameStateSnapshot.PowerInfo> powers) {
+        if (powers == null || powers.isEmpty()) {
+            return null;
+        }
+        List<Object> pairs = new ArrayList<>(powers.size());
+        for (GameStateSnapshot.PowerInfo power : powers) {
+            if (power != null) {
+                pairs.add(new Object[]{power.id, power.amount});
+            }
+        }
+        return pairs.isEmpty() ? null : pairs.toArray();
+    }
+
+    private static String upgradedId(String id, Boolean upgraded) {
+        return id != null && Boolean.TRUE.equals(upgraded) ? id + "+" : id;
+    }
+
+    private static Integer zeroToNull(Integer value) {
+        return value == null || value == 0 ? null : value;
+    }
+
+    private static void value(StringBuilder sb, Object value) {
+        if (value == null) {
+            sb.append("null");
+        } else if (value instanceof String) {
+            SnapshotWriter.string(sb, (String) value);
+        } else if (value instanceof Object[]) {
+            Object[] items = (Object[]) value;
+            sb.append('[');
+            for (int i = 0; i < items.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                value(sb, items[i]);
+            }
+            sb.append(']');
+        } else {
+            // Integer, Long and Boolean print as JSON already.
+            sb.append(value);
+        }
+    }
+
+    // A JSON object under construction; members with nothing to say are skipped.
+    private static class Obj {
+        final StringBuilder sb;
+        boolean first = true;
+
+        Obj(StringBuilder sb) {
+            this.sb = sb;
+            sb.append('{');
+        }
+
+        void key(String name) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            sb.append('"').append(name).append("\":");
+        }
+
+        Obj obj(String name) {
+            key(name);
+            return new Obj(sb);
+        }
+
+        void end() {
+            sb.append('}');
+        }
+
+        void str(String name, String value) {
+            if (value != null && !value.isEmpty()) {
+                key(name);
+                SnapshotWriter.string(sb, value);
+            }
+        }
+
+        void num(String name, Integer value) {
+            if (value != null) {
+                key(name);
+                sb.append(value.intValue());
+            }
+        }
+
+        // Booleans are written only when true; a missing flag means false.
+        void flag(String name, Boolean value) {
+            if (Boolean.TRUE.equals(value)) {
+                key(name);
+                sb.append("true");
+            }
+        }
+
+        void strings(String name, List<String> values) {
+            if (values == null || values.isEmpty()) {
+                return;
+            }
+            key(name);
+            value(sb, values.toArray());
+        }
+
+        // Columns whose cells are all empty (null, or 1 for the "n" count) are left out; a table with
+        // a single remaining column is written as a plain array of its values.
+        void table(String name, String[] cols, List<Object[]> rows) {
+            if (rows == null || rows.isEmpty()) {
+                return;
+            }
+            boolean[] keep = new boolean[cols.length];
+            int kept = 0;
+            for (int c = 0; c < cols.length; c++) {
+                Object empty = "n".equals(cols[c]) ? ONE : null;
+                for (Object[] row : rows) {
+                    if (row[c] != null && !row[c].equals(empty)) {
+                        keep[c] = true;
+                        kept++;
+                        break;
+                    }
+                }
+            }
+            key(name);
+            if (kept <= 1) {
+                int only = 0;
+                while (only < cols.length - 1 && !keep[only]) {
+                    only++;
+                }
+                sb.append('[');
+                for (int r = 0; r < rows.size(); r++) {
+                    if (r > 0) {
+                        sb.append(',');
+                    }
+                    value(sb, rows.get(r)[only]);
+                }
+                sb.append(']');
+                return;
+            }
+            sb.append("{\"k\":[");
+            boolean firstCol = true;
+            for (int c = 0; c < cols.length; c++) {
+                if (keep[c]) {
+                    if (!firstCol) {
+                        sb.append(',');
+                    }
+                    firstCol = false;
+                    sb.append('"').append(cols[c]).append('"');
+                }
+            }
+            sb.append("],\"v\":[");
+            for (int r = 0; r < rows.size(); r++) {
+                if (r > 0) {
+                    sb.append(',');
+                }
+                sb.append('[');
+                boolean firstCell = true;
+                Object[] row = rows.get(r);
+                for (int c = 0; c < cols.length; c++) {
+                    if (keep[c]) {
+                        if (!firstCell) {
+                            sb.append(',');
+                        }
+                        firstCell = false;
+                        value(sb, row[c]);
+                    }
+                }
+                sb.append(']');
+            }
+            sb.append("]}");
+        }
+    }
+}
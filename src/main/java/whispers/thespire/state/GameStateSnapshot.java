@@ -21,7 +21,14 @@ public class GameStateSnapshot {
     public boolean trimmed;
     public List<String> dropped_fields;
     public int json_size;
+    // Not serialized: the token count of the JSON the trimmer settled on.
+    public transient int json_tokens;
     public String snapshot_hash;
+    // Not serialized: per-section hashes behind snapshot_hash (see SnapshotHash).
+    public transient long[] section_hashes;
+    // Not serialized: the compact encoding and its token count, built on first use.
+    public transient String compact_json;
+    public transient int compact_tokens;
 
     public static class Run {
         public Integer act;
@@ -34,6 +41,8 @@ public class GameStateSnapshot {
         public Long seed;
     }
 
+    // Sections may be shared with the previous snapshot (see SectionCache), so trimming edits
+    // shallow copies made with copy() instead of the objects themselves.
     public static class CardInfo {
         public String card_id;
         public String name;
@@ -41,16 +50,41 @@ public class GameStateSnapshot {
         public Integer cost;
         public String type;
         public String rarity;
+
+        public CardInfo copy() {
+            CardInfo copy = new CardInfo();
+            copy.card_id = card_id;
+            copy.name = name;
+            copy.upgraded = upgraded;
+            copy.cost = cost;
+            copy.type = type;
+            copy.rarity = rarity;
+            return copy;
+        }
     }
 
     public static class RelicInfo {
         public String relic_id;
         public String name;
+
+        public RelicInfo copy() {
+            RelicInfo copy = new RelicInfo();
+            copy.relic_id = relic_id;
+            copy.name = name;
+            return copy;
+        }
     }
 
     public static class PotionInfo {
         public String potion_id;
         public String name;
+
+        public PotionInfo copy() {
+            PotionInfo copy = new PotionInfo();
+            copy.potion_id = potion_id;
+            copy.name = name;
+            return copy;
+        }
     }
 
     public static class MapInfo {
@@ -58,6 +92,15 @@ public class GameStateSnapshot {
         public Integer curr_y;
         public String curr_type;
         public List<NodeInfo> next_nodes;
+
+        public MapInfo copy() {
+            MapInfo copy = new MapInfo();
+            copy.curr_x = curr_x;
+            copy.curr_y = curr_y;
+            copy.curr_type = curr_type;
+            copy.next_nodes = next_nodes;
+            return copy;
+        }
     }
 
     public static class MapFullInfo {
@@ -74,6 +117,15 @@ public class GameStateSnapshot {
         public Integer y;
         public String room_type;
         public List<NodeInfo> next;
+
+        public MapNode copy() {
+            MapNode copy = new MapNode();
+            copy.x = x;
+            copy.y = y;
+            copy.room_type = room_type;
+            copy.next = next;
+            return copy;
+        }
     }
 
     public static class NodeInfo {
@@ -98,10 +150,23 @@ public class GameStateSnapshot {
     public static class RewardInfo {
         public List<CardInfo> choices;
         public Boolean canSkip;
+
+        public RewardInfo copy() {
+            RewardInfo copy = new RewardInfo();
+            copy.choices = choices;
+            copy.canSkip = canSkip;
+            return copy;
+        }
     }
 
     public static class NeowInfo {
         public List<NeowOption> options;
+
+        public NeowInfo copy() {
+            NeowInfo copy = new NeowInfo();
+            copy.options = options;
+            return copy;
+        }
     }
 
     public static class NeowOption {
@@ -117,6 +182,17 @@ public class GameStateSnapshot {
         public Boolean purge_available;
         public Integer purge_cost;
         public List<CardInfo> purge_candidates;
+
+        public ShopInfo copy() {
+            ShopInfo copy = new ShopInfo();
+            copy.cards = cards;
+            copy.relics = relics;
+            copy.potions = potions;
+            copy.purge_available = purge_available;
+            copy.purge_cost = purge_cost;
+            copy.purge_candidates = purge_candidates;
+            return copy;
+        }
     }
 
     public static class ShopItem {
@@ -129,17 +205,39 @@ public class GameStateSnapshot {
     public static class BossRelicInfo {
         public List<RelicInfo> choices;
         public Boolean canSkip;
+
+        public BossRelicInfo copy() {
+            BossRelicInfo copy = new BossRelicInfo();
+            copy.choices = choices;
+            copy.canSkip = canSkip;
+            return copy;
+        }
     }
 
     public static class RestInfo {
         public List<String> options;
         public List<CardInfo> upgrade_options;
+
+        public RestInfo copy() {
+            RestInfo copy = new RestInfo();
+            copy.options = options;
+            copy.upgrade_options = upgrade_options;
+            return copy;
+        }
     }
 
     public static class EventInfo {
         public String event_id;
         public String event_name;
         public List<String> options;
+
+        public EventInfo copy() {
+            EventInfo copy = new EventInfo();
+            copy.event_id = event_id;
+            copy.event_name = event_name;
+            copy.options = options;
+            return copy;
+        }
     }
 
     public static class CombatInfo {
@@ -152,6 +250,20 @@ public class GameStateSnapshot {
         public Integer discard_pile_size;
         public Integer exhaust_pile_size;
         public List<MonsterInfo> monsters;
+
+        public CombatInfo copy() {
+            CombatInfo copy = new CombatInfo();
+            copy.turn = turn;
+            copy.energy = energy;
+            copy.player_block = player_block;
+            copy.player_powers = player_powers;
+            copy.hand = hand;
+            copy.draw_pile_size = draw_pile_size;
+            copy.discard_pile_size = discard_pile_size;
+            copy.exhaust_pile_size = exhaust_pile_size;
+            copy.monsters = monsters;
+            return copy;
+        }
     }
 
     public static class PowerInfo {
@@ -180,5 +292,22 @@ public class GameStateSnapshot {
         public Boolean intent_multi;
         public String move_name;
         public List<PowerInfo> powers;
+
+        public MonsterInfo copy() {
+            MonsterInfo copy = new MonsterInfo();
+            copy.id = id;
+            copy.name = name;
+            copy.hp = hp;
+            copy.maxHp = maxHp;
+            copy.block = block;
+            copy.intent = intent;
+            copy.intent_dmg = intent_dmg;
+            copy.intent_base_dmg = intent_base_dmg;
+            copy.intent_hits = intent_hits;
+            copy.intent_multi = intent_multi;
+            copy.move_name = move_name;
+            copy.powers = powers;
+            return copy;
+        }
     }
 }
@@ -0,0 +1,91 @@
+package whispers.thespire.state;
+
+// Sections of the last extracted snapshot together with the fingerprints they were read at.
+// StateExtractor re-reads a section only when its fingerprint moved and otherwise takes the previous
+// objects over, so an HP or gold change no longer re-walks the deck, relics, potions or the shop.
+// Reused objects are shared between snapshots: nothing may modify them in place (the trimmer copies
+// what it cuts).
+public class SectionCache {
+    public static final int DECK = 0;
+    public static final int RELICS = 1;
+    public static final int POTIONS = 2;
+    public static final int MAP = 3;
+    public static final int SCREEN = 4;
+    public static final int COMBAT = 5;
+    private static final String[] NAMES = {"deck", "relics", "potions", "map", "screen", "combat"};
+    // Fingerprint of a section that cannot be fingerprinted cheaply; it is read every time.
+    public static final long ALWAYS = Long.MIN_VALUE;
+
+    private final long[] fingerprints = new long[NAMES.length];
+    private final boolean[] valid = new boolean[NAMES.length];
+    // Own references to the sections, untouched by whatever the trimmer later does to the snapshot.
+    final GameStateSnapshot kept = new GameStateSnapshot();
+    private final long[] reads = new long[NAMES.length];
+    private final long[] reuses = new long[NAMES.length];
+    private int lastDirty = 0;
+
+    // True when the section may be taken from kept; otherwise the caller reads it and calls stored().
+    boolean reusable(int section, long fingerprint) {
+        if (fingerprint != ALWAYS && valid[section] && fingerprints[section] == fingerprint) {
+            reuses[section]++;
+            return true;
+        }
+        return false;
+    }
+
+    void stored(int section, long fingerprint) {
+        fingerprints[section] = fingerprint;
+        valid[section] = true;
+        reads[section]++;
+        lastDirty |= 1 << section;
+    }
+
+    void invalidate(int section) {
+        valid[section] = false;
+    }
+
+    // Called at the start of each extraction so dirtySections() describes the latest one.
+    void begin() {
+        lastDirty = 0;
+    }
+
+    public void reset() {
+        for (int i = 0; i < NAMES.length; i++) {
+            valid[i] = false;
+        }
+        lastDirty = 0;
+    }
+
+    // Sections read from the game in the latest extraction, e.g. "screen,combat".
+    public String dirtySections() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < NAMES.length; i++) {
+            if ((lastDirty & (1 << i)) != 0) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(NAMES[i]);
+            }
+        }
+        return sb.length() == 0 ? "none" : sb.toString();
+    }
+
+    public String statsLine() {
+        StringBuilder sb = new StringBuilder("sections");
+        for (int i = 0; i < NAMES.length; i++) {
+            sb.append(' ').append(NAMES[i]).append('=').append(reuses[i]).append('/').append(reads[i] + reuses[i]);
+        }
+        return sb.toString();
+    }
+
+    // Folds one value into a section fingerprint.
+    static long mix(long hash, long value) {
+        hash ^= value;
+        hash *= 0x100000001b3L;
+        return hash ^ (hash >>> 29);
+    }
+
+    static long seed(int section) {
+        return 0xcbf29ce484222325L ^ section;
+    }
+}
@@ -0,0 +1,226 @@
+package whispers.thespire.state;
+
+import whispers.thespire.util.StreamingHash;
+
+import java.util.List;
+
+// snapshot_hash: a 128-bit StreamingHash per section, fed field by field from the snapshot, and the
+// hash of those section hashes as a 32-char hex string. It covers the same fields as before (ids,
+// run numbers, combat turn/energy/block/powers/hand and monster hp/intent), so requests are still
+// deduplicated on the same changes. The per-section hashes stay on the snapshot (not serialized)
+// and tell which part moved between two snapshots.
+public class SnapshotHash {
+    public static final String[] SECTIONS = {"run", "deck", "relics", "potions", "screen", "map", "combat"};
+    private static final int RUN = 0;
+    private static final int DECK = 1;
+    private static final int RELICS = 2;
+    private static final int POTIONS = 3;
+    private static final int SCREEN = 4;
+    private static final int MAP = 5;
+    private static final int COMBAT = 6;
+    private static final long SEED = 0x5754535370697265L;
+
+    private SnapshotHash() {}
+
+    // Sets snapshot.section_hashes and returns the hex hash.
+    public static String compute(GameStateSnapshot snapshot) {
+        if (snapshot == null) {
+            return "";
+        }
+        StreamingHash hash = new StreamingHash(SEED);
+        long[] sections = new long[SECTIONS.length * 2];
+
+        GameStateSnapshot.Run run = snapshot.run;
+        if (run != null) {
+            hash.putInt(run.act).putInt(run.floor).putInt(run.ascension).putInt(run.gold)
+                    .putInt(run.hp).putInt(run.maxHp).putString(run.character).putLong(run.seed);
+        }
+        hash.finish(sections, RUN * 2);
+
+        if (snapshot.deck_summary != null) {
+            for (GameStateSnapshot.CardInfo card : snapshot.deck_summary) {
+                if (card != null) {
+                    hash.putString(card.card_id);
+                }
+            }
+        }
+        hash.finish(sections, DECK * 2);
+
+        if (snapshot.relics != null) {
+            for (GameStateSnapshot.RelicInfo relic : snapshot.relics) {
+                if (relic != null) {
+                    hash.putString(relic.relic_id);
+                }
+            }
+        }
+        hash.finish(sections, RELICS * 2);
+
+        if (snapshot.potions != null) {
+            for (GameStateSnapshot.PotionInfo potion : snapshot.potions) {
+                if (potion != null) {
+                    hash.putString(potion.potion_id);
+                }
+            }
+        }
+        hash.finish(sections, POTIONS * 2);
+
+        putScreen(hash, snapshot);
+        hash.finish(sections, SCREEN * 2);
+
+        if (snapshot.map != null) {
+            hash.putInt(snapshot.map.curr_x).putInt(snapshot.map.curr_y);
+            putNodes(hash, snapshot.map.next_nodes);
+        }
+        hash.finish(sections, MAP * 2);
+
+        if (snapshot.combat != null) {
+            putCombat(hash, snapshot.combat);
+        }
+        hash.finish(sections, COMBAT * 2);
+
+        long[] total = new long[2];
+        for (long value : sections) {
+            hash.putLong(value);
+        }
+        hash.finish(total, 0);
+
+        long[] perSection = new long[SECTIONS.length];
+        for (int i = 0; i < perSection.length; i++) {
+            perSection[i] = sections[i * 2];
+        }
+        snapshot.section_hashes = perSection;
+        return StreamingHash.hex(total[0], total[1]);
+    }
+
+    // Names of the sections that differ, e.g. "run,combat"; "all" when either side has no hashes.
+    public static String changedSections(GameStateSnapshot before, GameStateSnapshot after) {
+        if (before == null || after == null || before.section_hashes == null || after.section_hashes == null) {
+            return "all";
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < SECTIONS.length; i++) {
+            if (before.section_hashes[i] != after.section_hashes[i]) {
+                if (sb.length() > 0) {
+                    sb.append(',');
+                }
+                sb.append(SECTIONS[i]);
+            }
+        }
+        return sb.length() == 0 ? "none" : sb.toString();
+    }
+
+    private static void putScreen(StreamingHash hash, GameStateSnapshot snapshot) {
+        hash.putString(snapshot.screen_context);
+        if (snapshot.neow != null) {
+            hash.putLong(1L);
+            if (snapshot.neow.options != null) {
+                for (GameStateSnapshot.NeowOption option : snapshot.neow.options) {
+                    if (option != null) {
+                        hash.putString(option.label);
+                    }
+                }
+            }
+        }
+        if (snapshot.boss_relic != null) {
+            hash.putLong(2L);
+            if (snapshot.boss_relic.choices != null) {
+                for (GameStateSnapshot.RelicInfo relic : snapshot.boss_relic.choices) {
+                    if (relic != null) {
+                        hash.putString(relic.relic_id);
+                    }
+                }
+            }
+        }
+        if (snapshot.rest != null) {
+            hash.putLong(3L);
+            putStrings(hash, snapshot.rest.options);
+            putCardIds(hash, snapshot.rest.upgrade_options);
+        }
+        if (snapshot.event != null) {
+            hash.putLong(4L);
+            hash.putString(snapshot.event.event_id);
+            putStrings(hash, snapshot.event.options);
+        }
+        if (snapshot.reward != null) {
+            hash.putLong(5L);
+            putCardIds(hash, snapshot.reward.choices);
+        }
+        if (snapshot.shop != null) {
+            hash.putLong(6L);
+            putShopItems(hash, snapshot.shop.cards);
+            putShopItems(hash, snapshot.shop.relics);
+            putShopItems(hash, snapshot.shop.potions);
+            putCardIds(hash, snapshot.shop.purge_candidates);
+        }
+    }
+
+    private static void putCombat(StreamingHash hash, GameStateSnapshot.CombatInfo combat) {
+        hash.putInt(combat.turn).putInt(combat.energy).putInt(combat.player_block);
+        if (combat.player_powers != null) {
+            hash.putLong(combat.player_powers.size());
+            for (GameStateSnapshot.PowerInfo power : combat.player_powers) {
+                if (power != null) {
+                    hash.putString(power.id).putInt(power.amount);
+                }
+            }
+        }
+        if (combat.hand != null) {
+            hash.putLong(combat.hand.size());
+            for (GameStateSnapshot.CombatCardInfo card : combat.hand) {
+                if (card != null) {
+                    hash.putString(card.card_id);
+                }
+            }
+        }
+        if (combat.monsters != null) {
+            for (GameStateSnapshot.MonsterInfo monster : combat.monsters) {
+                if (monster != null) {
+                    hash.putString(monster.id).putInt(monster.hp).putInt(monster.maxHp).putString(monster.intent);
+                }
+            }
+        }
+    }
+
+    // Sizes go in ahead of each list so that items cannot slide from one list into the next.
+    private static void putStrings(StreamingHash hash, List<String> values) {
+        hash.putLong(values == null ? 0L : values.size());
+        if (values != null) {
+            for (String value : values) {
+                hash.putString(value);
+            }
+        }
+    }
+
+    private static void putCardIds(StreamingHash hash, List<GameStateSnapshot.CardInfo> cards) {
+        hash.putLong(cards == null ? 0L : cards.size());
+        if (cards != null) {
+            for (GameStateSnapshot.CardInfo card : cards) {
+                if (card != null) {
+                    hash.putString(card.card_id);
+                }
+            }
+        }
+    }
+
+    private static void putShopItems(StreamingHash hash, List<GameStateSnapshot.ShopItem> items) {
+        hash.putLong(items == null ? 0L : items.size());
+        if (items != null) {
+            for (GameStateSnapshot.ShopItem item : items) {
+                if (item != null) {
+                    hash.putString(item.id);
+                }
+            }
+        }
+    }
+
+    private static void putNodes(StreamingHash hash, List<GameStateSnapshot.NodeInfo> nodes) {
+        hash.putLong(nodes == null ? 0L : nodes.size());
+        if (nodes != null) {
+            for (GameStateSnapshot.NodeInfo node : nodes) {
+                if (node != null) {
+                    hash.putInt(node.x).putInt(node.y);
+                }
+            }
+        }
+    }
+}
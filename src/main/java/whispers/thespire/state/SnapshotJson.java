@@ -0,0 +1,185 @@
+package whispers.thespire.state;
+
+import whispers.thespire.util.TokenEstimator;
+
+import java.util.List;
+
+// The snapshot's JSON kept as one serialized part per top-level field ("name":value), in the order
+// Gson writes them, with the token count of each part. measure() re-serializes only the fields whose
+// object changed since the last call, so a trim step costs one section's serialization and a section
+// reused by SectionCache costs nothing at all; join() gives the same text as Gson.toJson(snapshot).
+// Works because nothing edits a section object in place (the trim steps copy what they cut).
+// Parts are written by SnapshotWriter into one reused buffer.
+class SnapshotJson {
+    private static final String[] FIELDS = {
+            "run", "screen_context", "deck_summary", "relics", "potions", "map", "map_full", "reward", "neow",
+            "shop", "boss_relic", "rest", "event", "combat", "trimmed", "dropped_fields", "json_size", "snapshot_hash"
+    };
+    // Small scalar fields (and dropped_fields, which grows in place) are serialized on every call.
+    private static final int FIRST_SCALAR = 14;
+    private static final int SCREEN_CONTEXT = 1;
+
+    private final StringBuilder buffer = new StringBuilder(8192);
+    private final Object[] values = new Object[FIELDS.length];
+    private final String[] parts = new String[FIELDS.length];
+    private final int[] tokens = new int[FIELDS.length];
+    private String model;
+    private long serialized = 0L;
+    private long reused = 0L;
+
+    // Brings every part up to date with the snapshot; returns the summed token count of the parts.
+    int measure(GameStateSnapshot snapshot, String model) {
+        if (this.model == null || !this.model.equals(model)) {
+            this.model = model;
+            for (int i = 0; i < values.length; i++) {
+                values[i] = null;
+                parts[i] = null;
+            }
+        }
+        int sum = 0;
+        for (int i = 0; i < FIELDS.length; i++) {
+            Object value = field(snapshot, i);
+            boolean scalar = i >= FIRST_SCALAR || i == SCREEN_CONTEXT;
+            if (value == null) {
+                values[i] = null;
+                parts[i] = null;
+                tokens[i] = 0;
+            } else if (scalar || value != values[i] || parts[i] == null) {
+                values[i] = value;
+                parts[i] = write(i, value);
+                tokens[i] = TokenEstimator.count(parts[i], model);
+                if (!scalar) {
+                    serialized++;
+                }
+            } else if (!scalar) {
+                reused++;
+            }
+            sum += tokens[i];
+        }
+        return sum;
+    }
+
+    String join() {
+        int length = 2;
+        for (String part : parts) {
+            if (part != null) {
+                length += part.length() + 1;
+            }
+        }
+        StringBuilder sb = new StringBuilder(length);
+        sb.append('{');
+        for (String part : parts) {
+            if (part != null) {
+                if (sb.length() > 1) {
+                    sb.append(',');
+                }
+                sb.append(part);
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+    String statsLine() {
+        return "json parts=" + reused + "/" + (serialized + reused) + " reused";
+    }
+
+    @SuppressWarnings("unchecked")
+    private String write(int index, Object value) {
+        StringBuilder sb = buffer;
+        sb.setLength(0);
+        sb.append('"').append(FIELDS[index]).append("\":");
+        switch (index) {
+            case 0:
+                SnapshotWriter.run(sb, (GameStateSnapshot.Run) value);
+                break;
+            case 2:
+                SnapshotWriter.array(sb, (List<GameStateSnapshot.CardInfo>) value, SnapshotWriter::card);
+                break;
+            case 3:
+                SnapshotWriter.array(sb, (List<GameStateSnapshot.RelicInfo>) value, SnapshotWriter::relic);
+                break;
+            case 4:
+                SnapshotWriter.array(sb, (List<GameStateSnapshot.PotionInfo>) value, SnapshotWriter::potion);
+                break;
+            case 5:
+                SnapshotWriter.map(sb, (GameStateSnapshot.MapInfo) value);
+                break;
+            case 6:
+                SnapshotWriter.mapFull(sb, (GameStateSnapshot.MapFullInfo) value);
+                break;
+            case 7:
+                SnapshotWriter.reward(sb, (GameStateSnapshot.RewardInfo) value);
+                break;
+            case 8:
+                SnapshotWriter.neow(sb, (GameStateSnapshot.NeowInfo) value);
+                break;
+            case 9:
+                SnapshotWriter.shop(sb, (GameStateSnapshot.ShopInfo) value);
+                break;
+            case 10:
+                SnapshotWriter.bossRelic(sb, (GameStateSnapshot.BossRelicInfo) value);
+                break;
+            case 11:
+                SnapshotWriter.rest(sb, (GameStateSnapshot.RestInfo) value);
+                break;
+            case 12:
+                SnapshotWriter.event(sb, (GameStateSnapshot.EventInfo) value);
+                break;
+            case 13:
+                SnapshotWriter.combat(sb, (GameStateSnapshot.CombatInfo) value);
+                break;
+            case 15:
+                SnapshotWriter.array(sb, (List<String>) value, SnapshotWriter::string);
+                break;
+            case 1:
+            case 17:
+                SnapshotWriter.string(sb, (String) value);
+                break;
+            default:
+                // trimmed and json_size
+                sb.append(value);
+        }
+        return sb.toString();
+    }
+
+    private static Object field(GameStateSnapshot snapshot, int index) {
+        switch (index) {
+            case 0:
+                return snapshot.run;
+            case 1:
+                return snapshot.screen_context;
+            case 2:
+                return snapshot.deck_summary;
+            case 3:
+                return snapshot.relics;
+            case 4:
+                return snapshot.potions;
+            case 5:
+                return snapshot.map;
+            case 6:
+                return snapshot.map_full;
+            case 7:
+                return snapshot.reward;
+            case 8:
+                return snapshot.neow;
+            case 9:
+                return snapshot.shop;
+            case 10:
+                return snapshot.boss_relic;
+            case 11:
+                return snapshot.rest;
+            case 12:
+                return snapshot.event;
+            case 13:
+                return snapshot.combat;
+            case 14:
+                return snapshot.trimmed;
+            case 15:
+                return snapshot.dropped_fields;
+            case 16:
+                return snapshot.json_size;
+            default:
+                return snapshot.snapshot_hash;
+        }
+    }
+}
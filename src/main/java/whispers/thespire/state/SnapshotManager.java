@@ -1,19 +1,21 @@
 package whispers.thespire.state;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-
-import java.nio.charset.StandardCharsets;
-import java.security.MessageDigest;
+import whispers.thespire.config.ModConfig;
+import whispers.thespire.llm.Endpoint;
+import whispers.thespire.llm.ModelRouter;
+import whispers.thespire.util.JsonBytes;
+import whispers.thespire.util.TokenEstimator;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 public class SnapshotManager {
-    private static final int MAX_JSON = 8000;
+    private static final int MIN_TOKEN_BUDGET = 256;
     private static final long MIN_INTERVAL_MS = 200L;
 
-    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
-
     private static long lastUpdateMs = 0L;
     private static String lastKey = "";
     private static GameStateSnapshot lastSnapshot;
@@ -22,6 +24,25 @@ public class SnapshotManager {
     private static String lastStatus = "";
     private static boolean forceRefresh = false;
     private static String lastMapHash = "";
+    // Sections reused between refreshes; the trim steps below copy whatever they cut.
+    private static final SectionCache SECTIONS = new SectionCache();
+    private static long extractions = 0L;
+    private static long extractNanos = 0L;
+    private static String lastChanged = "all";
+    // Per-field JSON of the last serialized snapshot; see buildJsonWithTrim.
+    private static final SnapshotJson PARTS = new SnapshotJson();
+    // Estimates are this close to the budget before a full count decides.
+    private static final int ESTIMATE_SLACK = 8;
+    private static long fullCounts = 0L;
+    private static long jsonBuilds = 0L;
+    // Cost of a whole refresh (extract, hash, trim and serialize); allocation needs HotSpot's
+    // per-thread counter and stays at -1 without it.
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static long refreshes = 0L;
+    private static long refreshNanos = 0L;
+    private static long refreshBytes = -1L;
+    private static long lastRefreshNanos = 0L;
+    private static long lastRefreshBytes = -1L;
 
     private SnapshotManager() {}
 
@@ -38,6 +59,8 @@ public class SnapshotManager {
         lastStatus = "";
         forceRefresh = false;
         lastMapHash = "";
+        SECTIONS.reset();
+        lastChanged = "all";
     }
 
     public static Result update(boolean wantJson) {
@@ -57,6 +80,8 @@ public class SnapshotManager {
 
         if (shouldRefresh) {
             forceRefresh = false;
+            long refreshStart = System.nanoTime();
+            long bytesStart = allocatedBytes();
             GameStateSnapshot snapshot;
             try {
                 String mapHash = StateExtractor.computeMapHash();
@@ -64,7 +89,10 @@ public class SnapshotManager {
                 boolean includeFullMap = StateExtractor.hasMap()
                         && ("MAP".equals(StateExtractor.getScreenContext()) || "NEOW".equals(StateExtractor.getScreenContext()))
                         && (mapChanged || lastMapHash.isEmpty() || StateExtractor.isMapStart());
-                snapshot = StateExtractor.extract(includeCombat, includeFullMap);
+                long startNanos = System.nanoTime();
+                snapshot = StateExtractor.extract(includeCombat, includeFullMap, SECTIONS, key);
+                extractNanos += System.nanoTime() - startNanos;
+                extractions++;
                 if (mapHash != null && !mapHash.isEmpty()) {
                     lastMapHash = mapHash;
                 }
@@ -74,10 +102,12 @@ public class SnapshotManager {
             }
             String hash = computeHash(snapshot);
             snapshot.snapshot_hash = hash;
+            lastChanged = SnapshotHash.changedSections(lastSnapshot, snapshot);
 
             String json = buildJsonWithTrim(snapshot);
             snapshot.json_size = json.length();
             snapshot.trimmed = snapshot.dropped_fields != null && !snapshot.dropped_fields.isEmpty();
+            recordRefresh(refreshStart, bytesStart);
 
             lastSnapshot = snapshot;
             lastJson = wantJson ? json : null;
@@ -86,7 +116,7 @@ public class SnapshotManager {
             lastKey = key;
             lastUpdateMs = now;
         } else if (wantJson && lastJson == null && lastSnapshot != null) {
-            lastJson = GSON.toJson(lastSnapshot);
+            lastJson = SnapshotWriter.toJson(lastSnapshot);
         } else if (!wantJson) {
             lastJson = null;
         }
@@ -94,6 +124,55 @@ public class SnapshotManager {
         return new Result(lastSnapshot, wantJson ? lastJson : null, lastSummary, lastStatus);
     }
 
+    // Section reuse and the average extraction cost, for the debug line.
+    public static String statsLine() {
+        long avgMicros = extractions == 0 ? 0L : extractNanos / extractions / 1000L;
+        return SECTIONS.statsLine() + " last=" + SECTIONS.dirtySections() + " extract=" + avgMicros + "us changed=" + lastChanged
+                + " | " + PARTS.statsLine() + " full_counts=" + fullCounts + "/" + jsonBuilds
+                + " | refresh last=" + lastRefreshNanos / 1000L + "us/" + kilobytes(lastRefreshBytes)
+                + " avg=" + (refreshes == 0 ? 0L : refreshNanos / refreshes / 1000L) + "us/"
+                + kilobytes(refreshes == 0 || refreshBytes < 0 ? -1L : refreshBytes / refreshes);
+    }
+
+    private static void recordRefresh(long startNanos, long startBytes) {
+        lastRefreshNanos = System.nanoTime() - startNanos;
+        long endBytes = allocatedBytes();
+        lastRefreshBytes = startBytes < 0 || endBytes < 0 ? -1L : endBytes - startBytes;
+        refreshes++;
+        refreshNanos += lastRefreshNanos;
+        if (lastRefreshBytes >= 0) {
+            refreshBytes = Math.max(0L, refreshBytes) + lastRefreshBytes;
+        }
+    }
+
+    private static long allocatedBytes() {
+        try {
+            if (THREADS instanceof com.sun.management.ThreadMXBean) {
+                return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread.currentThread().getId());
+            }
+        } catch (Throwable ignored) {
+            // not available on this JVM
+        }
+        return -1L;
+    }
+
+    private static String kilobytes(long bytes) {
+        return bytes < 0 ? "n/a" : (bytes + 512L) / 1024L + "KB";
+    }
+
+    // Hashes and serializes a snapshot built outside update() (e.g. a predicted next screen) exactly
+    // like a live one, without touching the cached state.
+    public static Result buildDetached(GameStateSnapshot snapshot) {
+        if (snapshot == null) {
+            return null;
+        }
+        snapshot.snapshot_hash = computeHash(snapshot);
+        String json = buildJsonWithTrim(snapshot);
+        snapshot.json_size = json.length();
+        snapshot.trimmed = snapshot.dropped_fields != null && !snapshot.dropped_fields.isEmpty();
+        return new Result(snapshot, json, buildSummary(snapshot), buildStatus(snapshot));
+    }
+
     private static String buildSummary(GameStateSnapshot snapshot) {
         String screen = snapshot == null || snapshot.screen_context == null ? "OTHER" : snapshot.screen_context;
         Integer floor = snapshot != null && snapshot.run != null ? snapshot.run.floor : null;
@@ -122,6 +201,13 @@ public class SnapshotManager {
             sb.append("snapshot ok");
         }
         sb.append(" size=").append(snapshot.json_size);
+        sb.append(" tok=").append(snapshot.json_tokens);
+        if (ModConfig.debugShowSnapshot && snapshot.json_tokens > 0) {
+            // Side by side with the compact encoding, whether or not a provider uses it.
+            int compact = compactTokens(snapshot);
+            sb.append(" compact_tok=").append(compact)
+                    .append(" (").append(Math.round(100.0 * (compact - snapshot.json_tokens) / snapshot.json_tokens)).append("%)");
+        }
         if (snapshot.dropped_fields != null && !snapshot.dropped_fields.isEmpty()) {
             sb.append(" dropped=").append(String.join(",", snapshot.dropped_fields));
         }
@@ -131,6 +217,28 @@ public class SnapshotManager {
         return sb.toString();
     }
 
+    // The compact encoding of the (already trimmed) snapshot, built once per snapshot.
+    private static String compactJson(GameStateSnapshot snapshot) {
+        if (snapshot.compact_json == null) {
+            snapshot.compact_json = CompactSnapshotWriter.toJson(snapshot);
+            snapshot.compact_tokens = TokenEstimator.count(snapshot.compact_json, ModConfig.model);
+        }
+        return snapshot.compact_json;
+    }
+
+    private static int compactTokens(GameStateSnapshot snapshot) {
+        compactJson(snapshot);
+        return snapshot.compact_tokens;
+    }
+
+    // Trims in one pass over per-section measurements (SnapshotJson) instead of serializing the whole
+    // snapshot after every step: a step re-measures only the section it rewrote, and the snapshot is
+    // assembled and counted in full once the estimate says it fits (or is within ESTIMATE_SLACK of
+    // fitting, so the same steps are applied as with a full count after each one). The difference
+    // between the summed parts and the full count, mostly punctuation merging across the joins, is
+    // taken from the untrimmed snapshot and added to every estimate. The budget is in model tokens
+    // rather than characters: the same 8k chars cost very different amounts for card-name-heavy
+    // English JSON and for Chinese localized names.
     private static String buildJsonWithTrim(GameStateSnapshot snapshot) {
         if (snapshot.dropped_fields == null) {
             snapshot.dropped_fields = new ArrayList<>();
@@ -138,60 +246,113 @@ public class SnapshotManager {
             snapshot.dropped_fields.clear();
         }
 
-        String json = GSON.toJson(snapshot);
-        if (json.length() <= MAX_JSON) {
-            return json;
-        }
-
-        String context = snapshot.screen_context == null ? "OTHER" : snapshot.screen_context;
-        List<TrimStep> steps = buildTrimSteps(context);
-        for (TrimStep step : steps) {
-            if (step.apply(snapshot, snapshot.dropped_fields)) {
-                json = GSON.toJson(snapshot);
-                if (json.length() <= MAX_JSON) {
-                    return json;
-                }
+        synchronized (PARTS) {
+            jsonBuilds++;
+            String model = ModConfig.model;
+            // The provider the screen is routed to (ModelRouter) decides between the cloud and local budget.
+            int budget = tokenBudget(ModelRouter.providerFor(null, snapshot.screen_context));
+            int estimate = PARTS.measure(snapshot, model);
+            String json = PARTS.join();
+            int exact = TokenEstimator.count(json, model);
+            fullCounts++;
+            if (exact <= budget) {
+                snapshot.json_tokens = exact;
+                return json;
             }
-        }
-
-        if (json.length() > MAX_JSON) {
-            if (snapshot.deck_summary != null) {
-                snapshot.deck_summary = null;
-                addDropped(snapshot.dropped_fields, "deck_summary.dropped");
-                json = GSON.toJson(snapshot);
-                if (json.length() <= MAX_JSON) {
-                    return json;
+            int drift = exact - estimate;
+
+            String context = snapshot.screen_context == null ? "OTHER" : snapshot.screen_context;
+            List<TrimStep> steps = buildTrimSteps(context);
+            steps.addAll(FALLBACK_STEPS);
+            boolean stale = false;
+            for (TrimStep step : steps) {
+                if (!step.apply(snapshot, snapshot.dropped_fields)) {
+                    continue;
                 }
-            }
-            if (snapshot.relics != null) {
-                snapshot.relics = null;
-                addDropped(snapshot.dropped_fields, "relics.dropped");
-                json = GSON.toJson(snapshot);
-                if (json.length() <= MAX_JSON) {
-                    return json;
+                stale = true;
+                if (PARTS.measure(snapshot, model) + drift > budget + ESTIMATE_SLACK) {
+                    continue;
                 }
-            }
-            if (snapshot.potions != null) {
-                snapshot.potions = null;
-                addDropped(snapshot.dropped_fields, "potions.dropped");
-                json = GSON.toJson(snapshot);
-                if (json.length() <= MAX_JSON) {
+                json = PARTS.join();
+                stale = false;
+                exact = TokenEstimator.count(json, model);
+                fullCounts++;
+                if (exact <= budget) {
+                    snapshot.json_tokens = exact;
                     return json;
                 }
             }
-            if (snapshot.reward != null) {
-                snapshot.reward = null;
-                addDropped(snapshot.dropped_fields, "reward.dropped");
-                json = GSON.toJson(snapshot);
-            }
-            if (json.length() > MAX_JSON && snapshot.event != null) {
-                snapshot.event = null;
-                addDropped(snapshot.dropped_fields, "event.dropped");
-                json = GSON.toJson(snapshot);
+            if (stale) {
+                PARTS.measure(snapshot, model);
+                json = PARTS.join();
+                exact = TokenEstimator.count(json, model);
             }
+            snapshot.json_tokens = exact;
+            return json;
+        }
+    }
+
+    // Last resort once the context's own steps are used up.
+    private static final List<TrimStep> FALLBACK_STEPS = Arrays.<TrimStep>asList(
+            SnapshotManager::dropDeckSummary,
+            SnapshotManager::dropRelics,
+            SnapshotManager::dropPotions,
+            SnapshotManager::dropReward,
+            SnapshotManager::dropEventFallback);
+
+    private static boolean dropDeckSummary(GameStateSnapshot snapshot, List<String> dropped) {
+        if (snapshot.deck_summary != null) {
+            snapshot.deck_summary = null;
+            addDropped(dropped, "deck_summary.dropped");
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean dropRelics(GameStateSnapshot snapshot, List<String> dropped) {
+        if (snapshot.relics != null) {
+            snapshot.relics = null;
+            addDropped(dropped, "relics.dropped");
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean dropPotions(GameStateSnapshot snapshot, List<String> dropped) {
+        if (snapshot.potions != null) {
+            snapshot.potions = null;
+            addDropped(dropped, "potions.dropped");
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean dropReward(GameStateSnapshot snapshot, List<String> dropped) {
+        if (snapshot.reward != null) {
+            snapshot.reward = null;
+            addDropped(dropped, "reward.dropped");
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean dropEventFallback(GameStateSnapshot snapshot, List<String> dropped) {
+        if (snapshot.event != null) {
+            snapshot.event = null;
+            addDropped(dropped, "event.dropped");
+            return true;
         }
+        return false;
+    }
 
-        return json;
+    // Local models usually run with a 4k-8k context, so their snapshots go through the same trim
+    // steps against a tighter budget.
+    public static int tokenBudget(String provider) {
+        int budget = ModConfig.snapshotTokenBudget;
+        if (Endpoint.isLocal(provider) && ModConfig.localSnapshotTokenBudget > 0) {
+            budget = Math.min(budget, ModConfig.localSnapshotTokenBudget);
+        }
+        return Math.max(MIN_TOKEN_BUDGET, budget);
     }
 
     private static List<TrimStep> buildTrimSteps(String context) {
@@ -392,6 +553,7 @@ public class SnapshotManager {
             return false;
         }
         if (snapshot.map.next_nodes.size() > 3) {
+            snapshot.map = snapshot.map.copy();
             snapshot.map.next_nodes = new ArrayList<>(snapshot.map.next_nodes.subList(0, 3));
             dropped.add("map.next_nodes.truncated_to_3");
             return true;
@@ -413,21 +575,28 @@ public class SnapshotManager {
             return false;
         }
         boolean changed = false;
+        GameStateSnapshot.MapFullInfo trimmed = new GameStateSnapshot.MapFullInfo();
+        trimmed.rows = new ArrayList<>();
         for (GameStateSnapshot.MapRow row : snapshot.map_full.rows) {
             if (row == null || row.nodes == null) {
+                trimmed.rows.add(row);
                 continue;
             }
+            GameStateSnapshot.MapRow trimmedRow = new GameStateSnapshot.MapRow();
+            trimmedRow.y = row.y;
+            trimmedRow.nodes = new ArrayList<>();
             for (GameStateSnapshot.MapNode node : row.nodes) {
-                if (node == null || node.next == null) {
-                    continue;
-                }
-                if (node.next.size() > 2) {
+                if (node != null && node.next != null && node.next.size() > 2) {
+                    node = node.copy();
                     node.next = new ArrayList<>(node.next.subList(0, 2));
                     changed = true;
                 }
+                trimmedRow.nodes.add(node);
             }
+            trimmed.rows.add(trimmedRow);
         }
         if (changed) {
+            snapshot.map_full = trimmed;
             dropped.add("map_full.edges.truncated");
         }
         return changed;
@@ -447,6 +616,7 @@ public class SnapshotManager {
             return false;
         }
         if (snapshot.neow.options.size() > 4) {
+            snapshot.neow = snapshot.neow.copy();
             snapshot.neow.options = new ArrayList<>(snapshot.neow.options.subList(0, 4));
             dropped.add("neow.options.truncated_to_4");
             return true;
@@ -468,6 +638,7 @@ public class SnapshotManager {
             return false;
         }
         if (snapshot.boss_relic.choices.size() > 3) {
+            snapshot.boss_relic = snapshot.boss_relic.copy();
             snapshot.boss_relic.choices = new ArrayList<>(snapshot.boss_relic.choices.subList(0, 3));
             dropped.add("boss_relic.choices.truncated_to_3");
             return true;
@@ -489,6 +660,7 @@ public class SnapshotManager {
             return false;
         }
         if (snapshot.rest.options.size() > 6) {
+            snapshot.rest = snapshot.rest.copy();
             snapshot.rest.options = new ArrayList<>(snapshot.rest.options.subList(0, 6));
             dropped.add("rest.options.truncated_to_6");
             return true;
@@ -501,6 +673,7 @@ public class SnapshotManager {
             return false;
         }
         if (snapshot.rest.upgrade_options.size() > 10) {
+            snapshot.rest = snapshot.rest.copy();
             snapshot.rest.upgrade_options = new ArrayList<>(snapshot.rest.upgrade_options.subList(0, 10));
             dropped.add("rest.upgrade_options.truncated_to_10");
             return true;
@@ -522,6 +695,7 @@ public class SnapshotManager {
             return false;
         }
         if (snapshot.event.options.size() > 6) {
+            snapshot.event = snapshot.event.copy();
             snapshot.event.options = new ArrayList<>(snapshot.event.options.subList(0, 6));
             dropped.add("event.options.truncated_to_6");
             return true;
@@ -543,6 +717,7 @@ public class SnapshotManager {
             return false;
         }
         if (snapshot.shop.cards.size() > 6) {
+            snapshot.shop = snapshot.shop.copy();
             snapshot.shop.cards = new ArrayList<>(snapshot.shop.cards.subList(0, 6));
             dropped.add("shop.cards.truncated_to_6");
             return true;
@@ -555,6 +730,7 @@ public class SnapshotManager {
             return false;
         }
         if (snapshot.shop.relics.size() > 6) {
+            snapshot.shop = snapshot.shop.copy();
             snapshot.shop.relics = new ArrayList<>(snapshot.shop.relics.subList(0, 6));
             dropped.add("shop.relics.truncated_to_6");
             return true;
@@ -567,6 +743,7 @@ public class SnapshotManager {
             return false;
         }
         if (snapshot.shop.potions.size() > 6) {
+            snapshot.shop = snapshot.shop.copy();
             snapshot.shop.potions = new ArrayList<>(snapshot.shop.potions.subList(0, 6));
             dropped.add("shop.potions.truncated_to_6");
             return true;
@@ -579,6 +756,7 @@ public class SnapshotManager {
             return false;
         }
         if (snapshot.shop.purge_candidates.size() > 15) {
+            snapshot.shop = snapshot.shop.copy();
             snapshot.shop.purge_candidates = new ArrayList<>(snapshot.shop.purge_candidates.subList(0, 15));
             dropped.add("shop.purge_candidates.truncated_to_15");
             return true;
@@ -624,13 +802,17 @@ public class SnapshotManager {
             return false;
         }
         boolean changed = false;
+        List<GameStateSnapshot.RelicInfo> trimmed = new ArrayList<>();
         for (GameStateSnapshot.RelicInfo relic : snapshot.relics) {
             if (relic != null && relic.name != null) {
+                relic = relic.copy();
                 relic.name = null;
                 changed = true;
             }
+            trimmed.add(relic);
         }
         if (changed) {
+            snapshot.relics = trimmed;
             dropped.add("relics.id_only");
         }
         return changed;
@@ -641,13 +823,17 @@ public class SnapshotManager {
             return false;
         }
         boolean changed = false;
+        List<GameStateSnapshot.PotionInfo> trimmed = new ArrayList<>();
         for (GameStateSnapshot.PotionInfo potion : snapshot.potions) {
             if (potion != null && potion.name != null) {
+                potion = potion.copy();
                 potion.name = null;
                 changed = true;
             }
+            trimmed.add(potion);
         }
         if (changed) {
+            snapshot.potions = trimmed;
             dropped.add("potions.id_only");
         }
         return changed;
@@ -658,6 +844,7 @@ public class SnapshotManager {
             return false;
         }
         if (snapshot.reward.choices.size() > 3) {
+            snapshot.reward = snapshot.reward.copy();
             snapshot.reward.choices = new ArrayList<>(snapshot.reward.choices.subList(0, 3));
             dropped.add("reward.choices.truncated_to_3");
             return true;
@@ -670,19 +857,21 @@ public class SnapshotManager {
             return false;
         }
         boolean changed = false;
+        List<GameStateSnapshot.CardInfo> trimmed = new ArrayList<>();
         for (GameStateSnapshot.CardInfo card : snapshot.reward.choices) {
-            if (card == null) {
-                continue;
-            }
-            if (card.name != null || card.cost != null || card.type != null || card.rarity != null) {
+            if (card != null && (card.name != null || card.cost != null || card.type != null || card.rarity != null)) {
+                card = card.copy();
                 card.name = null;
                 card.cost = null;
                 card.type = null;
                 card.rarity = null;
                 changed = true;
             }
+            trimmed.add(card);
         }
         if (changed) {
+            snapshot.reward = snapshot.reward.copy();
+            snapshot.reward.choices = trimmed;
             dropped.add("reward.choices.id_only");
         }
         return changed;
@@ -693,6 +882,7 @@ public class SnapshotManager {
             return false;
         }
         if (snapshot.combat.hand.size() > 10) {
+            snapshot.combat = snapshot.combat.copy();
             snapshot.combat.hand = new ArrayList<>(snapshot.combat.hand.subList(0, 10));
             dropped.add("combat.hand.truncated_to_10");
             return true;
@@ -705,6 +895,7 @@ public class SnapshotManager {
             return false;
         }
         if (snapshot.combat.monsters.size() > 3) {
+            snapshot.combat = snapshot.combat.copy();
             snapshot.combat.monsters = new ArrayList<>(snapshot.combat.monsters.subList(0, 3));
             dropped.add("combat.monsters.truncated_to_3");
             return true;
@@ -717,6 +908,7 @@ public class SnapshotManager {
             return false;
         }
         if (snapshot.combat.player_powers.size() > 10) {
+            snapshot.combat = snapshot.combat.copy();
             snapshot.combat.player_powers = new ArrayList<>(snapshot.combat.player_powers.subList(0, 10));
             dropped.add("combat.player_powers.truncated_to_10");
             return true;
@@ -729,16 +921,18 @@ public class SnapshotManager {
             return false;
         }
         boolean changed = false;
+        List<GameStateSnapshot.MonsterInfo> trimmed = new ArrayList<>();
         for (GameStateSnapshot.MonsterInfo monster : snapshot.combat.monsters) {
-            if (monster == null || monster.powers == null) {
-                continue;
-            }
-            if (monster.powers.size() > 10) {
+            if (monster != null && monster.powers != null && monster.powers.size() > 10) {
+                monster = monster.copy();
                 monster.powers = new ArrayList<>(monster.powers.subList(0, 10));
                 changed = true;
             }
+            trimmed.add(monster);
         }
         if (changed) {
+            snapshot.combat = snapshot.combat.copy();
+            snapshot.combat.monsters = trimmed;
             dropped.add("combat.monster_powers.truncated_to_10");
         }
         return changed;
@@ -751,119 +945,7 @@ public class SnapshotManager {
     }
 
     private static String computeHash(GameStateSnapshot snapshot) {
-        try {
-            String stable = buildStableString(snapshot);
-            MessageDigest digest = MessageDigest.getInstance("SHA-256");
-            byte[] hash = digest.digest(stable.getBytes(StandardCharsets.UTF_8));
-            StringBuilder sb = new StringBuilder();
-            for (byte b : hash) {
-                sb.append(String.format("%02x", b));
-            }
-            return sb.toString();
-        } catch (Exception e) {
-            return "";
-        }
-    }
-
-    private static String buildStableString(GameStateSnapshot snapshot) {
-        StringBuilder sb = new StringBuilder();
-        if (snapshot == null) {
-            return "";
-        }
-        sb.append(safe(snapshot.screen_context)).append('|');
-        if (snapshot.run != null) {
-            sb.append(value(snapshot.run.act)).append('|');
-            sb.append(value(snapshot.run.floor)).append('|');
-            sb.append(value(snapshot.run.ascension)).append('|');
-            sb.append(value(snapshot.run.gold)).append('|');
-            sb.append(value(snapshot.run.hp)).append('/').append(value(snapshot.run.maxHp)).append('|');
-            sb.append(safe(snapshot.run.character)).append('|');
-            sb.append(value(snapshot.run.seed)).append('|');
-        }
-        appendList(sb, snapshot.deck_summary, card -> card.card_id);
-        appendList(sb, snapshot.relics, relic -> relic.relic_id);
-        appendList(sb, snapshot.potions, potion -> potion.potion_id);
-        if (snapshot.neow != null) {
-            appendList(sb, snapshot.neow.options, opt -> safe(opt.label));
-        }
-        if (snapshot.boss_relic != null) {
-            appendList(sb, snapshot.boss_relic.choices, relic -> relic.relic_id);
-        }
-        if (snapshot.rest != null) {
-            appendList(sb, snapshot.rest.options, opt -> opt);
-            appendList(sb, snapshot.rest.upgrade_options, card -> card.card_id);
-        }
-        if (snapshot.event != null) {
-            sb.append("event=").append(safe(snapshot.event.event_id)).append('|');
-            appendList(sb, snapshot.event.options, opt -> opt);
-        }
-        if (snapshot.map != null) {
-            sb.append("map:").append(value(snapshot.map.curr_x)).append(',').append(value(snapshot.map.curr_y)).append('|');
-            appendList(sb, snapshot.map.next_nodes, node -> node.x + "," + node.y);
-        }
-        if (snapshot.reward != null) {
-            appendList(sb, snapshot.reward.choices, card -> card.card_id);
-        }
-        if (snapshot.shop != null) {
-            appendList(sb, snapshot.shop.cards, item -> item.id);
-            appendList(sb, snapshot.shop.relics, item -> item.id);
-            appendList(sb, snapshot.shop.potions, item -> item.id);
-            appendList(sb, snapshot.shop.purge_candidates, card -> card.card_id);
-        }
-        if (snapshot.combat != null) {
-            sb.append("turn=").append(value(snapshot.combat.turn)).append('|');
-            sb.append("energy=").append(value(snapshot.combat.energy)).append('|');
-            sb.append("block=").append(value(snapshot.combat.player_block)).append('|');
-            appendList(sb, snapshot.combat.player_powers, power -> power.id + ":" + value(power.amount));
-            appendList(sb, snapshot.combat.hand, card -> card.card_id);
-            if (snapshot.combat.monsters != null) {
-                for (GameStateSnapshot.MonsterInfo monster : snapshot.combat.monsters) {
-                    if (monster == null) {
-                        continue;
-                    }
-                    sb.append("m=").append(monster.id).append(":")
-                            .append(value(monster.hp)).append("/")
-                            .append(value(monster.maxHp)).append(":")
-                            .append(monster.intent == null ? "" : monster.intent).append('|');
-                }
-            }
-        }
-        return sb.toString();
-    }
-
-    private static String value(Integer value) {
-        return value == null ? "" : value.toString();
-    }
-
-    private static String value(Long value) {
-        return value == null ? "" : value.toString();
-    }
-
-    private static String safe(String value) {
-        return value == null ? "" : value;
-    }
-
-    private interface Extractor<T> {
-        String get(T item);
-    }
-
-    private static <T> void appendList(StringBuilder sb, List<T> list, Extractor<T> extractor) {
-        if (list == null || list.isEmpty()) {
-            sb.append("[]|");
-            return;
-        }
-        sb.append('[');
-        for (int i = 0; i < list.size(); i++) {
-            T item = list.get(i);
-            if (item == null) {
-                continue;
-            }
-            sb.append(extractor.get(item));
-            if (i < list.size() - 1) {
-                sb.append(',');
-            }
-        }
-        sb.append("]|");
+        return SnapshotHash.compute(snapshot);
     }
 
     private interface TrimStep {
@@ -875,6 +957,8 @@ public class SnapshotManager {
         public final String json;
         public final String summaryLine;
         public final String statusLine;
+        private byte[] escapedJson;
+        private byte[] escapedCompactJson;
 
         private Result(GameStateSnapshot snapshot, String json, String summaryLine, String statusLine) {
             this.snapshot = snapshot;
@@ -882,5 +966,31 @@ public class SnapshotManager {
             this.summaryLine = summaryLine;
             this.statusLine = statusLine;
         }
+
+        // json escaped as JSON string contents in UTF-8, encoded once and then copied into every
+        // request body (retries and fallback endpoints included); null without json.
+        public byte[] escapedJson() {
+            if (escapedJson == null && json != null) {
+                escapedJson = JsonBytes.encodeEscaped(json);
+            }
+            return escapedJson;
+        }
+
+        // The same snapshot in the compact encoding; null without json.
+        public String compactJson() {
+            return json == null || snapshot == null ? null : SnapshotManager.compactJson(snapshot);
+        }
+
+        public int compactTokens() {
+            return json == null || snapshot == null ? 0 : SnapshotManager.compactTokens(snapshot);
+        }
+
+        public byte[] escapedCompactJson() {
+            String compact = compactJson();
+            if (escapedCompactJson == null && compact != null) {
+                escapedCompactJson = JsonBytes.encodeEscaped(compact);
+            }
+            return escapedCompactJson;
+        }
     }
-}
+}
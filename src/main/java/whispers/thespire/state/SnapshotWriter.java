@@ -0,0 +1,372 @@
+package whispers.thespire.state;
+
+import java.util.List;
+
+// Hand-written JSON for GameStateSnapshot, replacing reflective Gson.toJson on every refresh. The
+// output is exactly what the mod's Gson (html escaping off, nulls skipped) writes: fields in
+// declaration order, null fields left out, null list items written as null, and the same string
+// escapes (control chars, quote, backslash, U+2028/U+2029). Keep it in step with GameStateSnapshot
+// when fields are added.
+class SnapshotWriter {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private SnapshotWriter() {}
+
+    interface ItemWriter<T> {
+        void write(StringBuilder sb, T item);
+    }
+
+    static String toJson(GameStateSnapshot snapshot) {
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append('{');
+        boolean first = true;
+        if (snapshot.run != null) {
+            first = key(sb, first, "run");
+            run(sb, snapshot.run);
+        }
+        first = str(sb, first, "screen_context", snapshot.screen_context);
+        first = list(sb, first, "deck_summary", snapshot.deck_summary, SnapshotWriter::card);
+        first = list(sb, first, "relics", snapshot.relics, SnapshotWriter::relic);
+        first = list(sb, first, "potions", snapshot.potions, SnapshotWriter::potion);
+        if (snapshot.map != null) {
+            first = key(sb, first, "map");
+            map(sb, snapshot.map);
+        }
+        if (snapshot.map_full != null) {
+            first = key(sb, first, "map_full");
+            mapFull(sb, snapshot.map_full);
+        }
+        if (snapshot.reward != null) {
+            first = key(sb, first, "reward");
+            reward(sb, snapshot.reward);
+        }
+        if (snapshot.neow != null) {
+            first = key(sb, first, "neow");
+            neow(sb, snapshot.neow);
+        }
+        if (snapshot.shop != null) {
+            first = key(sb, first, "shop");
+            shop(sb, snapshot.shop);
+        }
+        if (snapshot.boss_relic != null) {
+            first = key(sb, first, "boss_relic");
+            bossRelic(sb, snapshot.boss_relic);
+        }
+        if (snapshot.rest != null) {
+            first = key(sb, first, "rest");
+            rest(sb, snapshot.rest);
+        }
+        if (snapshot.event != null) {
+            first = key(sb, first, "event");
+            event(sb, snapshot.event);
+        }
+        if (snapshot.combat != null) {
+            first = key(sb, first, "combat");
+            combat(sb, snapshot.combat);
+        }
+        first = bool(sb, first, "trimmed", snapshot.trimmed);
+        first = list(sb, first, "dropped_fields", snapshot.dropped_fields, SnapshotWriter::string);
+        first = num(sb, first, "json_size", snapshot.json_size);
+        str(sb, first, "snapshot_hash", snapshot.snapshot_hash);
+        return sb.append('}').toString();
+    }
+
+    static void run(StringBuilder sb, GameStateSnapshot.Run run) {
+        sb.append('{');
+        boolean first = num(sb, true, "act", run.act);
+        first = num(sb, first, "floor", run.floor);
+        first = num(sb, first, "ascension", run.ascension);
+        first = num(sb, first, "gold", run.gold);
+        first = num(sb, first, "hp", run.hp);
+        first = num(sb, first, "maxHp", run.maxHp);
+        first = str(sb, first, "character", run.character);
+        num(sb, first, "seed", run.seed);
+        sb.append('}');
+    }
+
+    static void card(StringBuilder sb, GameStateSnapshot.CardInfo card) {
+        sb.append('{');
+        boolean first = str(sb, true, "card_id", card.card_id);
+        first = str(sb, first, "name", card.name);
+        first = bool(sb, first, "upgraded", card.upgraded);
+        first = num(sb, first, "cost", card.cost);
+        first = str(sb, first, "type", card.type);
+        str(sb, first, "rarity", card.rarity);
+        sb.append('}');
+    }
+
+    static void relic(StringBuilder sb, GameStateSnapshot.RelicInfo relic) {
+        sb.append('{');
+        boolean first = str(sb, true, "relic_id", relic.relic_id);
+        str(sb, first, "name", relic.name);
+        sb.append('}');
+    }
+
+    static void potion(StringBuilder sb, GameStateSnapshot.PotionInfo potion) {
+        sb.append('{');
+        boolean first = str(sb, true, "potion_id", potion.potion_id);
+        str(sb, first, "name", potion.name);
+        sb.append('}');
+    }
+
+    static void map(StringBuilder sb, GameStateSnapshot.MapInfo map) {
+        sb.append('{');
+        boolean first = num(sb, true, "curr_x", map.curr_x);
+        first = num(sb, first, "curr_y", map.curr_y);
+        first = str(sb, first, "curr_type", map.curr_type);
+        list(sb, first, "next_nodes", map.next_nodes, SnapshotWriter::node);
+        sb.append('}');
+    }
+
+    static void mapFull(StringBuilder sb, GameStateSnapshot.MapFullInfo mapFull) {
+        sb.append('{');
+        list(sb, true, "rows", mapFull.rows, SnapshotWriter::mapRow);
+        sb.append('}');
+    }
+
+    private static void mapRow(StringBuilder sb, GameStateSnapshot.MapRow row) {
+        sb.append('{');
+        boolean first = num(sb, true, "y", row.y);
+        list(sb, first, "nodes", row.nodes, SnapshotWriter::mapNode);
+        sb.append('}');
+    }
+
+    private static void mapNode(StringBuilder sb, GameStateSnapshot.MapNode node) {
+        sb.append('{');
+        boolean first = num(sb, true, "x", node.x);
+        first = num(sb, first, "y", node.y);
+        first = str(sb, first, "room_type", node.room_type);
+        list(sb, first, "next", node.next, SnapshotWriter::node);
+        sb.append('}');
+    }
+
+    private static void node(StringBuilder sb, GameStateSnapshot.NodeInfo node) {
+        sb.append('{');
+        boolean first = num(sb, true, "x", node.x);
+        first = num(sb, first, "y", node.y);
+        str(sb, first, "room_type", node.room_type);
+        sb.append('}');
+    }
+
+    static void reward(StringBuilder sb, GameStateSnapshot.RewardInfo reward) {
+        sb.append('{');
+        boolean first = list(sb, true, "choices", reward.choices, SnapshotWriter::card);
+        bool(sb, first, "canSkip", reward.canSkip);
+        sb.append('}');
+    }
+
+    static void neow(StringBuilder sb, GameStateSnapshot.NeowInfo neow) {
+        sb.append('{');
+        list(sb, true, "options", neow.options, SnapshotWriter::neowOption);
+        sb.append('}');
+    }
+
+    private static void neowOption(StringBuilder sb, GameStateSnapshot.NeowOption option) {
+        sb.append('{');
+        boolean first = str(sb, true, "label", option.label);
+        first = str(sb, first, "reward_type", option.reward_type);
+        str(sb, first, "drawback", option.drawback);
+        sb.append('}');
+    }
+
+    static void shop(StringBuilder sb, GameStateSnapshot.ShopInfo shop) {
+        sb.append('{');
+        boolean first = list(sb, true, "cards", shop.cards, SnapshotWriter::shopItem);
+        first = list(sb, first, "relics", shop.relics, SnapshotWriter::shopItem);
+        first = list(sb, first, "potions", shop.potions, SnapshotWriter::shopItem);
+        first = bool(sb, first, "purge_available", shop.purge_available);
+        first = num(sb, first, "purge_cost", shop.purge_cost);
+        list(sb, first, "purge_candidates", shop.purge_candidates, SnapshotWriter::card);
+        sb.append('}');
+    }
+
+    private static void shopItem(StringBuilder sb, GameStateSnapshot.ShopItem item) {
+        sb.append('{');
+        boolean first = str(sb, true, "item_type", item.item_type);
+        first = str(sb, first, "id", item.id);
+        first = str(sb, first, "name", item.name);
+        num(sb, first, "price", item.price);
+        sb.append('}');
+    }
+
+    static void bossRelic(StringBuilder sb, GameStateSnapshot.BossRelicInfo bossRelic) {
+        sb.append('{');
+        boolean first = list(sb, true, "choices", bossRelic.choices, SnapshotWriter::relic);
+        bool(sb, first, "canSkip", bossRelic.canSkip);
+        sb.append('}');
+    }
+
+    static void rest(StringBuilder sb, GameStateSnapshot.RestInfo rest) {
+        sb.append('{');
+        boolean first = list(sb, true, "options", rest.options, SnapshotWriter::string);
+        list(sb, first, "upgrade_options", rest.upgrade_options, SnapshotWriter::card);
+        sb.append('}');
+    }
+
+    static void event(StringBuilder sb, GameStateSnapshot.EventInfo event) {
+        sb.append('{');
+        boolean first = str(sb, true, "event_id", event.event_id);
+        first = str(sb, first, "event_name", event.event_name);
+        list(sb, first, "options", event.options, SnapshotWriter::string);
+        sb.append('}');
+    }
+
+    static void combat(StringBuilder sb, GameStateSnapshot.CombatInfo combat) {
+        sb.append('{');
+        boolean first = num(sb, true, "turn", combat.turn);
+        first = num(sb, first, "energy", combat.energy);
+        first = num(sb, first, "player_block", combat.player_block);
+        first = list(sb, first, "player_powers", combat.player_powers, SnapshotWriter::power);
+        first = list(sb, first, "hand", combat.hand, SnapshotWriter::combatCard);
+        first = num(sb, first, "draw_pile_size", combat.draw_pile_size);
+        first = num(sb, first, "discard_pile_size", combat.discard_pile_size);
+        first = num(sb, first, "exhaust_pile_size", combat.exhaust_pile_size);
+        list(sb, first, "monsters", combat.monsters, SnapshotWriter::monster);
+        sb.append('}');
+    }
+
+    private static void power(StringBuilder sb, GameStateSnapshot.PowerInfo power) {
+        sb.append('{');
+        boolean first = str(sb, true, "id", power.id);
+        num(sb, first, "amount", power.amount);
+        sb.append('}');
+    }
+
+    private static void combatCard(StringBuilder sb, GameStateSnapshot.CombatCardInfo card) {
+        sb.append('{');
+        boolean first = str(sb, true, "card_id", card.card_id);
+        first = str(sb, first, "name", card.name);
+        first = num(sb, first, "cost", card.cost);
+        first = bool(sb, first, "upgraded", card.upgraded);
+        str(sb, first, "type", card.type);
+        sb.append('}');
+    }
+
+    private static void monster(StringBuilder sb, GameStateSnapshot.MonsterInfo monster) {
+        sb.append('{');
+        boolean first = str(sb, true, "id", monster.id);
+        first = str(sb, first, "name", monster.name);
+        first = num(sb, first, "hp", monster.hp);
+        first = num(sb, first, "maxHp", monster.maxHp);
+        first = num(sb, first, "block", monster.block);
+        first = str(sb, first, "intent", monster.intent);
+        first = num(sb, first, "intent_dmg", monster.intent_dmg);
+        first = num(sb, first, "intent_base_dmg", monster.intent_base_dmg);
+        first = num(sb, first, "intent_hits", monster.intent_hits);
+        first = bool(sb, first, "intent_multi", monster.intent_multi);
+        first = str(sb, first, "move_name", monster.move_name);
+        list(sb, first, "powers", monster.powers, SnapshotWriter::power);
+        sb.append('}');
+    }
+
+    static <T> void array(StringBuilder sb, List<T> items, ItemWriter<T> writer) {
+        sb.append('[');
+        for (int i = 0; i < items.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            T item = items.get(i);
+            if (item == null) {
+                sb.append("null");
+            } else {
+                writer.write(sb, item);
+            }
+        }
+        sb.append(']');
+    }
+
+    static void string(StringBuilder sb, String value) {
+        sb.append('"');
+        int start = 0;
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (c >= 0x20 && c != '"' && c != '\\' && c != 0x2028 && c != 0x2029) {
+                continue;
+            }
+            sb.append(value, start, i);
+            start = i + 1;
+            switch (c) {
+                case '"':
+                    sb.append("\\\"");
+                    break;
+                case '\\':
+                    sb.append("\\\\");
+                    break;
+                case '\t':
+                    sb.append("\\t");
+                    break;
+                case '\b':
+                    sb.append("\\b");
+                    break;
+                case '\n':
+                    sb.append("\\n");
+                    break;
+                case '\r':
+                    sb.append("\\r");
+                    break;
+                case '\f':
+                    sb.append("\\f");
+                    break;
+                default:
+                    sb.append('\\').append('u')
+                            .append(HEX[(c >> 12) & 0xF]).append(HEX[(c >> 8) & 0xF])
+                            .append(HEX[(c >> 4) & 0xF]).append(HEX[c & 0xF]);
+            }
+        }
+        sb.append(value, start, length).append('"');
+    }
+
+    private static boolean key(StringBuilder sb, boolean first, String name) {
+        if (!first) {
+            sb.append(',');
+        }
+        sb.append('"').append(name).append("\":");
+        return false;
+    }
+
+    private static boolean str(StringBuilder sb, boolean first, String name, String value) {
+        if (value == null) {
+            return first;
+        }
+        key(sb, first, name);
+        string(sb, value);
+        return false;
+    }
+
+    private static boolean num(StringBuilder sb, boolean first, String name, Integer value) {
+        if (value == null) {
+            return first;
+        }
+        key(sb, first, name);
+        sb.append(value.intValue());
+        return false;
+    }
+
+    private static boolean num(StringBuilder sb, boolean first, String name, Long value) {
+        if (value == null) {
+            return first;
+        }
+        key(sb, first, name);
+        sb.append(value.longValue());
+        return false;
+    }
+
+    private static boolean bool(StringBuilder sb, boolean first, String name, Boolean value) {
+        if (value == null) {
+            return first;
+        }
+        key(sb, first, name);
+        sb.append(value.booleanValue());
+        return false;
+    }
+
+    private static <T> boolean list(StringBuilder sb, boolean first, String name, List<T> items, ItemWriter<T> writer) {
+        if (items == null) {
+            return first;
+        }
+        key(sb, first, name);
+        array(sb, items, writer);
+        return false;
+    }
+}
@@ -11,6 +11,9 @@ import com.megacrit.cardcrawl.neow.NeowReward;
 import com.megacrit.cardcrawl.neow.NeowRoom;
 import com.megacrit.cardcrawl.potions.AbstractPotion;
 import com.megacrit.cardcrawl.relics.AbstractRelic;
+import com.megacrit.cardcrawl.rewards.RewardItem;
+import com.megacrit.cardcrawl.rewards.chests.AbstractChest;
+import com.megacrit.cardcrawl.rewards.chests.BossChest;
 import com.megacrit.cardcrawl.rooms.AbstractRoom;
 import com.megacrit.cardcrawl.rooms.EventRoom;
 import com.megacrit.cardcrawl.rooms.RestRoom;
@@ -34,74 +37,243 @@ import java.util.List;
 public class StateExtractor {
     private StateExtractor() {}
 
-    public static GameStateSnapshot extract(boolean includeCombat) {
-        return extract(includeCombat, false);
+    // Reads the current screen into a snapshot. Sections whose fingerprint has not moved since the
+    // cache's last extraction are taken over instead of read again. stateKey is the buildLightweightKey() value the caller
+    // already has; its event part fingerprints the event screen without another reflective read.
+    public static GameStateSnapshot extract(boolean includeCombat, boolean includeFullMap, SectionCache cache, String stateKey) {
+        String context = getScreenContext();
+        GameStateSnapshot kept = cache.kept;
+        cache.begin();
+        GameStateSnapshot snapshot = new GameStateSnapshot();
+        snapshot.screen_context = context;
+
+        AbstractPlayer player = AbstractDungeon.player;
+        long deckFp = SectionCache.ALWAYS;
+        if (player != null) {
+            snapshot.run = extractRun(player);
+            deckFp = deckFingerprint(player);
+            if (!cache.reusable(SectionCache.DECK, deckFp)) {
+                kept.deck_summary = extractDeck(player);
+                cache.stored(SectionCache.DECK, deckFp);
+            }
+            long relicsFp = relicsFingerprint(player);
+            if (!cache.reusable(SectionCache.RELICS, relicsFp)) {
+                kept.relics = extractRelics(player);
+                cache.stored(SectionCache.RELICS, relicsFp);
+            }
+            long potionsFp = potionsFingerprint(player);
+            if (!cache.reusable(SectionCache.POTIONS, potionsFp)) {
+                kept.potions = extractPotions(player);
+                cache.stored(SectionCache.POTIONS, potionsFp);
+            }
+            snapshot.deck_summary = kept.deck_summary;
+            snapshot.relics = kept.relics;
+            snapshot.potions = kept.potions;
+        } else {
+            cache.invalidate(SectionCache.DECK);
+            cache.invalidate(SectionCache.RELICS);
+            cache.invalidate(SectionCache.POTIONS);
+        }
+
+        long mapFp = mapFingerprint(context, includeFullMap);
+        if (!cache.reusable(SectionCache.MAP, mapFp)) {
+            kept.map = "MAP".equals(context) ? extractMap() : null;
+            kept.map_full = includeFullMap ? extractFullMap() : null;
+            cache.stored(SectionCache.MAP, mapFp);
+        }
+        snapshot.map = kept.map;
+        snapshot.map_full = kept.map_full;
+
+        long screenFp = screenFingerprint(context, deckFp, player, stateKey);
+        if (!cache.reusable(SectionCache.SCREEN, screenFp)) {
+            kept.neow = "NEOW".equals(context) ? extractNeow() : null;
+            kept.boss_relic = "BOSS_RELIC".equals(context) ? extractBossRelic() : null;
+            kept.rest = "REST".equals(context) ? extractRest() : null;
+            kept.event = "EVENT".equals(context) ? extractEvent() : null;
+            kept.reward = "CARD_REWARD".equals(context) ? extractReward() : null;
+            kept.shop = "SHOP".equals(context) ? extractShop() : null;
+            cache.stored(SectionCache.SCREEN, screenFp);
+        }
+        snapshot.neow = kept.neow;
+        snapshot.boss_relic = kept.boss_relic;
+        snapshot.rest = kept.rest;
+        snapshot.event = kept.event;
+        snapshot.reward = kept.reward;
+        snapshot.shop = kept.shop;
+
+        // Combat moves on almost every refresh (block, powers, intents); it is always read.
+        if (includeCombat && "COMBAT".equals(context)) {
+            snapshot.combat = extractCombat();
+            cache.stored(SectionCache.COMBAT, SectionCache.ALWAYS);
+        }
+        return snapshot;
     }
 
-    public static GameStateSnapshot extract(boolean includeCombat, boolean includeFullMap) {
+    // Snapshot of the screen that is about to open, built from contents the game has already rolled:
+    // card rewards sit in the room's RewardItems before the card screen opens, and boss relics are
+    // chosen when the boss chest is created. Returns null when the next screen is not predictable.
+    public static GameStateSnapshot predictNext() {
+        try {
+            AbstractRoom room = AbstractDungeon.getCurrRoom();
+            if (room == null || AbstractDungeon.player == null) {
+                return null;
+            }
+            if (room instanceof TreasureRoomBoss) {
+                AbstractChest chest = ((TreasureRoomBoss) room).chest;
+                if (chest instanceof BossChest && !chest.isOpen
+                        && ((BossChest) chest).relics != null && !((BossChest) chest).relics.isEmpty()
+                        && !"BOSS_RELIC".equals(getScreenContext())) {
+                    GameStateSnapshot snapshot = extractBase("BOSS_RELIC");
+                    snapshot.boss_relic = toBossRelicInfo(((BossChest) chest).relics);
+                    return snapshot;
+                }
+                return null;
+            }
+            if (AbstractDungeon.screen == AbstractDungeon.CurrentScreen.COMBAT_REWARD && room.rewards != null) {
+                for (RewardItem item : room.rewards) {
+                    if (item == null || item.type != RewardItem.RewardType.CARD
+                            || item.cards == null || item.cards.isEmpty()) {
+                        continue;
+                    }
+                    GameStateSnapshot snapshot = extractBase("CARD_REWARD");
+                    snapshot.reward = toRewardInfo(item.cards, Boolean.TRUE);
+                    return snapshot;
+                }
+            }
+        } catch (Exception ignored) {
+            // no prediction
+        }
+        return null;
+    }
+
+    private static GameStateSnapshot extractBase(String context) {
         GameStateSnapshot snapshot = new GameStateSnapshot();
-        String context = getScreenContext();
         snapshot.screen_context = context;
 
         AbstractPlayer player = AbstractDungeon.player;
         if (player != null) {
-            GameStateSnapshot.Run run = new GameStateSnapshot.Run();
-            run.act = AbstractDungeon.actNum;
-            run.floor = AbstractDungeon.floorNum;
-            run.ascension = AbstractDungeon.ascensionLevel;
-            run.gold = player.gold;
-            run.hp = player.currentHealth;
-            run.maxHp = player.maxHealth;
-            run.character = player.chosenClass == null ? null : player.chosenClass.name();
-            run.seed = Settings.seed;
-            snapshot.run = run;
-
+            snapshot.run = extractRun(player);
             snapshot.deck_summary = extractDeck(player);
             snapshot.relics = extractRelics(player);
             snapshot.potions = extractPotions(player);
         }
+        return snapshot;
+    }
 
-        if ("NEOW".equals(context)) {
-            snapshot.neow = extractNeow();
-        }
-
-        if ("BOSS_RELIC".equals(context)) {
-            snapshot.boss_relic = extractBossRelic();
-        }
-
-        if ("REST".equals(context)) {
-            snapshot.rest = extractRest();
-        }
+    private static GameStateSnapshot.Run extractRun(AbstractPlayer player) {
+        GameStateSnapshot.Run run = new GameStateSnapshot.Run();
+        run.act = AbstractDungeon.actNum;
+        run.floor = AbstractDungeon.floorNum;
+        run.ascension = AbstractDungeon.ascensionLevel;
+        run.gold = player.gold;
+        run.hp = player.currentHealth;
+        run.maxHp = player.maxHealth;
+        run.character = player.chosenClass == null ? null : player.chosenClass.name();
+        run.seed = Settings.seed;
+        return run;
+    }
 
-        if ("EVENT".equals(context)) {
-            snapshot.event = extractEvent();
+    // Section fingerprints only touch object identities and a few ints; nothing is allocated.
+    // Cards, relics and potions are replaced (not edited) when obtained or lost; upgrades and cost
+    // changes edit the card, so those fields are folded in as well.
+    private static long deckFingerprint(AbstractPlayer player) {
+        long hash = SectionCache.seed(SectionCache.DECK);
+        if (player.masterDeck == null || player.masterDeck.group == null) {
+            return hash;
         }
-
-        if ("MAP".equals(context)) {
-            snapshot.map = extractMap();
+        hash = SectionCache.mix(hash, System.identityHashCode(player.masterDeck.group));
+        for (AbstractCard card : player.masterDeck.group) {
+            hash = SectionCache.mix(hash, System.identityHashCode(card));
+            if (card != null) {
+                hash = SectionCache.mix(hash, ((long) card.timesUpgraded << 32) | (card.cost & 0xFFFFFFFFL));
+            }
         }
+        return SectionCache.mix(hash, player.masterDeck.group.size());
+    }
 
-        if (includeFullMap) {
-            snapshot.map_full = extractFullMap();
+    private static long relicsFingerprint(AbstractPlayer player) {
+        long hash = SectionCache.seed(SectionCache.RELICS);
+        if (player.relics == null) {
+            return hash;
         }
-
-        if ("CARD_REWARD".equals(context)) {
-            snapshot.reward = extractReward();
+        for (AbstractRelic relic : player.relics) {
+            hash = SectionCache.mix(hash, System.identityHashCode(relic));
         }
+        return SectionCache.mix(hash, player.relics.size());
+    }
 
-        if ("SHOP".equals(context)) {
-            snapshot.shop = extractShop();
+    private static long potionsFingerprint(AbstractPlayer player) {
+        long hash = SectionCache.seed(SectionCache.POTIONS);
+        if (player.potions == null) {
+            return hash;
         }
-
-        if (includeCombat && "COMBAT".equals(context)) {
-            snapshot.combat = extractCombat();
+        for (AbstractPotion potion : player.potions) {
+            hash = SectionCache.mix(hash, System.identityHashCode(potion));
         }
+        return SectionCache.mix(hash, player.potions.size());
+    }
 
-        return snapshot;
+    // The dungeon map is built once per act; the current node moves with the player.
+    private static long mapFingerprint(String context, boolean includeFullMap) {
+        long hash = SectionCache.seed(SectionCache.MAP);
+        hash = SectionCache.mix(hash, "MAP".equals(context) ? 1L : 0L);
+        hash = SectionCache.mix(hash, includeFullMap ? 1L : 0L);
+        hash = SectionCache.mix(hash, System.identityHashCode(AbstractDungeon.map));
+        return SectionCache.mix(hash, System.identityHashCode(AbstractDungeon.getCurrMapNode()));
     }
 
-    public static GameStateSnapshot extract() {
-        return extract(false);
+    // Per screen, whatever changes when its contents do: buying in a shop spends gold and edits the
+    // deck (purge candidates), a campfire option moves the room phase, a new card reward or boss
+    // chest is a new list. Neow and unknown screens are read every time.
+    private static long screenFingerprint(String context, long deckFp, AbstractPlayer player, String stateKey) {
+        long hash = SectionCache.mix(SectionCache.seed(SectionCache.SCREEN), context.hashCode());
+        try {
+            AbstractRoom room = AbstractDungeon.getCurrRoom();
+            hash = SectionCache.mix(hash, System.identityHashCode(room));
+            if ("SHOP".equals(context)) {
+                ShopScreen shop = AbstractDungeon.shopScreen;
+                hash = SectionCache.mix(hash, System.identityHashCode(shop));
+                hash = SectionCache.mix(hash, player == null ? -1 : player.gold);
+                hash = SectionCache.mix(hash, deckFp);
+                if (shop != null) {
+                    hash = SectionCache.mix(hash, shop.coloredCards == null ? -1 : shop.coloredCards.size());
+                    hash = SectionCache.mix(hash, shop.colorlessCards == null ? -1 : shop.colorlessCards.size());
+                    hash = SectionCache.mix(hash, shop.purgeAvailable ? 1L : 0L);
+                }
+                return hash;
+            }
+            if ("REST".equals(context)) {
+                hash = SectionCache.mix(hash, room == null || room.phase == null ? -1 : room.phase.ordinal());
+                return SectionCache.mix(hash, deckFp);
+            }
+            if ("CARD_REWARD".equals(context)) {
+                CardRewardScreen screen = AbstractDungeon.cardRewardScreen;
+                List<AbstractCard> group = screen == null ? null : screen.rewardGroup;
+                hash = SectionCache.mix(hash, System.identityHashCode(group));
+                if (group != null) {
+                    for (AbstractCard card : group) {
+                        hash = SectionCache.mix(hash, System.identityHashCode(card));
+                    }
+                }
+                return hash;
+            }
+            if ("BOSS_RELIC".equals(context)) {
+                List<AbstractRelic> relics = AbstractDungeon.bossRelicScreen == null ? null : AbstractDungeon.bossRelicScreen.relics;
+                hash = SectionCache.mix(hash, System.identityHashCode(relics));
+                return SectionCache.mix(hash, relics == null ? -1 : relics.size());
+            }
+            if ("EVENT".equals(context)) {
+                int at = stateKey == null ? -1 : stateKey.indexOf("|event=");
+                return at < 0 ? SectionCache.ALWAYS : SectionCache.mix(hash, stateKey.substring(at).hashCode());
+            }
+            if ("MAP".equals(context) || "COMBAT".equals(context)) {
+                // No screen section on these.
+                return hash;
+            }
+        } catch (Exception ignored) {
+            // fall through
+        }
+        return SectionCache.ALWAYS;
     }
 
     public static String computeMapHash() {
@@ -463,10 +635,14 @@ public class StateExtractor {
         if (screen == null) {
             return null;
         }
+        return toRewardInfo(screen.rewardGroup, readSkippable(screen));
+    }
+
+    private static GameStateSnapshot.RewardInfo toRewardInfo(List<AbstractCard> cards, Boolean canSkip) {
         GameStateSnapshot.RewardInfo reward = new GameStateSnapshot.RewardInfo();
         reward.choices = new ArrayList<>();
-        if (screen.rewardGroup != null) {
-            for (AbstractCard card : screen.rewardGroup) {
+        if (cards != null) {
+            for (AbstractCard card : cards) {
                 if (card == null) {
                     continue;
                 }
@@ -481,7 +657,7 @@ public class StateExtractor {
             }
         }
 
-        reward.canSkip = readSkippable(screen);
+        reward.canSkip = canSkip;
         return reward;
     }
 
@@ -489,9 +665,13 @@ public class StateExtractor {
         if (AbstractDungeon.bossRelicScreen == null || AbstractDungeon.bossRelicScreen.relics == null) {
             return null;
         }
+        return toBossRelicInfo(AbstractDungeon.bossRelicScreen.relics);
+    }
+
+    private static GameStateSnapshot.BossRelicInfo toBossRelicInfo(List<AbstractRelic> relics) {
         GameStateSnapshot.BossRelicInfo info = new GameStateSnapshot.BossRelicInfo();
         info.choices = new ArrayList<>();
-        for (AbstractRelic relic : AbstractDungeon.bossRelicScreen.relics) {
+        for (AbstractRelic relic : relics) {
             if (relic == null) {
                 continue;
             }
@@ -1158,4 +1338,4 @@ public class StateExtractor {
         }
         return null;
     }
-}
+}
@@ -20,11 +20,17 @@ import whispers.thespire.config.ModConfig;
 import whispers.thespire.i18n.I18n;
 import whispers.thespire.llm.LLMClient;
 import whispers.thespire.llm.OpenAICompatClient;
+import whispers.thespire.llm.RequestPriority;
 import whispers.thespire.llm.GeminiClient;
+import whispers.thespire.llm.Endpoint;
+import whispers.thespire.llm.PromptBuilder;
+import whispers.thespire.llm.SnapshotEncoding;
+import whispers.thespire.llm.model.LLMPartial;
 import whispers.thespire.llm.model.LLMRecommendation;
 import whispers.thespire.llm.model.LLMRequest;
 import whispers.thespire.llm.model.LLMResult;
 import whispers.thespire.logic.AutoRequestController;
+import whispers.thespire.logic.PrefetchEngine;
 import whispers.thespire.logic.TriggerManager;
 import whispers.thespire.state.StateExtractor;
 import whispers.thespire.state.SnapshotManager;
@@ -91,7 +97,9 @@ public class OverlayPanel {
 
     private static final LLMClient LLM_CLIENT = new LLMClient(new OpenAICompatClient(), new GeminiClient());
     private static final AutoRequestController AUTO_CONTROLLER = new AutoRequestController();
+    private static final PrefetchEngine PREFETCH = new PrefetchEngine();
     private static Future<LLMResult> llmFuture;
+    private static LLMPartial llmPartial;
     private static String llmStateLine = "Idle";
     private static String llmSummary = "";
     private static List<LLMRecommendation> llmRecommendations;
@@ -105,6 +113,7 @@ public class OverlayPanel {
     private static String currentRequestContext = "";
     private static String currentRequestDisplayContext = "";
     private static boolean currentRequestAuto = false;
+    private static boolean currentRequestPrefetched = false;
     private static String currentRequestReason = "";
     private static GameStateSnapshot currentRequestSnapshot;
     private static boolean pendingCombatAuto = false;
@@ -180,6 +189,7 @@ public class OverlayPanel {
 
         pollLlmFuture();
         handleAutoTriggers();
+        handlePrefetch(liveContext);
 
         if (!ModConfig.overlayEnabled) {
             dragging = false;
@@ -620,7 +630,7 @@ public class OverlayPanel {
             return;
         }
 
-        if (ModConfig.apiKey == null || ModConfig.apiKey.trim().isEmpty()) {
+        if (missingApiKey()) {
             llmStateLine = "API key missing";
             return;
         }
@@ -650,7 +660,13 @@ public class OverlayPanel {
                 return;
             }
             if (result != null && result.ok) {
-                llmStateLine = "ok";
+                llmStateLine = result.fromCache ? "ok (cached)" : currentRequestPrefetched ? "ok (prefetched)" : "ok";
+                if (result.endpoint != null && !result.endpoint.equals(safeStr(ModConfig.model).trim())) {
+                    llmStateLine += " via " + result.endpoint;
+                }
+                if (result.partial) {
+                    llmStateLine += " (partial: cut at " + result.salvaged + " recs)";
+                }
                 llmSummary = result.summary == null ? "" : result.summary;
                 llmRecommendations = result.recommendations;
                 llmRaw = null;
@@ -659,7 +675,7 @@ public class OverlayPanel {
                 lastSuccessMs = System.currentTimeMillis();
                 lastContextType = currentRequestDisplayContext == null || currentRequestDisplayContext.isEmpty()
                         ? "N/A" : currentRequestDisplayContext;
-                if (currentRequestSnapshot != null) {
+                if (currentRequestSnapshot != null && !result.fromCache) {
                     SkillLibrary.recordRecommendations(result, currentRequestSnapshot);
                 }
             } else if (result != null) {
@@ -686,6 +702,7 @@ public class OverlayPanel {
             llmRoutePlan = null;
         } finally {
             llmFuture = null;
+            llmPartial = null;
             currentRequestSnapshot = null;
         }
     }
@@ -760,7 +777,7 @@ public class OverlayPanel {
             llmStateLine = "snapshot unavailable";
             return;
         }
-        if (ModConfig.apiKey == null || ModConfig.apiKey.trim().isEmpty()) {
+        if (missingApiKey()) {
             llmStateLine = "API key missing";
             return;
         }
@@ -768,6 +785,18 @@ public class OverlayPanel {
             llmStateLine = isAuto ? "auto skipped: busy" : "busy: request in progress";
             return;
         }
+        RequestPriority priority = !isAuto ? RequestPriority.MANUAL
+                : "COMBAT_TURN".equals(displayContext) ? RequestPriority.COMBAT_TURN : RequestPriority.SCREEN;
+        if (isAuto && !PREFETCH.hasPending()) {
+            LLMRequest probe = buildRequest(snapshot);
+            probe.routeContext = displayContext;
+            String shed = LLM_CLIENT.shedReason(probe, priority);
+            if (shed != null) {
+                // Keep the previous advice on screen rather than replacing it with an error.
+                llmStateLine = "auto skipped: " + shed;
+                return;
+            }
+        }
 
         currentRequestAuto = isAuto;
         currentRequestContext = snapshot.snapshot.screen_context;
@@ -788,16 +817,69 @@ public class OverlayPanel {
         llmNextPickIndex = null;
         llmRoutePlan = null;
 
+        PrefetchEngine.Claim claim = PREFETCH.claim(snapshot.snapshot.snapshot_hash, snapshot.snapshot.screen_context);
+        if (claim != null) {
+            currentRequestPrefetched = true;
+            LLM_CLIENT.promote(claim.future, priority);
+            llmPartial = claim.partial;
+            llmFuture = claim.future;
+            return;
+        }
+        currentRequestPrefetched = false;
+        LLMRequest request = buildRequest(snapshot);
+        request.routeContext = displayContext;
+        request.stream = ModConfig.streamResponses;
+        request.partial = new LLMPartial();
+        llmFuture = LLM_CLIENT.submit(request, priority);
+        // A coalesced request hands back the running call's partial view.
+        llmPartial = request.partial;
+    }
+
+    private static boolean missingApiKey() {
+        return (ModConfig.apiKey == null || ModConfig.apiKey.trim().isEmpty()) && !Endpoint.isLocal(ModConfig.provider);
+    }
+
+    // Issues the request for the next screen early when its contents are already known.
+    private static void handlePrefetch(String liveContext) {
+        if (!ModConfig.autoTriggersEnabled || !ModConfig.prefetchEnabled || isBusy() || PREFETCH.hasPending()) {
+            return;
+        }
+        if (missingApiKey()) {
+            return;
+        }
+        SnapshotManager.Result predicted = PREFETCH.poll(liveContext);
+        if (predicted == null) {
+            return;
+        }
+        LLMRequest request = buildRequest(predicted);
+        if (LLM_CLIENT.shedReason(request, RequestPriority.PREFETCH) != null) {
+            return;
+        }
+        request.stream = ModConfig.streamResponses;
+        request.partial = new LLMPartial();
+        PREFETCH.issued(predicted, liveContext, LLM_CLIENT.submit(request, RequestPriority.PREFETCH), request.partial);
+    }
+
+    private static LLMRequest buildRequest(SnapshotManager.Result snapshot) {
         LLMRequest request = new LLMRequest();
+        request.provider = ModConfig.provider;
         request.baseUrl = ModConfig.baseUrl;
         request.model = ModConfig.model;
         request.apiKey = ModConfig.apiKey;
         request.temperature = ModConfig.temperature;
         request.maxTokens = ModConfig.maxTokens;
         request.timeoutMs = ModConfig.timeoutMs;
+        request.structuredOutput = ModConfig.structuredOutput;
         request.contextType = snapshot.snapshot.screen_context;
         request.snapshotJson = snapshot.json;
+        request.snapshotJsonEscaped = snapshot.escapedJson();
         request.snapshotHash = snapshot.snapshot.snapshot_hash;
+        request.snapshotTokens = snapshot.snapshot.json_tokens;
+        if (SnapshotEncoding.anyCompact()) {
+            request.snapshotCompact = snapshot.compactJson();
+            request.snapshotCompactEscaped = snapshot.escapedCompactJson();
+            request.snapshotCompactTokens = snapshot.compactTokens();
+        }
         if (snapshot.snapshot.run != null) {
             request.ascension = snapshot.snapshot.run.ascension;
             request.character = snapshot.snapshot.run.character;
@@ -904,8 +986,7 @@ public class OverlayPanel {
                 request.combatPlayableCards = playable.toString();
             }
         }
-
-        llmFuture = LLM_CLIENT.submit(request);
+        return request;
     }
 
     private static String buildEssentialFacts(GameStateSnapshot snapshot) {
@@ -1175,11 +1256,14 @@ public class OverlayPanel {
             // ignore cancellation errors
         } finally {
             llmFuture = null;
+            llmPartial = null;
         }
     }
 
     private static void onRunEnded() {
         cancelCurrentRequest();
+        PREFETCH.reset();
+        LLM_CLIENT.flush();
         AUTO_CONTROLLER.reset();
         SnapshotManager.reset();
         llmStateLine = "Idle";
@@ -1198,6 +1282,7 @@ public class OverlayPanel {
         currentRequestContext = "";
         currentRequestDisplayContext = "";
         currentRequestAuto = false;
+        currentRequestPrefetched = false;
         currentRequestReason = "";
         currentRequestSnapshot = null;
         pendingCombatAuto = false;
@@ -1340,12 +1425,17 @@ public class OverlayPanel {
             sb.append(I18n.t("snapshot_ok"));
         }
         sb.append(" ").append(I18n.t("size")).append("=").append(lastSnapshot.json_size);
+        sb.append(" tok=").append(lastSnapshot.json_tokens);
         if (lastSnapshot.dropped_fields != null && !lastSnapshot.dropped_fields.isEmpty()) {
             sb.append(" ").append(I18n.t("dropped")).append("=").append(String.join(",", lastSnapshot.dropped_fields));
         }
         if (lastSnapshot.snapshot_hash != null && lastSnapshot.snapshot_hash.length() >= 8) {
             sb.append(" ").append(I18n.t("hash")).append("=").append(lastSnapshot.snapshot_hash.substring(0, 8));
         }
+        String budget = LLM_CLIENT.budgetLine();
+        if (!budget.isEmpty()) {
+            sb.append(" ").append(budget);
+        }
         return sb.toString();
     }
 
@@ -1355,6 +1445,8 @@ public class OverlayPanel {
         sb.append(statusLine == null ? "" : statusLine).append('|');
         sb.append(llmSummary == null ? "" : llmSummary).append('|');
         sb.append(llmStateLine == null ? "" : llmStateLine).append('|');
+        sb.append(LLM_CLIENT.healthLine()).append('|');
+        sb.append(LLM_CLIENT.budgetLine()).append('|');
         if (llmRecommendations != null) {
             for (LLMRecommendation rec : llmRecommendations) {
                 if (rec == null) {
@@ -1376,6 +1468,7 @@ public class OverlayPanel {
         sb.append('|').append(ModConfig.showCombatHand);
         sb.append('|').append(ModConfig.showCombatEnemies);
         sb.append('|').append(llmNextPickIndex == null ? "" : llmNextPickIndex.toString());
+        sb.append('|').append(llmPartial == null ? 0 : llmPartial.getVersion());
         if (llmRoutePlan != null) {
             for (String plan : llmRoutePlan) {
                 sb.append('|').append(plan == null ? "" : plan);
@@ -1398,6 +1491,13 @@ public class OverlayPanel {
             meta = meta + ", " + lastAutoReason;
         }
         addWrappedLine(lines, FontHelper.smallDialogOptionFont, meta, 0f, TEXT_COLOR, 8f * Settings.scale, maxWidth);
+        if (ModConfig.debugShowSnapshot) {
+            addWrappedLine(lines, FontHelper.smallDialogOptionFont, LLM_CLIENT.statsLine() + " | " + PREFETCH.statsLine() + " | " + SnapshotManager.statsLine(), 0f, TEXT_COLOR, 8f * Settings.scale, maxWidth);
+            String accounting = PromptBuilder.accountingLine();
+            if (!accounting.isEmpty()) {
+                addWrappedLine(lines, FontHelper.smallDialogOptionFont, accounting, 0f, TEXT_COLOR, 8f * Settings.scale, maxWidth);
+            }
+        }
 
         if (lastSnapshot != null && lastSnapshot.combat != null) {
             if (ModConfig.showCombatHand) {
@@ -1416,7 +1516,9 @@ public class OverlayPanel {
 
         if (llmFuture != null && !llmFuture.isDone()) {
             String analyzingText = llmStateLine == null || llmStateLine.isEmpty() ? I18n.t("analyzing") : llmStateLine;
+            analyzingText = withHealth(analyzingText);
             addWrappedLine(lines, FontHelper.tipBodyFont, analyzingText, 0f, TEXT_COLOR, 0f, maxWidth);
+            addPartialLines(lines, maxWidth);
             return lines;
         }
 
@@ -1441,7 +1543,9 @@ public class OverlayPanel {
                 index++;
             }
         } else if (llmStateLine != null && !llmStateLine.isEmpty()) {
-            addWrappedLine(lines, FontHelper.tipBodyFont, I18n.t("llm") + ": " + llmStateLine, 0f, TEXT_COLOR, 0f, maxWidth);
+            addWrappedLine(lines, FontHelper.tipBodyFont, I18n.t("llm") + ": " + withHealth(llmStateLine), 0f, TEXT_COLOR, 0f, maxWidth);
+        } else if (!LLM_CLIENT.healthLine().isEmpty()) {
+            addWrappedLine(lines, FontHelper.tipBodyFont, I18n.t("llm") + ": " + LLM_CLIENT.healthLine(), 0f, TEXT_COLOR, 0f, maxWidth);
         }
 
         if (llmNextPickIndex != null && llmNextPickIndex > 0) {
@@ -1471,6 +1575,40 @@ public class OverlayPanel {
         return lines;
     }
 
+    // Appends the circuit breaker status (if any) to the LLM state line.
+    private static String withHealth(String state) {
+        String health = LLM_CLIENT.healthLine();
+        if (health.isEmpty()) {
+            return state;
+        }
+        return state == null || state.isEmpty() ? health : state + " [" + health + "]";
+    }
+
+    // Whatever the stream has produced so far; replaced by the parsed result once the request completes.
+    private static void addPartialLines(List<RenderLine> lines, float maxWidth) {
+        LLMPartial partial = llmPartial;
+        if (partial == null) {
+            return;
+        }
+        String summary = partial.getSummary();
+        if (summary != null && !summary.isEmpty()) {
+            addWrappedLine(lines, FontHelper.tipBodyFont, I18n.t("summary") + ": " + summary, 0f, TEXT_COLOR, 6f * Settings.scale, maxWidth);
+        }
+        List<LLMRecommendation> recs = partial.getRecommendations();
+        if (recs == null) {
+            return;
+        }
+        int index = 1;
+        for (LLMRecommendation rec : recs) {
+            if (rec == null) {
+                continue;
+            }
+            String header = index + ") " + safeStr(rec.title) + " - " + safeStr(rec.action);
+            addWrappedLine(lines, FontHelper.tipBodyFont, header, 0f, TEXT_COLOR, 2f * Settings.scale, maxWidth);
+            index++;
+        }
+    }
+
     private static String buildHandLine(GameStateSnapshot.CombatInfo combat) {
         if (combat == null) {
             return "";
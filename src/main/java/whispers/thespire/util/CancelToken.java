@@ -0,0 +1,67 @@
+package whispers.thespire.util;
+
+import java.util.ArrayList;
+import java.util.List;
+
+// Cancellation that reaches the I/O: clients register a hook that closes their connection or kills
+// their curl process, so a cancelled request frees its worker immediately instead of at the timeout.
+public class CancelToken {
+    private final List<Runnable> hooks = new ArrayList<>();
+    private volatile boolean cancelled = false;
+
+    public static boolean isCancelled(CancelToken token) {
+        return token != null && token.cancelled;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    // Runs the hook right away when the token is already cancelled.
+    public Runnable onCancel(Runnable hook) {
+        synchronized (hooks) {
+            if (!cancelled) {
+                hooks.add(hook);
+                return hook;
+            }
+        }
+        runQuietly(hook);
+        return hook;
+    }
+
+    public void remove(Runnable hook) {
+        synchronized (hooks) {
+            hooks.remove(hook);
+        }
+    }
+
+    public void cancel() {
+        List<Runnable> pending;
+        synchronized (hooks) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            pending = new ArrayList<>(hooks);
+            hooks.clear();
+        }
+        for (Runnable hook : pending) {
+            runQuietly(hook);
+        }
+    }
+
+    // A token that is cancelled with this one but can also be cancelled on its own.
+    public CancelToken child() {
+        CancelToken child = new CancelToken();
+        onCancel(child::cancel);
+        return child;
+    }
+
+    private static void runQuietly(Runnable hook) {
+        try {
+            hook.run();
+        } catch (Exception ignored) {
+            // closing an already-closed connection is fine
+        }
+    }
+}
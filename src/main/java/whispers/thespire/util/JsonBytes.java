@@ -0,0 +1,152 @@
+package whispers.thespire.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+// Growable UTF-8 byte buffer for writing JSON request bodies directly, without an intermediate
+// String. Strings are escaped and encoded in one pass; precompiled segments are copied as-is.
+// Meant to be reset and reused by one thread.
+public class JsonBytes {
+    private static final byte[] HEX = "0123456789abcdef".getBytes();
+    // Buffers grown past this by an unusually large request are not kept around.
+    private static final int MAX_RETAINED = 256 * 1024;
+
+    private byte[] bytes;
+    private int size;
+
+    public JsonBytes() {
+        this(8192);
+    }
+
+    public JsonBytes(int capacity) {
+        bytes = new byte[Math.max(64, capacity)];
+    }
+
+    public JsonBytes reset() {
+        if (bytes.length > MAX_RETAINED) {
+            bytes = new byte[8192];
+        }
+        size = 0;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(bytes, 0, size);
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(bytes, size);
+    }
+
+    public JsonBytes raw(byte[] segment) {
+        ensure(segment.length);
+        System.arraycopy(segment, 0, bytes, size, segment.length);
+        size += segment.length;
+        return this;
+    }
+
+    // For JSON punctuation, keys and numbers; the text must be ASCII.
+    public JsonBytes ascii(String text) {
+        int length = text.length();
+        ensure(length);
+        for (int i = 0; i < length; i++) {
+            bytes[size++] = (byte) text.charAt(i);
+        }
+        return this;
+    }
+
+    public JsonBytes string(CharSequence text) {
+        ensure(1);
+        bytes[size++] = '"';
+        escaped(text);
+        ensure(1);
+        bytes[size++] = '"';
+        return this;
+    }
+
+    public JsonBytes nullableString(CharSequence text) {
+        return text == null ? ascii("null") : string(text);
+    }
+
+    // Escaped string contents without the surrounding quotes, so a precompiled prefix and a dynamic
+    // tail can form one JSON string.
+    public JsonBytes escaped(CharSequence text) {
+        return escaped(text, 0, text.length());
+    }
+
+    // Same for text[start, end), so a text can be written around a part that is copied in already escaped.
+    public JsonBytes escaped(CharSequence text, int start, int end) {
+        // Worst case is 6 bytes per char (a backslash-u escape); most text needs far less, so grow lazily.
+        ensure(end - start + 16);
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (size + 6 > bytes.length) {
+                ensure(6 + (end - i));
+            }
+            if (c >= 0x20 && c < 0x80) {
+                if (c == '"' || c == '\\') {
+                    bytes[size++] = '\\';
+                }
+                bytes[size++] = (byte) c;
+            } else if (c < 0x20) {
+                escapeControl(c);
+            } else if (c < 0x800) {
+                bytes[size++] = (byte) (0xC0 | (c >> 6));
+                bytes[size++] = (byte) (0x80 | (c & 0x3F));
+            } else if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(text.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, text.charAt(++i));
+                bytes[size++] = (byte) (0xF0 | (cp >> 18));
+                bytes[size++] = (byte) (0x80 | ((cp >> 12) & 0x3F));
+                bytes[size++] = (byte) (0x80 | ((cp >> 6) & 0x3F));
+                bytes[size++] = (byte) (0x80 | (cp & 0x3F));
+            } else if (Character.isSurrogate(c)) {
+                bytes[size++] = '?';
+            } else {
+                bytes[size++] = (byte) (0xE0 | (c >> 12));
+                bytes[size++] = (byte) (0x80 | ((c >> 6) & 0x3F));
+                bytes[size++] = (byte) (0x80 | (c & 0x3F));
+            }
+        }
+        return this;
+    }
+
+    public static byte[] encodeString(CharSequence text) {
+        return new JsonBytes(text.length() + 16).string(text).toByteArray();
+    }
+
+    public static byte[] encodeEscaped(CharSequence text) {
+        return new JsonBytes(text.length() + 16).escaped(text).toByteArray();
+    }
+
+    private void escapeControl(char c) {
+        bytes[size++] = '\\';
+        switch (c) {
+            case '\n':
+                bytes[size++] = 'n';
+                break;
+            case '\r':
+                bytes[size++] = 'r';
+                break;
+            case '\t':
+                bytes[size++] = 't';
+                break;
+            default:
+                bytes[size++] = 'u';
+                bytes[size++] = '0';
+                bytes[size++] = '0';
+                bytes[size++] = HEX[c >> 4];
+                bytes[size++] = HEX[c & 0xF];
+        }
+    }
+
+    private void ensure(int extra) {
+        if (size + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, size + extra));
+        }
+    }
+}
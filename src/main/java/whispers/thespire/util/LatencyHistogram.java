@@ -0,0 +1,66 @@
+package whispers.thespire.util;
+
+// Log-linear histogram in the style of HdrHistogram: values below 32 ms get their own bucket, larger
+// values share 16 buckets per power of two (about 6% precision). Counts are halved once the total
+// passes DECAY_AT so the percentiles follow recent behaviour instead of the whole session.
+public class LatencyHistogram {
+    private static final int SUB_BITS = 5;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_SUB = SUB_COUNT / 2;
+    private static final long MAX_VALUE_MS = 10L * 60L * 1000L;
+    private static final int DECAY_AT = 512;
+
+    private final long[] counts = new long[indexOf(MAX_VALUE_MS) + 1];
+    private long total = 0L;
+
+    public synchronized void record(long valueMs) {
+        long value = Math.max(0L, Math.min(MAX_VALUE_MS, valueMs));
+        counts[indexOf(value)]++;
+        total++;
+        if (total >= DECAY_AT) {
+            total = 0L;
+            for (int i = 0; i < counts.length; i++) {
+                counts[i] >>= 1;
+                total += counts[i];
+            }
+        }
+    }
+
+    public synchronized long count() {
+        return total;
+    }
+
+    // Upper edge of the bucket holding the given quantile, or -1 when empty.
+    public synchronized long percentile(double quantile) {
+        if (total == 0L) {
+            return -1L;
+        }
+        long target = Math.max(1L, (long) Math.ceil(quantile * total));
+        long seen = 0L;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= target) {
+                return highestValueAt(i);
+            }
+        }
+        return MAX_VALUE_MS;
+    }
+
+    private static int indexOf(long value) {
+        if (value < SUB_COUNT) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        int sub = (int) (value >>> shift);
+        return SUB_COUNT + (shift - 1) * HALF_SUB + (sub - HALF_SUB);
+    }
+
+    private static long highestValueAt(int index) {
+        if (index < SUB_COUNT) {
+            return index;
+        }
+        int shift = (index - SUB_COUNT) / HALF_SUB + 1;
+        long sub = (index - SUB_COUNT) % HALF_SUB + HALF_SUB;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,136 @@
+package whispers.thespire.util;
+
+// 128-bit MurmurHash3 (x64 variant) fed value by value instead of over a byte array, so a hash can
+// be taken straight from objects without building a string first. Longs are the unit: two of them
+// make one 16-byte block. Not cryptographic; it only has to tell snapshots apart.
+public class StreamingHash {
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    // Marks a missing value so that null and "" (or null and 0) hash differently.
+    private static final long NULL_MARK = 0x9e3779b97f4a7c15L;
+
+    private final long seed;
+    private long h1;
+    private long h2;
+    private long pending;
+    private boolean hasPending;
+    private long length;
+
+    public StreamingHash(long seed) {
+        this.seed = seed;
+        reset();
+    }
+
+    public StreamingHash reset() {
+        h1 = seed;
+        h2 = seed;
+        pending = 0L;
+        hasPending = false;
+        length = 0L;
+        return this;
+    }
+
+    public StreamingHash putLong(long value) {
+        length += 8;
+        if (!hasPending) {
+            pending = value;
+            hasPending = true;
+            return this;
+        }
+        hasPending = false;
+        long k1 = pending;
+        long k2 = value;
+
+        k1 *= C1;
+        k1 = Long.rotateLeft(k1, 31);
+        k1 *= C2;
+        h1 ^= k1;
+        h1 = Long.rotateLeft(h1, 27);
+        h1 += h2;
+        h1 = h1 * 5 + 0x52dce729;
+
+        k2 *= C2;
+        k2 = Long.rotateLeft(k2, 33);
+        k2 *= C1;
+        h2 ^= k2;
+        h2 = Long.rotateLeft(h2, 31);
+        h2 += h1;
+        h2 = h2 * 5 + 0x38495ab5;
+        return this;
+    }
+
+    public StreamingHash putInt(Integer value) {
+        return putLong(value == null ? NULL_MARK : value.longValue());
+    }
+
+    public StreamingHash putLong(Long value) {
+        return putLong(value == null ? NULL_MARK : value.longValue());
+    }
+
+    // Length first, then the chars four to a long, so "ab"+"c" and "a"+"bc" differ.
+    public StreamingHash putString(String value) {
+        if (value == null) {
+            return putLong(NULL_MARK);
+        }
+        int n = value.length();
+        putLong(n);
+        int i = 0;
+        for (; i + 4 <= n; i += 4) {
+            putLong(((long) value.charAt(i) << 48) | ((long) value.charAt(i + 1) << 32)
+                    | ((long) value.charAt(i + 2) << 16) | value.charAt(i + 3));
+        }
+        if (i < n) {
+            long tail = 0L;
+            for (int shift = 48; i < n; i++, shift -= 16) {
+                tail |= (long) value.charAt(i) << shift;
+            }
+            putLong(tail);
+        }
+        return this;
+    }
+
+    // Finishes the hash into out[0..1]; the hasher is reset afterwards.
+    public void finish(long[] out, int offset) {
+        long a = h1;
+        long b = h2;
+        if (hasPending) {
+            long k1 = pending;
+            k1 *= C1;
+            k1 = Long.rotateLeft(k1, 31);
+            k1 *= C2;
+            a ^= k1;
+        }
+        a ^= length;
+        b ^= length;
+        a += b;
+        b += a;
+        a = fmix(a);
+        b = fmix(b);
+        a += b;
+        b += a;
+        out[offset] = a;
+        out[offset + 1] = b;
+        reset();
+    }
+
+    public static String hex(long high, long low) {
+        char[] chars = new char[32];
+        for (int i = 15; i >= 0; i--) {
+            chars[i] = HEX[(int) (high & 0xF)];
+            high >>>= 4;
+            chars[i + 16] = HEX[(int) (low & 0xF)];
+            low >>>= 4;
+        }
+        return new String(chars);
+    }
+
+    private static long fmix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51afd7ed558ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ceb93fe53e87ecL;
+        k ^= k >>> 33;
+        return k;
+    }
+}
@@ -0,0 +1,273 @@
+package whispers.thespire.util;
+
+import com.evacipated.cardcrawl.modthespire.lib.ConfigUtils;
+import whispers.thespire.config.ModConfig;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Token counts for prompt budgeting. When a tiktoken rank file for the model's encoding is available
+// (resource /tokenizers/<name>.tiktoken or WhispersTheSpire/tokenizers/<name>.tiktoken in the config
+// dir), counts are exact byte-level BPE. Otherwise, and in "fast" mode, a per-script approximation
+// is used. Rank files load on a background thread; until then the approximation answers.
+public class TokenEstimator {
+    public static final String CL100K = "cl100k_base";
+    public static final String O200K = "o200k_base";
+    public static final String GEMINI = "gemini";
+
+    // cl100k's pre-tokenizer; o200k splits a little differently but close enough for budgeting.
+    private static final Pattern SPLIT = Pattern.compile(
+            "(?i:'s|'t|'re|'ve|'m|'ll|'d)|[^\\r\\n\\p{L}\\p{N}]?\\p{L}+|\\p{N}{1,3}"
+                    + "| ?[^\\s\\p{L}\\p{N}]+[\\r\\n]*|\\s*[\\r\\n]+|\\s+(?!\\S)|\\s+");
+    private static final int PIECE_CACHE_SIZE = 8192;
+
+    private static final Object LOCK = new Object();
+    private static final Map<String, Map<String, Integer>> ranks = new HashMap<>();
+    private static final Map<String, Boolean> loading = new HashMap<>();
+    private static final LinkedHashMap<String, Integer> pieceCache = new LinkedHashMap<String, Integer>(256, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+            return size() > PIECE_CACHE_SIZE;
+        }
+    };
+
+    private TokenEstimator() {}
+
+    public static int count(CharSequence text, String model) {
+        if (text == null || text.length() == 0) {
+            return 0;
+        }
+        String encoding = encodingFor(model);
+        Map<String, Integer> table = "fast".equalsIgnoreCase(ModConfig.tokenEstimator) ? null : table(encoding);
+        if (table == null) {
+            return approximate(text, encoding);
+        }
+        int total = 0;
+        Matcher matcher = SPLIT.matcher(text);
+        while (matcher.find()) {
+            total += bpeCount(encoding, table, matcher.group());
+        }
+        return total;
+    }
+
+    public static int approximate(CharSequence text) {
+        return approximate(text, CL100K);
+    }
+
+    // Walks the text once: letter runs ~4 chars per token (at least one), digit runs ~3, symbol runs ~2 (JSON
+    // punctuation like "":" or "},{" merges), whitespace folds into the next piece except line breaks.
+    // CJK costs depend on the vocabulary: cl100k splits many characters, o200k and Gemini rarely do.
+    public static int approximate(CharSequence text, String encoding) {
+        if (text == null || text.length() == 0) {
+            return 0;
+        }
+        int wideMilli = CL100K.equals(encoding) ? 1300 : GEMINI.equals(encoding) ? 900 : 1000;
+        long wide = 0;
+        int tokens = 0;
+        int run = 0;
+        int kind = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            int next;
+            if (c >= 0x2E80) {
+                wide++;
+                next = 0;
+            } else if (Character.isLetter(c)) {
+                next = 1;
+            } else if (Character.isDigit(c)) {
+                next = 2;
+            } else if (c == '\n') {
+                tokens++;
+                next = 0;
+            } else if (Character.isWhitespace(c)) {
+                next = 0;
+            } else {
+                next = 3;
+            }
+            if (next != kind) {
+                tokens += runTokens(kind, run);
+                run = 0;
+                kind = next;
+            }
+            if (next != 0) {
+                run++;
+            }
+        }
+        tokens += runTokens(kind, run);
+        return tokens + (int) ((wide * wideMilli + 999) / 1000);
+    }
+
+    // Cuts text to roughly maxTokens without splitting a surrogate pair; appends "..." when cut.
+    public static String truncate(String text, int maxTokens, String model) {
+        if (text == null) {
+            return "";
+        }
+        int tokens = count(text, model);
+        if (tokens <= maxTokens) {
+            return text;
+        }
+        int end = (int) ((long) text.length() * maxTokens / tokens);
+        while (end > 0) {
+            if (Character.isHighSurrogate(text.charAt(end - 1))) {
+                end--;
+            }
+            String cut = text.substring(0, end) + "...";
+            if (count(cut, model) <= maxTokens) {
+                return cut;
+            }
+            end = end * 9 / 10;
+        }
+        return "";
+    }
+
+    public static String encodingFor(String model) {
+        String name = model == null ? "" : model.trim().toLowerCase();
+        if (name.contains("gemini") || name.contains("gemma")) {
+            return GEMINI;
+        }
+        if (name.contains("gpt-4o") || name.contains("gpt-4.1") || name.contains("gpt-5")
+                || name.matches("(.*/)?o[1-9](-.*)?")) {
+            return O200K;
+        }
+        return CL100K;
+    }
+
+    // For the debug status: "bpe:<encoding>" once exact counting is available, else "approx:<encoding>".
+    public static String modeFor(String model) {
+        String encoding = encodingFor(model);
+        boolean exact = !"fast".equalsIgnoreCase(ModConfig.tokenEstimator) && table(encoding) != null;
+        return (exact ? "bpe:" : "approx:") + encoding;
+    }
+
+    private static int runTokens(int kind, int run) {
+        if (run == 0) {
+            return 0;
+        }
+        switch (kind) {
+            case 1:
+                // Common words are a single token; only long identifiers split.
+                return Math.max(1, run / 4);
+            case 2:
+                return (run + 2) / 3;
+            case 3:
+                return (run + 1) / 2;
+            default:
+                return 0;
+        }
+    }
+
+    private static int bpeCount(String encoding, Map<String, Integer> table, String piece) {
+        String key = encoding + '\u0000' + piece;
+        synchronized (pieceCache) {
+            Integer cached = pieceCache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        // Byte-level: each UTF-8 byte is one char 0..255 so ranks can be looked up by String.
+        byte[] bytes = piece.getBytes(StandardCharsets.UTF_8);
+        char[] chars = new char[bytes.length];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i] = (char) (bytes[i] & 0xFF);
+        }
+        String symbols = new String(chars);
+        int count;
+        if (table.containsKey(symbols)) {
+            count = 1;
+        } else {
+            List<Integer> bounds = new ArrayList<>();
+            for (int i = 0; i <= chars.length; i++) {
+                bounds.add(i);
+            }
+            while (bounds.size() > 2) {
+                int best = -1;
+                int bestRank = Integer.MAX_VALUE;
+                for (int i = 0; i + 2 < bounds.size(); i++) {
+                    Integer rank = table.get(symbols.substring(bounds.get(i), bounds.get(i + 2)));
+                    if (rank != null && rank < bestRank) {
+                        bestRank = rank;
+                        best = i;
+                    }
+                }
+                if (best < 0) {
+                    break;
+                }
+                bounds.remove(best + 1);
+            }
+            count = bounds.size() - 1;
+        }
+        synchronized (pieceCache) {
+            pieceCache.put(key, count);
+        }
+        return count;
+    }
+
+    private static Map<String, Integer> table(String encoding) {
+        if (GEMINI.equals(encoding)) {
+            return null;
+        }
+        synchronized (LOCK) {
+            Map<String, Integer> table = ranks.get(encoding);
+            if (table != null || loading.containsKey(encoding)) {
+                return table;
+            }
+            loading.put(encoding, Boolean.TRUE);
+        }
+        Thread loader = new Thread(() -> load(encoding), "WhispersTheSpire-Tokenizer");
+        loader.setDaemon(true);
+        loader.start();
+        return null;
+    }
+
+    private static void load(String encoding) {
+        String file = encoding + ".tiktoken";
+        try (InputStream in = open(file)) {
+            if (in == null) {
+                return;
+            }
+            Map<String, Integer> table = new HashMap<>(1 << 18);
+            Base64.Decoder decoder = Base64.getDecoder();
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.US_ASCII))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    int space = line.indexOf(' ');
+                    if (space <= 0) {
+                        continue;
+                    }
+                    byte[] bytes = decoder.decode(line.substring(0, space));
+                    char[] chars = new char[bytes.length];
+                    for (int i = 0; i < bytes.length; i++) {
+                        chars[i] = (char) (bytes[i] & 0xFF);
+                    }
+                    table.put(new String(chars), Integer.parseInt(line.substring(space + 1).trim()));
+                }
+            }
+            synchronized (LOCK) {
+                ranks.put(encoding, table);
+            }
+        } catch (Exception e) {
+            System.err.println("WhispersTheSpire: tokenizer " + file + " failed to load: " + e.getClass().getSimpleName());
+        }
+    }
+
+    private static InputStream open(String file) throws Exception {
+        InputStream resource = TokenEstimator.class.getResourceAsStream("/tokenizers/" + file);
+        if (resource != null) {
+            return resource;
+        }
+        File local = new File(new File(new File(ConfigUtils.CONFIG_DIR, "WhispersTheSpire"), "tokenizers"), file);
+        return local.exists() ? new FileInputStream(local) : null;
+    }
+}
@@ -0,0 +1,147 @@
+package whispers.thespire.llm;
+
+import org.junit.Test;
+import whispers.thespire.llm.model.LLMPartial;
+import whispers.thespire.llm.model.LLMRecommendation;
+import whispers.thespire.llm.model.LLMResult;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AdviceParserTest {
+    private static final String ANSWER = "{\"context_type\":\"COMBAT\",\"summary\":\"Block \\u00e9 first\","
+            + "\"recommendations\":[{\"title\":\"Defend\",\"action\":\"Play Defend\",\"reason\":\"a \\\"big\\\" hit\"},"
+            + "{\"title\":\"Bash\",\"action\":\"Play Bash\",\"reason\":\"r\"}],\"route_plan\":[\"Rest\"]}";
+
+    private static LLMResult parse(String text) {
+        AdviceParser parser = new AdviceParser();
+        parser.feed(text);
+        return parser.result("length");
+    }
+
+    @Test
+    public void completeAnswerIsNotPartial() {
+        LLMResult result = parse("{\"context_type\":\"MAP\",\"summary\":\"go \\\\ left\",\"recommendations\":[],"
+                + "\"route_plan\":[\"Elite\",\"Rest\"]}");
+        assertTrue(result.ok);
+        assertFalse(result.partial);
+        assertEquals("go \\ left", result.summary);
+        assertEquals(Arrays.asList("Elite", "Rest"), result.routePlan);
+    }
+
+    @Test
+    public void cutAfterBackslashDropsTheEscape() {
+        LLMResult result = parse("{\"context_type\":\"MAP\",\"summary\":\"go \\");
+        assertTrue(result.ok);
+        assertTrue(result.partial);
+        assertEquals("go ", result.summary);
+    }
+
+    @Test
+    public void cutInsideUnicodeEscapeDropsTheEscape() {
+        LLMResult result = parse("{\"context_type\":\"MAP\",\"summary\":\"go \\u00");
+        assertTrue(result.ok);
+        assertEquals("go ", result.summary);
+    }
+
+    @Test
+    public void escapedBackslashBeforeCutIsKept() {
+        LLMResult result = parse("{\"context_type\":\"MAP\",\"summary\":\"a\\\\u00");
+        assertTrue(result.ok);
+        assertEquals("a\\u00", result.summary);
+    }
+
+    @Test
+    public void cutRoutePlanStepIsDropped() {
+        LLMResult result = parse("{\"context_type\":\"MAP\",\"summary\":\"s\",\"recommendations\":[],"
+                + "\"route_plan\":[\"Elite\", \"Ste");
+        assertTrue(result.ok);
+        assertEquals(Collections.singletonList("Elite"), result.routePlan);
+    }
+
+    @Test
+    public void cutFirstRoutePlanStepLeavesNoPlan() {
+        LLMResult result = parse("{\"context_type\":\"MAP\",\"summary\":\"s\",\"recommendations\":[],"
+                + "\"route_plan\":[\"Ste\\");
+        assertTrue(result.ok);
+        assertEquals(null, result.routePlan);
+    }
+
+    @Test
+    public void chunkedFeedPublishesProgress() {
+        AdviceParser parser = new AdviceParser();
+        LLMPartial partial = new LLMPartial();
+
+        // Cut mid-key.
+        parser.feed("{\"context_type\":\"COMBAT\",\"summ");
+        parser.publishTo(partial);
+        assertEquals("", partial.getSummary());
+        assertEquals(null, partial.getRecommendations());
+
+        // Cut mid-escape inside the summary: the unfinished escape is held back.
+        parser.feed("ary\":\"Block \\u00");
+        parser.publishTo(partial);
+        assertEquals("Block ", partial.getSummary());
+
+        // Cut mid-string inside the first recommendation, before the array closes.
+        parser.feed("e9 first\",\"recommendations\":[{\"title\":\"Defend\",\"action\":\"Play De");
+        parser.publishTo(partial);
+        assertEquals("Block \u00e9 first", partial.getSummary());
+        List<LLMRecommendation> recs = partial.getRecommendations();
+        assertEquals(1, recs.size());
+        assertEquals("Defend", recs.get(0).title);
+        assertEquals("Play De", recs.get(0).action);
+
+        // Cut between a backslash and the quote it escapes.
+        parser.feed("fend\",\"reason\":\"a \\");
+        parser.publishTo(partial);
+        assertEquals("a ", partial.getRecommendations().get(0).reason);
+
+        // First recommendation done, second one cut mid-string.
+        parser.feed("\"big\\\" hit\"},{\"title\":\"Ba");
+        parser.publishTo(partial);
+        recs = partial.getRecommendations();
+        assertEquals(2, recs.size());
+        assertEquals("a \"big\" hit", recs.get(0).reason);
+        assertEquals("Ba", recs.get(1).title);
+        assertFalse(parser.isClosed());
+
+        parser.feed("sh\",\"action\":\"Play Bash\",\"reason\":\"r\"}],\"route_plan\":[\"Rest\"]}");
+        assertTrue(parser.isClosed());
+        assertSameResult(parse(ANSWER), parser.result("length"));
+    }
+
+    @Test
+    public void oneCharacterChunksMatchSingleFeed() {
+        AdviceParser parser = new AdviceParser();
+        LLMPartial partial = new LLMPartial();
+        for (int i = 0; i < ANSWER.length(); i++) {
+            parser.feed(ANSWER.substring(i, i + 1));
+            parser.publishTo(partial);
+        }
+        assertTrue(parser.isClosed());
+        assertSameResult(parse(ANSWER), parser.result("length"));
+    }
+
+    private static void assertSameResult(LLMResult expected, LLMResult actual) {
+        assertTrue(expected.ok);
+        assertEquals(expected.ok, actual.ok);
+        assertEquals(expected.partial, actual.partial);
+        assertEquals(expected.contextType, actual.contextType);
+        assertEquals(expected.summary, actual.summary);
+        assertEquals(expected.routePlan, actual.routePlan);
+        assertEquals(expected.recommendations.size(), actual.recommendations.size());
+        for (int i = 0; i < expected.recommendations.size(); i++) {
+            LLMRecommendation e = expected.recommendations.get(i);
+            LLMRecommendation a = actual.recommendations.get(i);
+            assertEquals(e.title, a.title);
+            assertEquals(e.action, a.action);
+            assertEquals(e.reason, a.reason);
+        }
+    }
+}
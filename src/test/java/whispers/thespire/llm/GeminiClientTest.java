@@ -0,0 +1,154 @@
+package whispers.thespire.llm;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import whispers.thespire.llm.model.LLMPartial;
+import whispers.thespire.llm.model.LLMRecommendation;
+import whispers.thespire.llm.model.LLMRequest;
+import whispers.thespire.llm.model.LLMResult;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class GeminiClientTest {
+    private HttpServer server;
+    private volatile String requestUri;
+    private volatile String apiKeyHeader;
+    private volatile List<String> pieces = Collections.emptyList();
+
+    // Records every state the overlay could have polled.
+    private static class RecordingPartial extends LLMPartial {
+        final List<String> summaries = new ArrayList<>();
+        final List<Integer> recCounts = new ArrayList<>();
+
+        @Override
+        public void publish(String summary, List<LLMRecommendation> recommendations) {
+            super.publish(summary, recommendations);
+            summaries.add(getSummary());
+            recCounts.add(recommendations == null ? 0 : recommendations.size());
+        }
+    }
+
+    @Before
+    public void startServer() throws Exception {
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            requestUri = exchange.getRequestURI().toString();
+            apiKeyHeader = exchange.getRequestHeaders().getFirst("x-goog-api-key");
+            exchange.getResponseHeaders().set("Content-Type", "text/event-stream");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                // Each flush goes out as its own HTTP chunk, so events arrive split at these points.
+                for (String piece : pieces) {
+                    out.write(piece.getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+    }
+
+    private LLMRequest request(LLMPartial partial) {
+        LLMRequest request = new LLMRequest();
+        request.provider = "gemini";
+        request.baseUrl = "http://127.0.0.1:" + server.getAddress().getPort();
+        request.model = "test-model";
+        request.apiKey = "test-key";
+        request.maxTokens = 256;
+        request.timeoutMs = 5000;
+        request.contextType = "COMBAT";
+        request.snapshotJson = "{}";
+        request.stream = true;
+        request.partial = partial;
+        return request;
+    }
+
+    @Test
+    public void streamsEventsSplitAcrossChunks() {
+        pieces = new ArrayList<>();
+        pieces.add("data: {\"candidates\":[{\"content\":{\"parts\":[{\"text\":\"Weighing the");
+        pieces.add(" block\",\"thought\":true}]}}]}\n\n");
+        pieces.add("data: {\"candidates\":[{\"content\":{\"parts\":[{\"text\":\"{\\\"context_type\\\":\\\"COMBAT\\\",");
+        pieces.add("\\\"summary\\\":\\\"Block first\"}]}}]}\n");
+        pieces.add("\ndata: {\"candidates\":[{\"content\":{\"parts\":[{\"text\":\"\\\",\\\"recommendations\\\":"
+                + "[{\\\"title\\\":\\\"Defend\\\",\\\"action\\\":\\\"Play Defend\\\",\\\"reason\\\":\\\"r\\\"}");
+        pieces.add("]}\"}]},\"finishReason\":\"STOP\"}],"
+                + "\"usageMetadata\":{\"promptTokenCount\":120,\"candidatesTokenCount\":30}}\n\n");
+
+        RecordingPartial partial = new RecordingPartial();
+        LLMResult result = new GeminiClient().complete(request(partial));
+
+        assertEquals("/v1beta/models/test-model:streamGenerateContent?alt=sse", requestUri);
+        assertEquals("test-key", apiKeyHeader);
+        // The thought part never reaches the overlay; the summary grows before the answer is done.
+        assertFalse(partial.summaries.isEmpty());
+        for (String summary : partial.summaries) {
+            assertFalse(summary.contains("Weighing"));
+        }
+        assertTrue(partial.summaries.contains("Block first"));
+        assertEquals(Integer.valueOf(1), partial.recCounts.get(partial.recCounts.size() - 1));
+
+        assertTrue(result.ok);
+        assertFalse(result.partial);
+        assertEquals("COMBAT", result.contextType);
+        assertEquals("Block first", result.summary);
+        assertEquals(1, result.recommendations.size());
+        assertEquals("Defend", result.recommendations.get(0).title);
+        assertEquals("STOP", result.finishReason);
+        assertEquals(Integer.valueOf(120), result.promptTokens);
+        assertEquals(Integer.valueOf(30), result.completionTokens);
+        assertTrue(result.firstTokenMs > 0);
+    }
+
+    @Test
+    public void errorEventFailsTheStream() {
+        pieces = new ArrayList<>();
+        pieces.add("data: {\"candidates\":[{\"content\":{\"parts\":[{\"text\":\"{\\\"summary\\\":\\\"Blo\"}]}}]}\n\n");
+        pieces.add("data: {\"error\":{\"code\":503,");
+        pieces.add("\"message\":\"overloaded\"}}\n\n");
+
+        RecordingPartial partial = new RecordingPartial();
+        LLMResult result = new GeminiClient().complete(request(partial));
+
+        assertEquals("Blo", partial.summaries.get(partial.summaries.size() - 1));
+        assertFalse(result.ok);
+        assertEquals("stream_error", result.errorMessage);
+        assertTrue(result.raw.contains("overloaded"));
+    }
+
+    @Test
+    public void maxTokensCutIsSalvaged() {
+        pieces = new ArrayList<>();
+        pieces.add("data: {\"candidates\":[{\"content\":{\"parts\":[{\"text\":\"{\\\"context_type\\\":\\\"COMBAT\\\","
+                + "\\\"summary\\\":\\\"Block first\\\",\\\"recommendations\\\":[{\\\"title\\\":\\\"Def\"}]},");
+        pieces.add("\"finishReason\":\"MAX_TOKENS\"}]}\n\n");
+
+        LLMResult result = new GeminiClient().complete(request(new RecordingPartial()));
+
+        assertTrue(result.ok);
+        assertTrue(result.partial);
+        assertEquals("MAX_TOKENS", result.finishReason);
+        assertEquals("Block first", result.summary);
+    }
+}
@@ -0,0 +1,178 @@
+package whispers.thespire.llm;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import whispers.thespire.config.ModConfig;
+import whispers.thespire.llm.model.LLMPartial;
+import whispers.thespire.llm.model.LLMRecommendation;
+import whispers.thespire.llm.model.LLMRequest;
+import whispers.thespire.llm.model.LLMResult;
+
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OllamaClientTest {
+    private HttpServer server;
+    private String keepAliveBefore;
+    private int contextTokensBefore;
+    private volatile String requestPath;
+    private volatile JsonObject requestBody;
+    private volatile List<String> pieces = Collections.emptyList();
+
+    private static class RecordingPartial extends LLMPartial {
+        final List<String> summaries = new ArrayList<>();
+
+        @Override
+        public void publish(String summary, List<LLMRecommendation> recommendations) {
+            super.publish(summary, recommendations);
+            summaries.add(getSummary());
+        }
+    }
+
+    @Before
+    public void startServer() throws Exception {
+        keepAliveBefore = ModConfig.localKeepAlive;
+        contextTokensBefore = ModConfig.localContextTokens;
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            requestPath = exchange.getRequestURI().getPath();
+            try (Reader in = new InputStreamReader(exchange.getRequestBody(), StandardCharsets.UTF_8)) {
+                requestBody = new JsonParser().parse(in).getAsJsonObject();
+            }
+            exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream out = exchange.getResponseBody()) {
+                // Each flush goes out as its own HTTP chunk, so lines arrive split at these points.
+                for (String piece : pieces) {
+                    out.write(piece.getBytes(StandardCharsets.UTF_8));
+                    out.flush();
+                    try {
+                        Thread.sleep(20);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+        });
+        server.start();
+    }
+
+    @After
+    public void stopServer() {
+        server.stop(0);
+        ModConfig.localKeepAlive = keepAliveBefore;
+        ModConfig.localContextTokens = contextTokensBefore;
+    }
+
+    private String baseUrl() {
+        return "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    private LLMRequest request(LLMPartial partial) {
+        LLMRequest request = new LLMRequest();
+        request.provider = "ollama";
+        request.baseUrl = baseUrl() + "/api";
+        request.model = "qwen2.5:7b";
+        request.maxTokens = 300;
+        request.timeoutMs = 5000;
+        request.contextType = "COMBAT";
+        request.snapshotJson = "{}";
+        request.stream = true;
+        request.partial = partial;
+        return request;
+    }
+
+    @Test
+    public void streamsNdjsonAndSendsLocalOptions() {
+        ModConfig.localKeepAlive = "30m";
+        ModConfig.localContextTokens = 8192;
+        pieces = new ArrayList<>();
+        pieces.add("{\"response\":\"{\\\"context_type\\\":\\\"COMBAT\\\",\\\"summary\\\":\\\"Block\",\"done\":false}\n{\"resp");
+        pieces.add("onse\":\" first\\\",\\\"recommendations\\\":[{\\\"title\\\":\\\"Defend\\\",\\\"action\\\":\\\"Play Defend\\\"}]}\","
+                + "\"done\":false}\n");
+        pieces.add("{\"response\":\"\",\"done\":true,\"done_reason\":\"stop\",\"prompt_eval_count\":210,\"eval_count\":40}\n");
+
+        RecordingPartial partial = new RecordingPartial();
+        LLMResult result = new OllamaClient().complete(request(partial));
+
+        assertEquals("/api/generate", requestPath);
+        assertEquals("qwen2.5:7b", requestBody.get("model").getAsString());
+        assertTrue(requestBody.get("stream").getAsBoolean());
+        assertEquals("30m", requestBody.get("keep_alive").getAsString());
+        assertTrue(requestBody.has("system"));
+        assertFalse(requestBody.get("prompt").getAsString().isEmpty());
+        JsonObject options = requestBody.getAsJsonObject("options");
+        assertEquals(300, options.get("num_predict").getAsInt());
+        assertEquals(8192, options.get("num_ctx").getAsInt());
+
+        assertTrue(partial.summaries.contains("Block"));
+        assertTrue(result.ok);
+        assertFalse(result.partial);
+        assertEquals("Block first", result.summary);
+        assertEquals(1, result.recommendations.size());
+        assertEquals("stop", result.finishReason);
+        assertEquals(Integer.valueOf(210), result.promptTokens);
+        assertEquals(Integer.valueOf(40), result.completionTokens);
+        assertTrue(result.firstTokenMs > 0);
+    }
+
+    @Test
+    public void numericKeepAliveAndNoContextOverride() {
+        ModConfig.localKeepAlive = "-1";
+        ModConfig.localContextTokens = 0;
+        pieces = Collections.singletonList("{\"response\":\"{\\\"summary\\\":\\\"s\\\",\\\"recommendations\\\":[]}\","
+                + "\"done\":true,\"done_reason\":\"stop\"}\n");
+
+        LLMResult result = new OllamaClient().complete(request(new RecordingPartial()));
+
+        assertTrue(result.ok);
+        assertEquals(-1, requestBody.get("keep_alive").getAsInt());
+        assertFalse(requestBody.getAsJsonObject("options").has("num_ctx"));
+    }
+
+    @Test
+    public void lengthCutIsSalvaged() {
+        pieces = new ArrayList<>();
+        pieces.add("{\"response\":\"{\\\"context_type\\\":\\\"COMBAT\\\",\\\"summary\\\":\\\"Block first\\\",\",\"done\":false}\n");
+        pieces.add("{\"response\":\"\\\"recommendations\\\":[{\\\"title\\\":\\\"Def\",\"done\":false}\n");
+        pieces.add("{\"response\":\"\",\"done\":true,\"done_reason\":\"length\",\"eval_count\":300}\n");
+
+        LLMResult result = new OllamaClient().complete(request(new RecordingPartial()));
+
+        assertTrue(result.ok);
+        assertTrue(result.partial);
+        assertEquals("length", result.finishReason);
+        assertTrue(ResponseParser.isTruncation(result.finishReason));
+        assertEquals("Block first", result.summary);
+        assertEquals(Integer.valueOf(300), result.completionTokens);
+    }
+
+    @Test
+    public void pingSendsNoPrompt() {
+        ModConfig.localKeepAlive = "10m";
+        pieces = Collections.singletonList("{\"model\":\"qwen2.5:7b\",\"response\":\"\",\"done\":true,\"done_reason\":\"load\"}\n");
+
+        assertTrue(OllamaClient.ping(baseUrl(), "qwen2.5:7b", 2000));
+
+        assertEquals("/api/generate", requestPath);
+        assertEquals("qwen2.5:7b", requestBody.get("model").getAsString());
+        assertEquals("10m", requestBody.get("keep_alive").getAsString());
+        assertFalse(requestBody.has("prompt"));
+        assertFalse(requestBody.has("system"));
+    }
+}